@@ -0,0 +1,70 @@
+package org.ngs.fieldscope.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.ngs.fieldscope.ArrayGrid;
+import org.ngs.fieldscope.FlowMemo;
+import org.ngs.fieldscope.FlowRunLengths;
+import org.ngs.fieldscope.FlowTracer;
+import org.ngs.fieldscope.TiledGrid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//
+// Flow paths traced from a fixed batch of random start points, stepping
+// cell by cell, replaying a memo of earlier paths, or jumping along
+// straight runs. The memo fills during warmup, so its numbers are for a
+// service that has been running a while.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlowTraceBenchmark
+{
+    private static final int STARTS = 256;
+
+    @Param({ "1024", "4096" })
+    public int size;
+
+    @Param({ "plain", "memo", "runLengths" })
+    public String mode;
+
+    private FlowTracer m_tracer;
+    private double[][] m_starts;
+
+    @Setup
+    public void setUp () throws IOException {
+        double[] d8 = SyntheticGrids.d8(SyntheticGrids.dem(size, size, 1), size, size);
+        ArrayGrid grid = SyntheticGrids.grid(size, size, d8, TiledGrid.DEFAULT_TILE_SIZE);
+        m_tracer = new FlowTracer(grid, 64);
+        if (mode.equals("memo")) {
+            m_tracer.setMemo(new FlowMemo(1 << 22));
+        } else if (mode.equals("runLengths")) {
+            m_tracer.setRunLengths(FlowRunLengths.build(grid, null));
+        }
+        m_starts = SyntheticGrids.points(size, size, STARTS, 2);
+    }
+
+    @Benchmark
+    public long traceBatch () throws IOException {
+        long steps = 0;
+        for (int i = 0; i < STARTS; i += 1) {
+            FlowTracer.Vertices vertices = new FlowTracer.Vertices();
+            vertices.add(m_starts[0][i], m_starts[1][i]);
+            steps += m_tracer.trace(m_starts[0][i], m_starts[1][i], size * size, vertices);
+        }
+        return steps;
+    }
+}
@@ -0,0 +1,104 @@
+package org.ngs.fieldscope.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.ngs.fieldscope.ArrayGrid;
+import org.ngs.fieldscope.MappedGrid;
+import org.ngs.fieldscope.PointSampler;
+import org.ngs.fieldscope.TiledGrid;
+import org.ngs.fieldscope.WorkerPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//
+// A queryPoints batch over a raster layer exported to a tile cache file,
+// split into chunks and sampled on a worker pool as QueryPoints does with
+// a QueryParallelism above one. A memory-mapped grid is the only kind the
+// service hands to workers. Setup checks that the chunks sampled on the
+// workers come out the same as the whole batch sampled on one thread.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappedGridBenchmark
+{
+    private static final int POINTS = 100000;
+    private static final int CHUNK_SIZE = 2048;
+
+    @Param({ "1024", "4096" })
+    public int size;
+
+    @Param({ "1", "4" })
+    public int parallelism;
+
+    private File m_file;
+    private MappedGrid m_grid;
+    private ExecutorService m_workers;
+    private PointSampler m_sampler;
+    private double[][] m_points;
+
+    @Setup
+    public void setUp () throws IOException {
+        ArrayGrid dem = SyntheticGrids.grid(size, size, SyntheticGrids.dem(size, size, 1), TiledGrid.DEFAULT_TILE_SIZE);
+        m_file = File.createTempFile("MappedGridBenchmark", ".fstg");
+        MappedGrid.write(dem, m_file, MappedGrid.TYPE_FLOAT32, Double.NaN, 0, false);
+        m_grid = MappedGrid.open(m_file, dem);
+        if (m_grid == null) {
+            throw new IllegalStateException(m_file + " does not match the grid written to it");
+        }
+        m_workers = WorkerPool.create("MappedGridBenchmark", parallelism);
+        m_sampler = PointSampler.parse("bilinear", "", "mean");
+        m_points = SyntheticGrids.points(size, size, POINTS, 3);
+        if (!Arrays.equals(sample(), m_sampler.sample(m_grid, m_points[0], m_points[1]))) {
+            throw new IllegalStateException("samples taken on workers differ from those taken on one thread");
+        }
+    }
+
+    @TearDown
+    public void tearDown () {
+        if (m_workers != null) {
+            m_workers.shutdownNow();
+        }
+        m_file.delete();
+    }
+
+    @Benchmark
+    public double[] sample () throws IOException {
+        List<Callable<double[]>> chunks = new ArrayList<Callable<double[]>>();
+        for (int from = 0; from < POINTS; from += CHUNK_SIZE) {
+            final int start = from;
+            final int end = Math.min(POINTS, from + CHUNK_SIZE);
+            chunks.add(new Callable<double[]>() {
+                public double[] call () throws IOException {
+                    return m_sampler.sample(m_grid, Arrays.copyOfRange(m_points[0], start, end), Arrays.copyOfRange(m_points[1], start, end));
+                }
+            });
+        }
+        double[] result = new double[POINTS];
+        int offset = 0;
+        for (double[] chunk : WorkerPool.invokeAll(m_workers, chunks)) {
+            System.arraycopy(chunk, 0, result, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return result;
+    }
+}
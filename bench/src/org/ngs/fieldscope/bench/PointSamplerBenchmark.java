@@ -0,0 +1,57 @@
+package org.ngs.fieldscope.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.ngs.fieldscope.ArrayGrid;
+import org.ngs.fieldscope.PointSampler;
+import org.ngs.fieldscope.TiledGrid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//
+// A queryPoints batch of random points on a DEM, with each way of sampling
+// the service offers. Tiles are read afresh for every batch, as they are
+// for every request.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PointSamplerBenchmark
+{
+    private static final int POINTS = 10000;
+
+    @Param({ "1024", "4096" })
+    public int size;
+
+    @Param({ "nearest", "bilinear", "cubic", "5x5" })
+    public String method;
+
+    private ArrayGrid m_dem;
+    private PointSampler m_sampler;
+    private double[][] m_points;
+
+    @Setup
+    public void setUp () {
+        m_dem = SyntheticGrids.grid(size, size, SyntheticGrids.dem(size, size, 1), TiledGrid.DEFAULT_TILE_SIZE);
+        boolean neighborhood = method.indexOf('x') > 0;
+        m_sampler = PointSampler.parse(neighborhood ? "" : method, neighborhood ? method : "", "mean");
+        m_points = SyntheticGrids.points(size, size, POINTS, 3);
+    }
+
+    @Benchmark
+    public double[] sample () throws IOException {
+        return m_sampler.sample(m_dem, m_points[0], m_points[1]);
+    }
+}
@@ -0,0 +1,265 @@
+package org.ngs.fieldscope.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.ngs.fieldscope.ArrayGrid;
+import org.ngs.fieldscope.FlowTracer;
+
+//
+// Reproducible grids for the benchmarks. The elevation surface is a
+// regional slope plus several octaves of value noise, which gives ridges
+// and valleys much like a real DEM, with its pits filled the way a DEM is
+// conditioned before flow directions are made from it. Flow directions are
+// taken by steepest descent, so every path runs downhill to the edge of the
+// grid and paths merge into long channels. Everything is generated from a
+// seed.
+//
+public final class SyntheticGrids
+{
+    public static final double CELL_SIZE = 10;
+
+    private static final int OCTAVES = 6;
+    private static final double FILL_RISE = 1e-4;
+    private static final int[] CODES = { 1, 2, 4, 8, 16, 32, 64, 128 };
+
+    private SyntheticGrids () {
+    }
+
+    //
+    // Row-major elevations, roughly 0 to 1000, with no pits
+    //
+    public static double[] dem (int width, int height, long seed) {
+        double[] result = new double[width * height];
+        Random random = new Random(seed);
+        double slopeX = 200 * random.nextDouble();
+        double slopeY = 200 + 200 * random.nextDouble();
+        for (int row = 0; row < height; row += 1) {
+            for (int column = 0; column < width; column += 1) {
+                result[row * width + column] = slopeX * column / width + slopeY * (height - row) / height;
+            }
+        }
+        int period = Math.max(width, height) / 2;
+        double amplitude = 300;
+        for (int octave = 0; (octave < OCTAVES) && (period >= 2); octave += 1) {
+            addNoise(result, width, height, period, amplitude, random.nextLong());
+            period /= 2;
+            amplitude /= 2;
+        }
+        fillPits(result, width, height);
+        return result;
+    }
+
+    //
+    // Raise every cell that has no downhill path to the edge until it does,
+    // by flooding inwards from the edge lowest first (Barnes' priority
+    // flood). Filled cells rise by FILL_RISE from the cell they were reached
+    // from, so flats still drain.
+    //
+    private static void fillPits (double[] dem, int width, int height) {
+        boolean[] done = new boolean[width * height];
+        Heap heap = new Heap();
+        for (int row = 0; row < height; row += 1) {
+            for (int column = 0; column < width; column += 1) {
+                if ((row == 0) || (column == 0) || (row == height - 1) || (column == width - 1)) {
+                    int cell = row * width + column;
+                    done[cell] = true;
+                    heap.push(dem[cell], cell);
+                }
+            }
+        }
+        while (heap.size() > 0) {
+            int cell = heap.pop();
+            double z = dem[cell];
+            for (int code : CODES) {
+                int column = cell % width + FlowTracer.getColumnOffset(code);
+                int row = cell / width + FlowTracer.getRowOffset(code);
+                if ((column < 0) || (column >= width) || (row < 0) || (row >= height) || done[row * width + column]) {
+                    continue;
+                }
+                int neighbour = row * width + column;
+                done[neighbour] = true;
+                if (dem[neighbour] <= z) {
+                    dem[neighbour] = z + FILL_RISE;
+                }
+                heap.push(dem[neighbour], neighbour);
+            }
+        }
+    }
+
+    //
+    // Binary min-heap of cells keyed by elevation
+    //
+    private static final class Heap
+    {
+        private double[] m_keys = new double[1024];
+        private int[] m_cells = new int[1024];
+        private int m_size = 0;
+
+        public int size () {
+            return m_size;
+        }
+
+        public void push (double key, int cell) {
+            if (m_size == m_keys.length) {
+                m_keys = Arrays.copyOf(m_keys, m_size * 2);
+                m_cells = Arrays.copyOf(m_cells, m_size * 2);
+            }
+            int i = m_size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (m_keys[parent] <= key) {
+                    break;
+                }
+                m_keys[i] = m_keys[parent];
+                m_cells[i] = m_cells[parent];
+                i = parent;
+            }
+            m_keys[i] = key;
+            m_cells[i] = cell;
+        }
+
+        public int pop () {
+            int result = m_cells[0];
+            m_size -= 1;
+            double key = m_keys[m_size];
+            int cell = m_cells[m_size];
+            int i = 0;
+            while (true) {
+                int child = i * 2 + 1;
+                if (child >= m_size) {
+                    break;
+                }
+                if ((child + 1 < m_size) && (m_keys[child + 1] < m_keys[child])) {
+                    child += 1;
+                }
+                if (m_keys[child] >= key) {
+                    break;
+                }
+                m_keys[i] = m_keys[child];
+                m_cells[i] = m_cells[child];
+                i = child;
+            }
+            m_keys[i] = key;
+            m_cells[i] = cell;
+            return result;
+        }
+    }
+
+    //
+    // Bilinear value noise with lattice points every period cells
+    //
+    private static void addNoise (double[] values, int width, int height, int period, double amplitude, long seed) {
+        int across = width / period + 2;
+        int down = height / period + 2;
+        double[] lattice = new double[across * down];
+        Random random = new Random(seed);
+        for (int i = 0; i < lattice.length; i += 1) {
+            lattice[i] = random.nextDouble() * amplitude;
+        }
+        for (int row = 0; row < height; row += 1) {
+            int r = row / period;
+            double fy = smooth((row % period) / (double)period);
+            for (int column = 0; column < width; column += 1) {
+                int c = column / period;
+                double fx = smooth((column % period) / (double)period);
+                double top = lattice[r * across + c] * (1 - fx) + lattice[r * across + c + 1] * fx;
+                double bottom = lattice[(r + 1) * across + c] * (1 - fx) + lattice[(r + 1) * across + c + 1] * fx;
+                values[row * width + column] += top * (1 - fy) + bottom * fy;
+            }
+        }
+    }
+
+    private static double smooth (double t) {
+        return t * t * (3 - 2 * t);
+    }
+
+    //
+    // D8 directions by steepest descent over the DEM; 0 where no neighbour
+    // is lower, which after filling happens only on flat edges. Directions
+    // off the edge of the grid are kept, so paths can leave it.
+    //
+    public static double[] d8 (double[] dem, int width, int height) {
+        double[] result = new double[width * height];
+        for (int row = 0; row < height; row += 1) {
+            for (int column = 0; column < width; column += 1) {
+                double z = dem[row * width + column];
+                double steepest = 0;
+                int direction = 0;
+                for (int code : CODES) {
+                    int dc = FlowTracer.getColumnOffset(code);
+                    int dr = FlowTracer.getRowOffset(code);
+                    int c = column + dc;
+                    int r = row + dr;
+                    // Just beyond the edge counts as a little lower
+                    double zn = ((c >= 0) && (c < width) && (r >= 0) && (r < height)) ? dem[r * width + c] : z - 1e-3;
+                    double drop = (z - zn) / (((dc != 0) && (dr != 0)) ? Math.sqrt(2) : 1);
+                    if (drop > steepest) {
+                        steepest = drop;
+                        direction = code;
+                    }
+                }
+                result[row * width + column] = direction;
+            }
+        }
+        return result;
+    }
+
+    //
+    // Number of cells draining through each cell, itself included, worked
+    // out by passing counts downstream from the cells nothing flows into
+    //
+    public static int[] accumulation (double[] d8, int width, int height) {
+        int count = width * height;
+        int[] downstream = new int[count];
+        int[] inflows = new int[count];
+        for (int cell = 0; cell < count; cell += 1) {
+            int direction = (int)d8[cell];
+            int column = cell % width + FlowTracer.getColumnOffset(direction);
+            int row = cell / width + FlowTracer.getRowOffset(direction);
+            boolean inside = (direction != 0) && (column >= 0) && (column < width) && (row >= 0) && (row < height);
+            downstream[cell] = inside ? row * width + column : -1;
+            if (inside) {
+                inflows[downstream[cell]] += 1;
+            }
+        }
+        int[] result = new int[count];
+        Arrays.fill(result, 1);
+        int[] ready = new int[count];
+        int readyCount = 0;
+        for (int cell = 0; cell < count; cell += 1) {
+            if (inflows[cell] == 0) {
+                ready[readyCount++] = cell;
+            }
+        }
+        for (int head = 0; head < readyCount; head += 1) {
+            int cell = ready[head];
+            int next = downstream[cell];
+            if (next >= 0) {
+                result[next] += result[cell];
+                inflows[next] -= 1;
+                if (inflows[next] == 0) {
+                    ready[readyCount++] = next;
+                }
+            }
+        }
+        return result;
+    }
+
+    public static ArrayGrid grid (int width, int height, double[] values, int tileSize) {
+        return new ArrayGrid(width, height, values, tileSize, 0, height * CELL_SIZE, CELL_SIZE, CELL_SIZE);
+    }
+
+    //
+    // Uniformly random map points inside a grid, as { xs, ys }
+    //
+    public static double[][] points (int width, int height, int count, long seed) {
+        Random random = new Random(seed);
+        double[] xs = new double[count];
+        double[] ys = new double[count];
+        for (int i = 0; i < count; i += 1) {
+            xs[i] = random.nextDouble() * width * CELL_SIZE;
+            ys[i] = random.nextDouble() * height * CELL_SIZE;
+        }
+        return new double[][] { xs, ys };
+    }
+}
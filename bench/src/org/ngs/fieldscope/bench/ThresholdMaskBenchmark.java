@@ -0,0 +1,59 @@
+package org.ngs.fieldscope.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.ngs.fieldscope.ArrayGrid;
+import org.ngs.fieldscope.BoundingCurve;
+import org.ngs.fieldscope.ThresholdMask;
+import org.ngs.fieldscope.TiledGrid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//
+// The queryRaster operation on a DEM: masking the cells in an elevation
+// band, and outlining a mask already made. The band is chosen to cut the
+// surface into many separate pieces, which is the hard case for outlining.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThresholdMaskBenchmark
+{
+    private static final double MIN = 450;
+    private static final double MAX = 550;
+
+    @Param({ "1024", "4096" })
+    public int size;
+
+    private ArrayGrid m_dem;
+    private boolean[][] m_mask;
+
+    @Setup
+    public void setUp () throws IOException {
+        m_dem = SyntheticGrids.grid(size, size, SyntheticGrids.dem(size, size, 1), TiledGrid.DEFAULT_TILE_SIZE);
+        m_mask = ThresholdMask.compute(m_dem, MIN, MAX);
+    }
+
+    @Benchmark
+    public boolean[][] mask () throws IOException {
+        return ThresholdMask.compute(m_dem, MIN, MAX);
+    }
+
+    @Benchmark
+    public List<double[]> outline () {
+        return new BoundingCurve(m_mask).getRings(m_dem.getLeft(), m_dem.getTop(), m_dem.getCellWidth(), m_dem.getCellHeight());
+    }
+}
@@ -0,0 +1,79 @@
+package org.ngs.fieldscope.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.ngs.fieldscope.ArrayGrid;
+import org.ngs.fieldscope.BoundingCurve;
+import org.ngs.fieldscope.TiledGrid;
+import org.ngs.fieldscope.UpstreamTracer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//
+// The upstream area of an outlet, alone and with its outline as the
+// UpstreamArea service computes it. The outlet is the cell whose drainage
+// area is closest to the given fraction of the largest in the grid.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpstreamBenchmark
+{
+    private static final int CACHED_TILES = 256;
+
+    @Param({ "1024", "4096" })
+    public int size;
+
+    @Param({ "0.01", "0.1", "1" })
+    public double fraction;
+
+    private ArrayGrid m_grid;
+    private int m_column;
+    private int m_row;
+
+    @Setup
+    public void setUp () {
+        double[] d8 = SyntheticGrids.d8(SyntheticGrids.dem(size, size, 1), size, size);
+        m_grid = SyntheticGrids.grid(size, size, d8, TiledGrid.DEFAULT_TILE_SIZE);
+        int[] accumulation = SyntheticGrids.accumulation(d8, size, size);
+        int max = 0;
+        for (int value : accumulation) {
+            max = Math.max(max, value);
+        }
+        double target = fraction * max;
+        int outlet = 0;
+        for (int i = 0; i < accumulation.length; i += 1) {
+            if (Math.abs(accumulation[i] - target) < Math.abs(accumulation[outlet] - target)) {
+                outlet = i;
+            }
+        }
+        m_column = outlet % size;
+        m_row = outlet / size;
+    }
+
+    @Benchmark
+    public int trace () throws IOException {
+        return UpstreamTracer.trace(m_grid, m_column, m_row, CACHED_TILES).cellCount;
+    }
+
+    @Benchmark
+    public List<double[]> traceAndOutline () throws IOException {
+        UpstreamTracer.Mask mask = UpstreamTracer.trace(m_grid, m_column, m_row, CACHED_TILES);
+        double left = m_grid.getLeft() + mask.originColumn * m_grid.getCellWidth();
+        double top = m_grid.getTop() - mask.originRow * m_grid.getCellHeight();
+        return new BoundingCurve(mask.cells).getRings(left, top, m_grid.getCellWidth(), m_grid.getCellHeight());
+    }
+}
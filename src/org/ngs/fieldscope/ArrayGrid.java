@@ -0,0 +1,44 @@
+package org.ngs.fieldscope;
+
+//
+// A TiledGrid held in memory as one row-major array, with NaN marking
+// NoData. Tiles are copied out of the array, so kernels see the same tile
+// boundaries they would on a raster.
+//
+public class ArrayGrid extends TiledGrid
+{
+    private final double[] m_values;
+
+    public ArrayGrid (int width, int height, double[] values) {
+        this(width, height, values, DEFAULT_TILE_SIZE, 0, height, 1, 1);
+    }
+
+    public ArrayGrid (int width, int height, double[] values, int tileSize, double left, double top, double cellWidth, double cellHeight) {
+        super(width, height, tileSize, left, top, cellWidth, cellHeight);
+        if (values.length != width * height) {
+            throw new IllegalArgumentException("expected " + (width * height) + " values, found " + values.length);
+        }
+        m_values = values;
+    }
+
+    public double get (int column, int row) {
+        return contains(column, row) ? m_values[row * getWidth() + column] : Double.NaN;
+    }
+
+    @Override
+    public boolean isThreadSafe () {
+        return true;
+    }
+
+    public Tile readTile (int tileIndex) {
+        int originColumn = getTileOriginColumn(tileIndex);
+        int originRow = getTileOriginRow(tileIndex);
+        int width = Math.min(getTileSize(), getWidth() - originColumn);
+        int height = Math.min(getTileSize(), getHeight() - originRow);
+        double[] values = new double[width * height];
+        for (int row = 0; row < height; row += 1) {
+            System.arraycopy(m_values, (originRow + row) * getWidth() + originColumn, values, row * width, width);
+        }
+        return new Tile(originColumn, originRow, width, height, values);
+    }
+}
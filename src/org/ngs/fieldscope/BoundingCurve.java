@@ -0,0 +1,186 @@
+package org.ngs.fieldscope;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//
+// Outlines of the filled cells of a [column][row] mask, as closed rings
+// along cell edges.
+//
+// Translated from BoundingCurve.java in the My World GIS codebase
+//
+public final class BoundingCurve
+{
+    private static enum CurveDirection { RIGHT, UP, LEFT, DOWN };
+
+    private int m_width;
+    private int m_height;
+    private boolean[][] m_isFilled;
+    private boolean[][] m_cellVisited;
+    private int[] m_xs;
+    private int[] m_ys;
+    private int m_count;
+
+    public BoundingCurve (boolean[][] grid) {
+        m_isFilled = grid;
+        m_width = grid.length;
+        m_height = grid[0].length;
+        m_cellVisited = new boolean[m_width][m_height];
+        m_xs = new int[64];
+        m_ys = new int[64];
+    }
+
+    //
+    // Rings in map coordinates, given those of the top left corner of the
+    // mask; each ring is an array of x, y pairs
+    //
+    public List<double[]> getRings (double left, double top, double cellWidth, double cellHeight) {
+        List<double[]> result = new ArrayList<double[]>();
+        for (int x = 0; x <= m_width; x += 1) {
+            for (int y = 0; y <= m_height; y += 1) {
+                if ((!cellVisited(x, y)) && isFilled(x, y) && (!isFilled(x - 1, y))) {
+                    getCurve(x, y);
+                    double[] ring = new double[m_count * 2];
+                    for (int i = 0; i < m_count; i += 1) {
+                        ring[i * 2] = left + m_xs[i] * cellWidth;
+                        ring[i * 2 + 1] = top - m_ys[i] * cellHeight;
+                    }
+                    result.add(ring);
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isFilled (int x, int y) {
+        if ((x < 0) || (y < 0) || (x >= m_width) || (y >= m_height)) {
+            return false;
+        } else {
+            return m_isFilled[x][y];
+        }
+    }
+
+    private boolean cellVisited (int x, int y) {
+        if ((x < 0) || (y < 0) || (x >= m_width) || (y >= m_height)) {
+            return false;
+        } else {
+            return m_cellVisited[x][y];
+        }
+    }
+
+    private void markVisited (int x, int y) {
+        if ((x >= 0) && (x < m_width) && (y >= 0) && (y < m_height)) {
+            m_cellVisited[x][y] = true;
+        }
+    }
+
+    private void addPoint (int x, int y) {
+        if (m_count == m_xs.length) {
+            m_xs = Arrays.copyOf(m_xs, m_count * 2);
+            m_ys = Arrays.copyOf(m_ys, m_count * 2);
+        }
+        m_xs[m_count] = x;
+        m_ys[m_count] = y;
+        m_count += 1;
+    }
+
+    //
+    // Trace one ring into m_xs and m_ys
+    //
+    private void getCurve (int startX, int startY) {
+        markVisited(startX, startY);
+        m_count = 0;
+        addPoint(startX, startY);
+        int x = startX;
+        int y = startY + 1;
+        CurveDirection direction = CurveDirection.UP;
+        while ((x != startX) || (y != startY)) {
+            CurveDirection newDirection = direction;
+            switch (direction) {
+                case UP:
+                    if (isFilled(x - 1, y) && isFilled(x, y)) {
+                        newDirection = CurveDirection.LEFT;
+                        markVisited(x - 1, y);
+                    } else if (isFilled(x, y)) {
+                        newDirection = CurveDirection.UP;
+                        markVisited(x, y);
+                    } else {
+                        newDirection = CurveDirection.RIGHT;
+                    }
+                    break;
+                case RIGHT:
+                    if (isFilled(x, y) && isFilled(x, y - 1)) {
+                        newDirection = CurveDirection.UP;
+                        markVisited(x, y);
+                    } else if (isFilled(x, y - 1)) {
+                        newDirection = CurveDirection.RIGHT;
+                        markVisited(x, y - 1);
+                    } else {
+                        newDirection = CurveDirection.DOWN;
+                    }
+                    break;
+                case DOWN:
+                    if (isFilled(x, y - 1) && isFilled(x - 1, y - 1)) {
+                        newDirection = CurveDirection.RIGHT;
+                        markVisited(x, y - 1);
+                    } else if (isFilled(x - 1, y - 1)) {
+                        newDirection = CurveDirection.DOWN;
+                        if ((x < 2) || isFilled(x - 2, y - 1))
+                            markVisited(x - 1, y - 1);
+                    } else {
+                        newDirection = CurveDirection.LEFT;
+                    }
+                    break;
+                case LEFT:
+                    if (isFilled(x - 1, y - 1) && isFilled(x - 1, y)) {
+                        newDirection = CurveDirection.DOWN;
+                        if ((x < 2) || isFilled(x - 2, y - 1))
+                            markVisited(x - 1, y - 1);
+                    } else if (isFilled(x - 1, y)) {
+                        newDirection = CurveDirection.LEFT;
+                        markVisited(x - 1, y);
+                    } else {
+                        newDirection = CurveDirection.UP;
+                        markVisited(x, y);
+                    }
+                    break;
+                default:
+                    throw new RuntimeException("this shouldn't happen");
+            }
+
+            addPoint(x, y);
+
+            switch (newDirection) {
+                case UP:
+                    y += 1;
+                    break;
+                case RIGHT:
+                    x += 1;
+                    break;
+                case DOWN:
+                    y -= 1;
+                    break;
+                case LEFT:
+                    x -= 1;
+                    break;
+            }
+            direction = newDirection;
+        }
+
+        // Be absolutely sure the curve is closed
+        if ((m_xs[0] != m_xs[m_count - 1]) || (m_ys[0] != m_ys[m_count - 1])) {
+            addPoint(startX, startY);
+        }
+
+        // Reverse, so rings run the way ArcObjects expects
+        for (int i = 0, j = m_count - 1; i < j; i += 1, j -= 1) {
+            int t = m_xs[i];
+            m_xs[i] = m_xs[j];
+            m_xs[j] = t;
+            t = m_ys[i];
+            m_ys[i] = m_ys[j];
+            m_ys[j] = t;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.ngs.fieldscope;
+
+import com.esri.arcgis.datasourcesraster.IRasterBandCollection;
+import com.esri.arcgis.datasourcesraster.IRasterProps;
+import com.esri.arcgis.datasourcesraster.IRasterPropsProxy;
+import com.esri.arcgis.geodatabase.IDataset;
+import com.esri.arcgis.geodatabase.IFeatureClass;
+import com.esri.arcgis.geodatabase.IRaster;
+import com.esri.arcgis.server.json.JSONObject;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+//
+// Process-wide pool of rasters opened from raster catalogs by name, so that
+// requests landing in the same catalog item skip both the catalog query
+// and the dataset open. Rasters are weighed by the nominal size of their
+// decoded pixel data. There is one entry per raster, weighed once; as
+// elsewhere in this package raster handles are not shared between threads,
+// so the entry holds a handle for each thread that has asked for it, opened
+// by that thread.
+//
+// Optionally, decoded tiles are also retained, in a second pool shared by
+// all threads and weighed by the bytes they hold.
+//
+// The pools are process-wide, and so are their limits: each is the largest
+// that any service has asked for, whichever order the services start in. A
+// service that does not want the tile pool (a limit of zero) still shares
+// it if another service has enabled it.
+//
+public class CatalogRasters
+{
+    private static LruCache<String, Handles> s_rasters = null;
+    private static LruCache<String, TiledRaster.Tile> s_tiles = null;
+
+    public static synchronized void configure (int maxRasters, long maxRasterBytes, long maxTileBytes) {
+        if (s_rasters == null) {
+            s_rasters = new LruCache<String, Handles>(maxRasters, maxRasterBytes, new LruCache.Weigher<Handles>() {
+                public long weigh (Handles handles) {
+                    try {
+                        IRaster raster = handles.getFirst();
+                        IRasterProps props = new IRasterPropsProxy(raster);
+                        int bands = ((IRasterBandCollection)raster).getCount();
+                        return (long)props.getWidth() * props.getHeight() * bands * TiledRaster.getBytesPerPixel(props.getPixelType());
+                    } catch (IOException e) {
+                        return 1;
+                    }
+                }
+            });
+        } else {
+            s_rasters.setLimits(Math.max(maxRasters, s_rasters.getMaxEntries()), Math.max(maxRasterBytes, s_rasters.getMaxWeight()));
+        }
+        if (maxTileBytes <= 0) {
+            return;
+        } else if (s_tiles == null) {
+            s_tiles = new LruCache<String, TiledRaster.Tile>(Integer.MAX_VALUE, maxTileBytes, new LruCache.Weigher<TiledRaster.Tile>() {
+                public long weigh (TiledRaster.Tile tile) {
+                    return (long)tile.width * tile.height * 8;
+                }
+            });
+        } else {
+            s_tiles.setLimits(Integer.MAX_VALUE, Math.max(maxTileBytes, s_tiles.getMaxWeight()));
+        }
+    }
+
+    private static synchronized LruCache<String, Handles> getRasterPool () {
+        return s_rasters;
+    }
+
+    private static synchronized LruCache<String, TiledRaster.Tile> getTilePool () {
+        return s_tiles;
+    }
+
+    //
+    // The raster with the given name in a catalog, or null if there is none
+    //
+    public static IRaster get (final IFeatureClass catalog, final String name) throws IOException {
+        LruCache<String, Handles> pool = getRasterPool();
+        if (pool == null) {
+            return FieldScopeSOE.Util.findRaster(catalog, name);
+        }
+        // Missing items are not cached, so ones added later are found
+        final long thread = Thread.currentThread().getId();
+        Handles handles = pool.get(getKey(catalog, name), new LruCache.Loader<String, Handles>() {
+            public Handles load (String key) throws IOException {
+                IRaster raster = FieldScopeSOE.Util.findRaster(catalog, name);
+                return (raster != null) ? new Handles(thread, raster) : null;
+            }
+        });
+        if (handles == null) {
+            return null;
+        }
+        IRaster result = handles.get(thread);
+        if (result == null) {
+            result = FieldScopeSOE.Util.findRaster(catalog, name);
+            if (result != null) {
+                handles.put(thread, result);
+            }
+        }
+        return result;
+    }
+
+    //
+    // One band of a catalog raster read in tiles, the decoded tiles being
+    // kept in the shared pool if it is enabled; null if there is no such
+    // raster
+    //
+    public static TiledRaster getTiles (IFeatureClass catalog, String name, int band) throws IOException {
+        IRaster raster = get(catalog, name);
+        if (raster == null) {
+            return null;
+        }
+        LruCache<String, TiledRaster.Tile> tiles = getTilePool();
+        if (tiles == null) {
+            return new TiledRaster(raster, band);
+        }
+        return new PooledTiledRaster(raster, band, tiles, getKey(catalog, name) + "\n" + band + "\n");
+    }
+
+    public static JSONObject toJsonObject () {
+        JSONObject result = new JSONObject();
+        LruCache<String, Handles> rasters = getRasterPool();
+        if (rasters != null) {
+            result.put("rasters", rasters.toJsonObject());
+        }
+        LruCache<String, TiledRaster.Tile> tiles = getTilePool();
+        if (tiles != null) {
+            result.put("tiles", tiles.toJsonObject());
+        }
+        return result;
+    }
+
+    public static void invalidateAll () {
+        LruCache<String, Handles> rasters = getRasterPool();
+        if (rasters != null) {
+            rasters.invalidateAll();
+        }
+        LruCache<String, TiledRaster.Tile> tiles = getTilePool();
+        if (tiles != null) {
+            tiles.invalidateAll();
+        }
+    }
+
+    //
+    // Catalogs are told apart by workspace path and dataset name, so every
+    // service opening the same catalog shares its entries
+    //
+    private static String getKey (IFeatureClass catalog, String name) throws IOException {
+        IDataset dataset = (IDataset)catalog;
+        return dataset.getWorkspace().getPathName() + "\n" + dataset.getName() + "\n" + name;
+    }
+
+    //
+    // The handles opened on one catalog raster, by thread id
+    //
+    private static final class Handles
+    {
+        private final IRaster m_first;
+        private final Map<Long, IRaster> m_rasters;
+
+        public Handles (long thread, IRaster raster) {
+            m_first = raster;
+            m_rasters = new HashMap<Long, IRaster>();
+            m_rasters.put(Long.valueOf(thread), raster);
+        }
+
+        //
+        // The handle opened by the thread that loaded the entry, which is
+        // also the thread that weighs it
+        //
+        public IRaster getFirst () {
+            return m_first;
+        }
+
+        public synchronized IRaster get (long thread) {
+            return m_rasters.get(Long.valueOf(thread));
+        }
+
+        public synchronized void put (long thread, IRaster raster) {
+            m_rasters.put(Long.valueOf(thread), raster);
+        }
+    }
+
+    private static final class PooledTiledRaster extends TiledRaster
+    {
+        private final LruCache<String, TiledRaster.Tile> m_pool;
+        private final String m_prefix;
+
+        public PooledTiledRaster (IRaster raster, int band, LruCache<String, TiledRaster.Tile> pool, String prefix) throws IOException {
+            super(raster, band);
+            m_pool = pool;
+            m_prefix = prefix;
+        }
+
+        @Override
+        public Tile readTile (final int tileIndex) throws IOException {
+            return m_pool.get(m_prefix + tileIndex, new LruCache.Loader<String, TiledRaster.Tile>() {
+                public TiledRaster.Tile load (String key) throws IOException {
+                    return PooledTiledRaster.super.readTile(tileIndex);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.ngs.fieldscope;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+//
+// Projection between spatial references whose relationship is plain
+// arithmetic, applied to arrays of interleaved x, y coordinates before any
+// geometry is built from them. This covers the pairs web clients ask for
+// most: WGS 84 geographic (4326) and spherical Web Mercator (102100, 3857
+// and its older codes). Anything else needs the projection engine, so get
+// returns null and callers fall back to IGeometry.project.
+//
+public abstract class CoordinateTransform
+{
+    public static final int WGS84 = 4326;
+
+    private static final int[] WEB_MERCATOR = { 102100, 3857, 102113, 900913 };
+    private static final double RADIUS = 6378137;
+    private static final double MAX_LATITUDE = 85.0511287798066;
+
+    //
+    // Points per task when a long array is split across workers
+    //
+    private static final int PARALLEL_POINTS = 1 << 16;
+
+    //
+    // Transform for a pair of factory codes, or null if there is no
+    // arithmetic one or the codes are the same
+    //
+    public static CoordinateTransform get (int fromCode, int toCode) {
+        if ((fromCode == WGS84) && isWebMercator(toCode)) {
+            return new CoordinateTransform() {
+                protected void transform (double[] xy, int start, int end) {
+                    for (int i = start * 2; i < end * 2; i += 2) {
+                        double latitude = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, xy[i + 1]));
+                        xy[i] = RADIUS * Math.toRadians(xy[i]);
+                        xy[i + 1] = RADIUS * Math.log(Math.tan(Math.PI / 4 + Math.toRadians(latitude) / 2));
+                    }
+                }
+            };
+        } else if (isWebMercator(fromCode) && (toCode == WGS84)) {
+            return new CoordinateTransform() {
+                protected void transform (double[] xy, int start, int end) {
+                    for (int i = start * 2; i < end * 2; i += 2) {
+                        xy[i] = Math.toDegrees(xy[i] / RADIUS);
+                        xy[i + 1] = Math.toDegrees(2 * Math.atan(Math.exp(xy[i + 1] / RADIUS)) - Math.PI / 2);
+                    }
+                }
+            };
+        } else if ((fromCode != toCode) && isWebMercator(fromCode) && isWebMercator(toCode)) {
+            // Different codes for the same projection
+            return new CoordinateTransform() {
+                protected void transform (double[] xy, int start, int end) {
+                }
+            };
+        }
+        return null;
+    }
+
+    private static boolean isWebMercator (int code) {
+        for (int candidate : WEB_MERCATOR) {
+            if (code == candidate) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //
+    // Transform points start (inclusive) to end (exclusive) in place
+    //
+    protected abstract void transform (double[] xy, int start, int end);
+
+    public void transform (double[] xy) {
+        transform(xy, 0, xy.length / 2);
+    }
+
+    //
+    // Transform in place, splitting very long arrays across workers if
+    // there are any
+    //
+    public void transform (final double[] xy, ExecutorService workers) throws IOException {
+        int count = xy.length / 2;
+        if ((workers == null) || (count < PARALLEL_POINTS * 2)) {
+            transform(xy, 0, count);
+            return;
+        }
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int start = 0; start < count; start += PARALLEL_POINTS) {
+            final int from = start;
+            final int to = Math.min(count, start + PARALLEL_POINTS);
+            tasks.add(new Callable<Object>() {
+                public Object call () {
+                    transform(xy, from, to);
+                    return null;
+                }
+            });
+        }
+        WorkerPool.invokeAll(workers, tasks);
+    }
+}
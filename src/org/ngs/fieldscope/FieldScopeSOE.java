@@ -1,17 +1,16 @@
 package org.ngs.fieldscope;
 
 import com.esri.arcgis.carto.IMapLayerInfo;
-import com.esri.arcgis.carto.IMapLayerInfos;
 import com.esri.arcgis.carto.IMapServer3;
-import com.esri.arcgis.carto.IMapServerDataAccess;
 import com.esri.arcgis.datasourcesraster.IRaster2;
-import com.esri.arcgis.datasourcesraster.IRasterProps;
+import com.esri.arcgis.datasourcesraster.IRasterPropsProxy;
 import com.esri.arcgis.datasourcesraster.Raster;
+import com.esri.arcgis.geodatabase.IDataset;
+import com.esri.arcgis.geodatabase.IDatasetProxy;
 import com.esri.arcgis.geodatabase.IFeature;
 import com.esri.arcgis.geodatabase.IFeatureClass;
 import com.esri.arcgis.geodatabase.IFeatureCursor;
 import com.esri.arcgis.geodatabase.IField;
-import com.esri.arcgis.geodatabase.IPnt;
 import com.esri.arcgis.geodatabase.IQueryFilter;
 import com.esri.arcgis.geodatabase.IRaster;
 import com.esri.arcgis.geodatabase.IRasterCatalogItem;
@@ -29,15 +28,18 @@ import com.esri.arcgis.geometry.ISpatialReference;
 import com.esri.arcgis.geometry.ISpatialReferenceFactory;
 import com.esri.arcgis.geometry.ISpatialReferenceFactory2;
 import com.esri.arcgis.geometry.ISpatialReferenceFactory3;
+import com.esri.arcgis.geometry.Multipoint;
 import com.esri.arcgis.geometry.Point;
 import com.esri.arcgis.geometry.Polygon;
 import com.esri.arcgis.geometry.Polyline;
 import com.esri.arcgis.geometry.Ring;
 import com.esri.arcgis.geometry.SpatialReferenceEnvironment;
+import com.esri.arcgis.geometry._WKSPoint;
 import com.esri.arcgis.geometry.esriGeometryType;
 import com.esri.arcgis.interop.AutomationException;
 import com.esri.arcgis.server.IServerObjectExtension;
 import com.esri.arcgis.server.IServerObjectHelper;
+import com.esri.arcgis.server.json.JSONArray;
 import com.esri.arcgis.server.json.JSONObject;
 import com.esri.arcgis.system.ILog;
 import com.esri.arcgis.system.IObjectConstruct;
@@ -46,14 +48,20 @@ import com.esri.arcgis.system.IRESTRequestHandler;
 import com.esri.arcgis.system.ITime;
 import com.esri.arcgis.system.ServerUtilities;
 import com.esri.arcgis.system.Time;
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
 
 
 public abstract class FieldScopeSOE implements IServerObjectExtension, IObjectConstruct, IRESTRequestHandler
@@ -63,6 +71,26 @@ public abstract class FieldScopeSOE implements IServerObjectExtension, IObjectCo
     private String m_soeName;
     private ILog m_logger;
     private IServerObjectHelper m_serverObjectHelper;
+    private final Metrics m_metrics = new Metrics();
+    private volatile Set<String> m_operationNames = null;
+    private String m_tileCacheDirectory = "";
+    private boolean m_tileCacheCompression = false;
+    private volatile LayerRegistry m_layerRegistry = null;
+
+    //
+    // Spatial references asked for by clients, by wkid or wkt, so a request
+    // doesn't create a factory and a new spatial reference each time
+    //
+    private static final int MAX_CACHED_SPATIAL_REFERENCES = 64;
+    private ISpatialReferenceFactory m_spatialReferenceFactory = null;
+    private final Map<String, ISpatialReference> m_spatialReferences = new LinkedHashMap<String, ISpatialReference>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<String, ISpatialReference> eldest) {
+            return size() > MAX_CACHED_SPATIAL_REFERENCES;
+        }
+    };
 
     public String getName () {
         return m_soeName;
@@ -72,6 +100,10 @@ public abstract class FieldScopeSOE implements IServerObjectExtension, IObjectCo
         return m_serverObjectHelper;
     }
 
+    public Metrics getMetrics () {
+        return m_metrics;
+    }
+
     public FieldScopeSOE () {
         m_soeName = getClass().getSimpleName();
     }
@@ -84,12 +116,25 @@ public abstract class FieldScopeSOE implements IServerObjectExtension, IObjectCo
 
     public void construct (IPropertySet propertySet) throws IOException, AutomationException {
         logInfo(m_soeName + " starting up");
+        // Layers are read once here; a restart reads them again
+        IMapServer3 mapServer = (IMapServer3)m_serverObjectHelper.getServerObject();
+        if (mapServer == null) {
+            throw new IOException("Unable to access the map server.");
+        }
+        m_layerRegistry = LayerRegistry.build(mapServer);
+        if (propertySet.getProperty("TileCacheDirectory") != null) {
+            m_tileCacheDirectory = propertySet.getProperty("TileCacheDirectory").toString().trim();
+        }
+        if (propertySet.getProperty("TileCacheCompression") != null) {
+            m_tileCacheCompression = Boolean.parseBoolean(propertySet.getProperty("TileCacheCompression").toString());
+        }
     }
     
     public void shutdown() throws IOException, AutomationException {
         logInfo(m_soeName + " shutting down");
         m_soeName = null;
         m_serverObjectHelper = null;
+        m_layerRegistry = null;
         m_logger = null;
     }
     
@@ -100,11 +145,16 @@ public abstract class FieldScopeSOE implements IServerObjectExtension, IObjectCo
                                     String outputFormat,
                                     String requestProperties, 
                                     String[] responseProperties) throws IOException, AutomationException {
+        Metrics.Operation operation = m_metrics.getOperation(getMetricsKey(operationName));
+        long started = m_metrics.begin(operation);
+        boolean failed = true;
         try {
             // if no operationName is specified send description of specified
             // resource
             byte[] response;
-            if (operationName.length() == 0) {
+            if ((operationName.length() == 0) && resourceName.equalsIgnoreCase("stats")) {
+                response = getStats().toString().getBytes("utf-8");
+            } else if (operationName.length() == 0) {
                 response = getResource(resourceName);
             } else {
                 JSONObject operationInputJSON = new JSONObject(operationInput);
@@ -113,13 +163,62 @@ public abstract class FieldScopeSOE implements IServerObjectExtension, IObjectCo
                 JSONObject responsePropertiesJSON = new JSONObject(responsePropertiesMap);
                 responseProperties[0] = responsePropertiesJSON.toString();
             }
+            failed = false;
             return response;
         } catch (Exception e) {
             String message = "Exception occurred while handling REST request for SOE " + this.getClass().getName() + ":" + e.getMessage();
             logError(message);
             return ServerUtilities.sendError(0, message, null).getBytes("utf-8");
+        } finally {
+            m_metrics.end(operation, started, failed);
         }
     }
+
+    //
+    // Name a request is counted under in the metrics: "resource" for a
+    // resource, the operation name for an operation in the schema, and
+    // "other" for anything else, so clients can't add entries at will
+    //
+    private String getMetricsKey (String operationName) {
+        if (operationName.length() == 0) {
+            return "resource";
+        }
+        Set<String> names = m_operationNames;
+        if (names == null) {
+            names = new HashSet<String>();
+            try {
+                addOperationNames(new JSONObject(getSchema()), names);
+            } catch (Exception e) {
+                logWarning("unable to read operation names from schema: " + e.getMessage());
+            }
+            m_operationNames = names;
+        }
+        String key = operationName.toLowerCase();
+        return names.contains(key) ? key : "other";
+    }
+
+    private static void addOperationNames (JSONObject resource, Set<String> names) {
+        JSONArray operations = resource.optJSONArray("operations");
+        for (int i = 0; (operations != null) && (i < operations.length()); i += 1) {
+            names.add(operations.getJSONObject(i).getString("name").toLowerCase());
+        }
+        JSONArray resources = resource.optJSONArray("resources");
+        for (int i = 0; (resources != null) && (i < resources.length()); i += 1) {
+            addOperationNames(resources.getJSONObject(i), names);
+        }
+    }
+
+    //
+    // Contents of the stats resource: request metrics, plus whatever a
+    // service adds about its own caches
+    //
+    protected JSONObject getStats () throws Exception {
+        return m_metrics.toJsonObject();
+    }
+
+    protected static JSONObject createStatsResource () throws IOException {
+        return ServerUtilities.createResource("stats", "Request, cache and raster read metrics for this service", false, false);
+    }
     
     protected abstract byte[] getResource (String resourceName) throws Exception;
     
@@ -142,81 +241,190 @@ public abstract class FieldScopeSOE implements IServerObjectExtension, IObjectCo
 
     protected ISpatialReference getSpatialReferenceParam (JSONObject input, String name) throws IOException {
         Object outSRParam = input.opt(name);
-        if (outSRParam != null) {
-            ISpatialReferenceFactory factory = new SpatialReferenceEnvironment();
-            if (outSRParam instanceof Integer) {
-                return ((ISpatialReferenceFactory2)factory).createSpatialReference((Integer)outSRParam);
-            } else if (outSRParam instanceof JSONObject) {
-                JSONObject jsonParam = (JSONObject)outSRParam;
-                int wkid = jsonParam.optInt("wkid", -1);
-                String wkt = jsonParam.optString("wkt", null);
-                if (wkid > 0) {
-                    return ((ISpatialReferenceFactory2)factory).createSpatialReference(wkid);
-                } else if (wkt != null) {
-                    ISpatialReference[] result = { null };
-                    int[] bytesRead = { 0 };
-                    ((ISpatialReferenceFactory3)factory).createESRISpatialReference(wkt, result, bytesRead);
-                    return result[0];
-                }
+        if (outSRParam instanceof Integer) {
+            return getSpatialReference((Integer)outSRParam, null);
+        } else if (outSRParam instanceof JSONObject) {
+            JSONObject jsonParam = (JSONObject)outSRParam;
+            int wkid = jsonParam.optInt("wkid", -1);
+            String wkt = jsonParam.optString("wkt", null);
+            if (wkid > 0) {
+                return getSpatialReference(wkid, null);
+            } else if (wkt != null) {
+                return getSpatialReference(-1, wkt);
             }
         }
         return null;
     }
 
-    protected Object getDataSourceByID (int index) throws IOException {
-        IMapServer3 mapServer = (IMapServer3)m_serverObjectHelper.getServerObject();
-        if (mapServer == null) {
-            throw new IOException("Unable to access the map server.");
+    private synchronized ISpatialReference getSpatialReference (int wkid, String wkt) throws IOException {
+        String key = (wkt != null) ? "wkt:" + wkt : "wkid:" + wkid;
+        ISpatialReference result = m_spatialReferences.get(key);
+        if (result == null) {
+            if (m_spatialReferenceFactory == null) {
+                m_spatialReferenceFactory = new SpatialReferenceEnvironment();
+            }
+            if (wkt != null) {
+                ISpatialReference[] created = { null };
+                int[] bytesRead = { 0 };
+                ((ISpatialReferenceFactory3)m_spatialReferenceFactory).createESRISpatialReference(wkt, created, bytesRead);
+                result = created[0];
+            } else {
+                result = ((ISpatialReferenceFactory2)m_spatialReferenceFactory).createSpatialReference(wkid);
+            }
+            if (result != null) {
+                m_spatialReferences.put(key, result);
+            }
         }
-        IMapServerDataAccess dataAccess = (IMapServerDataAccess)mapServer;
-        return dataAccess.getDataSource(mapServer.getDefaultMapName(), index);
+        return result;
     }
 
-    protected Object getDataSourceByName (String name) throws IOException {
-        IMapServer3 mapServer = (IMapServer3)m_serverObjectHelper.getServerObject();
-        if (mapServer == null) {
-            throw new IOException("Unable to access the map server.");
+    //
+    // Arithmetic projection from one spatial reference to another (see
+    // CoordinateTransform), or null if the geometry must be projected
+    //
+    protected static CoordinateTransform getTransform (ISpatialReference from, ISpatialReference to) throws IOException {
+        if ((from == null) || (to == null)) {
+            return null;
+        }
+        return CoordinateTransform.get(from.getFactoryCode(), to.getFactoryCode());
+    }
+
+    //
+    // Bring the parts of a JSON geometry (rings or paths, as interleaved x,y
+    // coordinates) into spatial reference to, in place. Parts are left as
+    // they are if the geometry names no spatial reference or names to;
+    // otherwise they are projected arithmetically if possible, or else by
+    // the projection engine, one multipoint per part.
+    //
+    protected void projectParts (List<double[]> parts, JSONObject geometry, ISpatialReference to) throws IOException {
+        ISpatialReference from = getSpatialReferenceParam(geometry, "spatialReference");
+        if ((from == null) || (to == null) || ((from.getFactoryCode() != 0) && (from.getFactoryCode() == to.getFactoryCode()))) {
+            return;
         }
-        IMapServerDataAccess dataAccess = (IMapServerDataAccess)mapServer;
-        IMapLayerInfos layerInfos = mapServer.getServerInfo(mapServer.getDefaultMapName()).getMapLayerInfos();
-        for (int i = 0; i < layerInfos.getCount(); i += 1) {
-            IMapLayerInfo info = layerInfos.getElement(i);
-            if (info.getName().equalsIgnoreCase(name)) {
-                return dataAccess.getDataSource(mapServer.getDefaultMapName(), i);
+        CoordinateTransform transform = getTransform(from, to);
+        if (transform != null) {
+            for (double[] part : parts) {
+                transform.transform(part);
+            }
+            return;
+        }
+        for (double[] part : parts) {
+            int count = part.length / 2;
+            if (count == 0) {
+                continue;
+            }
+            _WKSPoint[] vertices = new _WKSPoint[count];
+            for (int i = 0; i < count; i += 1) {
+                vertices[i] = new _WKSPoint();
+                vertices[i].x = part[i * 2];
+                vertices[i].y = part[i * 2 + 1];
+            }
+            Multipoint multipoint = new Multipoint();
+            multipoint.addWKSPoints(count, vertices);
+            multipoint.setSpatialReferenceByRef(from);
+            multipoint.project(to);
+            multipoint.queryWKSPoints(0, count, vertices);
+            for (int i = 0; i < count; i += 1) {
+                part[i * 2] = vertices[i].x;
+                part[i * 2 + 1] = vertices[i].y;
             }
         }
-        return null;
     }
 
-    protected IMapLayerInfo[] getMapLayerInfo () throws IOException {
-        IMapServer3 mapServer = (IMapServer3)m_serverObjectHelper.getServerObject();
-        if (mapServer == null) {
+    //
+    // One band of a raster as a grid. With a TileCacheDirectory, the band is
+    // exported once to a sidecar file there and read back through a memory
+    // mapping (MappedGrid), so its cells sit in the page cache, shared by
+    // every service and thread, rather than being read through ArcObjects
+    // on each request. Without one, or if the file can't be written, the
+    // raster is read directly. The file is named after the raster dataset,
+    // and is exported again if the raster no longer matches its fingerprint.
+    //
+    protected TiledGrid openTiles (IRaster raster, int band) throws IOException {
+        TiledRaster tiles = new TiledRaster(raster, band);
+        if (m_tileCacheDirectory.length() == 0) {
+            return tiles;
+        }
+        File file = null;
+        try {
+            IDataset dataset = new IDatasetProxy(((IRaster2)raster).getRasterDataset());
+            String key = dataset.getWorkspace().getPathName() + "|" + dataset.getName() + "|" + band;
+            File directory = new File(m_tileCacheDirectory);
+            directory.mkdirs();
+            file = new File(directory, dataset.getName().replaceAll("[^A-Za-z0-9_.-]", "_") + "-" + Integer.toHexString(key.hashCode()) + ".fstg");
+            MappedGrid result = MappedGrid.open(file, tiles);
+            if (result == null) {
+                logInfo("exporting " + dataset.getName() + " to " + file);
+                int spatialReferenceCode = 0;
+                ISpatialReference sr = new IRasterPropsProxy(raster).getSpatialReference();
+                if (sr != null) {
+                    spatialReferenceCode = sr.getFactoryCode();
+                }
+                MappedGrid.write(tiles, file, tiles.getStorageType(), tiles.getNoDataValue(), spatialReferenceCode, m_tileCacheCompression);
+                result = MappedGrid.open(file, tiles);
+            }
+            if (result != null) {
+                return result;
+            }
+            logWarning("tile cache file " + file + " does not match its raster");
+        } catch (IOException e) {
+            logWarning("unable to use tile cache file " + file + ": " + e.getMessage());
+        }
+        return tiles;
+    }
+
+    //
+    // The service's layers as read at construct; null before then
+    //
+    protected LayerRegistry getLayerRegistry () {
+        return m_layerRegistry;
+    }
+
+    private LayerRegistry getLayers () throws IOException {
+        LayerRegistry result = m_layerRegistry;
+        if (result == null) {
             throw new IOException("Unable to access the map server.");
         }
-        IMapLayerInfos layerInfos = mapServer.getServerInfo(mapServer.getDefaultMapName()).getMapLayerInfos();
-        IMapLayerInfo[] result = new IMapLayerInfo[layerInfos.getCount()];
+        return result;
+    }
+
+    protected Object getDataSourceByID (int index) throws IOException {
+        LayerRegistry.Layer layer = getLayers().get(index);
+        return (layer != null) ? layer.getDataSource() : null;
+    }
+
+    protected Object getDataSourceByName (String name) throws IOException {
+        LayerRegistry.Layer layer = getLayers().get(name);
+        return (layer != null) ? layer.getDataSource() : null;
+    }
+
+    //
+    // Spatial reference of a raster layer as read at construct, or the
+    // raster's own if the registry doesn't have one
+    //
+    protected ISpatialReference getRasterSpatialReference (int layerID, IRaster raster) throws IOException {
+        LayerRegistry.Layer layer = getLayers().get(layerID);
+        if ((layer != null) && (layer.spatialReference != null)) {
+            return layer.spatialReference;
+        }
+        return new IRasterPropsProxy(raster).getSpatialReference();
+    }
+
+    protected IMapLayerInfo[] getMapLayerInfo () throws IOException {
+        List<LayerRegistry.Layer> layers = getLayers().getLayers();
+        IMapLayerInfo[] result = new IMapLayerInfo[layers.size()];
         for (int i = 0; i < result.length; i++) {
-            result[i] = layerInfos.getElement(i);
+            result[i] = layers.get(i).info;
         }
         return result;
     }
 
     protected IMapLayerInfo getMapLayerInfoByID (int layerID) throws IOException {
-        if (layerID < 0) {
+        LayerRegistry.Layer layer = getLayers().get(layerID);
+        if (layer == null) {
             throw new ArrayIndexOutOfBoundsException(layerID);
         }
-        IMapServer3 mapServer = (IMapServer3)m_serverObjectHelper.getServerObject();
-        if (mapServer == null) {
-            throw new IOException("Unable to access the map server.");
-        }
-        IMapLayerInfos layerInfos = mapServer.getServerInfo(mapServer.getDefaultMapName()).getMapLayerInfos();
-        for (int i = 0; i < layerInfos.getCount(); i++) {
-            IMapLayerInfo layerInfo = layerInfos.getElement(i);
-            if (layerInfo.getID() == layerID) {
-                return layerInfo;
-            }
-        }
-        throw new ArrayIndexOutOfBoundsException(layerID);
+        return layer.info;
     }
 
     protected void logError (String message) {
@@ -249,6 +457,8 @@ public abstract class FieldScopeSOE implements IServerObjectExtension, IObjectCo
     
     public static class Util
     {
+        private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
         public static Object findValue (IRaster2 raster, int band, IPoint point) throws IOException {
             int[] col = { -1 }, row = { -1 };
             raster.mapToPixel(point.getX(), point.getY(), col, row);
@@ -283,18 +493,49 @@ public abstract class FieldScopeSOE implements IServerObjectExtension, IObjectCo
             return null;
         }
 
-        @SuppressWarnings("deprecation")
+        //
+        // Time filters are sent to the database as UTC calendar fields to the
+        // whole second, so client times are truncated to the second before
+        // they are compared with anything
+        //
+        public static long truncateToSecond (long utcTime) {
+            return utcTime - (((utcTime % 1000) + 1000) % 1000);
+        }
+
         public static ITime parseUTCMilliseconds (long utcTime) throws IOException {
-            Date dateTime = new Date(utcTime);
+            Calendar calendar = Calendar.getInstance(UTC);
+            calendar.setTimeInMillis(truncateToSecond(utcTime));
             ITime result = new Time();
-            result.setYear((short)dateTime.getYear());
-            result.setMonth((short)dateTime.getMonth());
-            result.setDay((short)dateTime.getDay());
-            result.setHour((short)dateTime.getHours());
-            result.setMinute((short)dateTime.getMinutes());
-            result.setSecond((short)dateTime.getSeconds());
+            result.setYear((short)calendar.get(Calendar.YEAR));
+            result.setMonth((short)(calendar.get(Calendar.MONTH) + 1));
+            result.setDay((short)calendar.get(Calendar.DAY_OF_MONTH));
+            result.setHour((short)calendar.get(Calendar.HOUR_OF_DAY));
+            result.setMinute((short)calendar.get(Calendar.MINUTE));
+            result.setSecond((short)calendar.get(Calendar.SECOND));
             return result;
         }
+
+        //
+        // A date field value as UTC milliseconds. Date fields have no time
+        // zone and are handed to Java as wall-clock times in the server's
+        // zone; they are read back as UTC so that they compare with client
+        // times the same way a where clause built by parseUTCMilliseconds
+        // does in the database.
+        //
+        public static long getUTCMilliseconds (Calendar fieldValue) {
+            Calendar calendar = Calendar.getInstance(UTC);
+            calendar.clear();
+            calendar.set(fieldValue.get(Calendar.YEAR), fieldValue.get(Calendar.MONTH), fieldValue.get(Calendar.DAY_OF_MONTH),
+                         fieldValue.get(Calendar.HOUR_OF_DAY), fieldValue.get(Calendar.MINUTE), fieldValue.get(Calendar.SECOND));
+            calendar.set(Calendar.MILLISECOND, fieldValue.get(Calendar.MILLISECOND));
+            return calendar.getTimeInMillis();
+        }
+
+        public static long getUTCMilliseconds (Date fieldValue) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(fieldValue);
+            return getUTCMilliseconds(calendar);
+        }
     }
 
     public static class Feature
@@ -443,169 +684,37 @@ public abstract class FieldScopeSOE implements IServerObjectExtension, IObjectCo
         }
     }
 
-    static enum CurveDirection { RIGHT, UP, LEFT, DOWN };
-
     //
-    // Translated from BoundingCurve.java in the My World GIS codebase
+    // Outline of the filled cells of a mask as a polygon, given the grid
+    // the mask was made from and the cell at the mask's top left corner
     //
-    protected final class BoundingCurve
-    {
-        private int m_width;
-        private int m_height;
-        private boolean[][] m_isFilled;
-        private boolean[][] m_cellVisited;
-
-        public BoundingCurve (boolean[][] grid) {
-            m_isFilled = grid;
-            m_width = grid.length;
-            m_height = grid[0].length;
-            m_cellVisited = new boolean[m_width][m_height];
-        }
-
-        public List<List<IntPoint>> getBoundaryAsList () {
-            List<List<IntPoint>> result = new ArrayList<List<IntPoint>>();
-            for (int x = 0; x <= m_width; x += 1) {
-                for (int y = 0; y <= m_height; y += 1) {
-                    if ((!cellVisited(x, y)) && isFilled(x, y) && (!isFilled(x - 1, y))) {
-                        result.add(getCurve(x, y));
-                    }
-                }
-            }
-            return result;
-        }
-
-        public IPolygon getBoundaryAsPolygon (IRasterProps props) throws IOException {
-            double left = props.getExtent().getXMin();
-            double top = props.getExtent().getYMax();
-            IPnt cellSize = props.meanCellSize();
-            Polygon result = new Polygon();
-            for (int x = 0; x <= m_width; x += 1) {
-                for (int y = 0; y <= m_height; y += 1) {
-                    if ((!cellVisited(x, y)) && isFilled(x, y) && (!isFilled(x - 1, y))) {
-                        List<IntPoint> bmRing = getCurve(x, y);
-                        Ring ring = new Ring();
-                        for (IntPoint bmPt : bmRing) {
-                            Point point = new Point();
-                            point.putCoords(left + bmPt.x * cellSize.getX(),
-                                            top - bmPt.y * cellSize.getY());
-                            ring.addPoint(point, null, null);
-                        }
-                        result.addGeometry(ring, null, null);
-                    }
-                }
-            }
-            return result;
-        }
-
-        private boolean isFilled (int x, int y) {
-            if ((x < 0) || (y < 0) || (x >= m_width) || (y >= m_height)) {
-                return false;
-            } else {
-                return m_isFilled[x][y];
-            }
-        }
-
-        private boolean cellVisited (int x, int y) {
-            if ((x < 0) || (y < 0) || (x >= m_width) || (y >= m_height)) {
-                return false;
-            } else {
-                return m_cellVisited[x][y];
-            }
-        }
-
-        private void markVisited (int x, int y) {
-            if ((x >= 0) && (x < m_width) && (y >= 0) && (y < m_height)) {
-                m_cellVisited[x][y] = true;
-            }
-        }
-
-        private List<IntPoint> getCurve (int startX, int startY) {
-            markVisited(startX, startY);
-            List<IntPoint> result = new ArrayList<IntPoint>();
-            result.add(new IntPoint(startX, startY));
-            int x = startX;
-            int y = startY + 1;
-            CurveDirection direction = CurveDirection.UP;
-            while ((x != startX) || (y != startY)) {
-                CurveDirection newDirection = direction;
-                switch (direction) {
-                    case UP:
-                        if (isFilled(x - 1, y) && isFilled(x, y)) {
-                            newDirection = CurveDirection.LEFT;
-                            markVisited(x - 1, y);
-                        } else if (isFilled(x, y)) {
-                            newDirection = CurveDirection.UP;
-                            markVisited(x, y);
-                        } else {
-                            newDirection = CurveDirection.RIGHT;
-                        }
-                        break;
-                    case RIGHT:
-                        if (isFilled(x, y) && isFilled(x, y - 1)) {
-                            newDirection = CurveDirection.UP;
-                            markVisited(x, y);
-                        } else if (isFilled(x, y - 1)) {
-                            newDirection = CurveDirection.RIGHT;
-                            markVisited(x, y - 1);
-                        } else {
-                            newDirection = CurveDirection.DOWN;
-                        }
-                        break;
-                    case DOWN:
-                        if (isFilled(x, y - 1) && isFilled(x - 1, y - 1)) {
-                            newDirection = CurveDirection.RIGHT;
-                            markVisited(x, y - 1);
-                        } else if (isFilled(x - 1, y - 1)) {
-                            newDirection = CurveDirection.DOWN;
-                            if ((x < 2) || isFilled(x - 2, y - 1))
-                                markVisited(x - 1, y - 1);
-                        } else {
-                            newDirection = CurveDirection.LEFT;
-                        }
-                        break;
-                    case LEFT:
-                        if (isFilled(x - 1, y - 1) && isFilled(x - 1, y)) {
-                            newDirection = CurveDirection.DOWN;
-                            if ((x < 2) || isFilled(x - 2, y - 1))
-                                markVisited(x - 1, y - 1);
-                        } else if (isFilled(x - 1, y)) {
-                            newDirection = CurveDirection.LEFT;
-                            markVisited(x - 1, y);
-                        } else {
-                            newDirection = CurveDirection.UP;
-                            markVisited(x, y);
-                        }
-                        break;
-                    default:
-                        throw new RuntimeException("this shouldn't happen");
-                }
+    protected static IPolygon getBoundaryAsPolygon (BoundingCurve curve, TiledGrid grid, int originColumn, int originRow) throws IOException {
+        return getBoundaryAsPolygon(curve, grid, originColumn, originRow, null, null);
+    }
 
-                result.add(new IntPoint(x, y));
-
-                switch (newDirection) {
-                    case UP:
-                        y += 1;
-                        break;
-                    case RIGHT:
-                        x += 1;
-                        break;
-                    case DOWN:
-                        y -= 1;
-                        break;
-                    case LEFT:
-                        x -= 1;
-                        break;
-                }
-                direction = newDirection;
+    //
+    // As above, with the ring coordinates projected by transform, on
+    // workers for very long rings, before the polygon is built
+    //
+    protected static IPolygon getBoundaryAsPolygon (BoundingCurve curve, TiledGrid grid, int originColumn, int originRow,
+                                                    CoordinateTransform transform, ExecutorService workers) throws IOException {
+        double left = grid.getLeft() + originColumn * grid.getCellWidth();
+        double top = grid.getTop() - originRow * grid.getCellHeight();
+        Polygon result = new Polygon();
+        for (double[] coordinates : curve.getRings(left, top, grid.getCellWidth(), grid.getCellHeight())) {
+            if (transform != null) {
+                transform.transform(coordinates, workers);
             }
-
-            // Be absolutely sure the curve is closed
-            if (!result.get(0).equals(result.get(result.size() - 1))) {
-                result.add(new IntPoint(startX, startY));
+            _WKSPoint[] points = new _WKSPoint[coordinates.length / 2];
+            for (int i = 0; i < points.length; i += 1) {
+                points[i] = new _WKSPoint();
+                points[i].x = coordinates[i * 2];
+                points[i].y = coordinates[i * 2 + 1];
             }
-
-            Collections.reverse(result);
-            return result;
+            Ring ring = new Ring();
+            ring.addWKSPoints(points.length, points);
+            result.addGeometry(ring, null, null);
         }
+        return result;
     }
 }
@@ -0,0 +1,69 @@
+package org.ngs.fieldscope;
+
+import java.io.IOException;
+
+//
+// Per-vertex measures along a traced flow path: distance from the start of
+// the path, values of other rasters at each vertex, and the travel time
+// implied by a velocity raster. All are worked out from the traced vertices
+// in memory, so the flow direction rasters are not read again.
+//
+// Vertices fall at changes of direction, so a velocity is known at each
+// end of every straight stretch; a stretch is taken at the mean of the two
+// (or whichever one is known), and travel time is unknown (NaN) from the
+// first stretch with no positive velocity onwards.
+//
+public class FlowMeasures
+{
+    private static final int MAX_CACHED_TILES = 16;
+
+    private FlowMeasures () {
+    }
+
+    //
+    // Distance along the path to each vertex, in map units
+    //
+    public static double[] getDistances (FlowTracer.Vertices vertices) {
+        double[] result = new double[vertices.size()];
+        for (int i = 1; i < result.length; i += 1) {
+            double dx = vertices.getX(i) - vertices.getX(i - 1);
+            double dy = vertices.getY(i) - vertices.getY(i - 1);
+            result[i] = result[i - 1] + Math.sqrt(dx * dx + dy * dy);
+        }
+        return result;
+    }
+
+    //
+    // Value of a raster at each vertex; NaN for NoData or outside the raster
+    //
+    public static double[] sample (TiledGrid tiles, FlowTracer.Vertices vertices) throws IOException {
+        TileCache cache = new TileCache(tiles, MAX_CACHED_TILES);
+        double[] result = new double[vertices.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = cache.get(tiles.getColumn(vertices.getX(i)), tiles.getRow(vertices.getY(i)));
+        }
+        return result;
+    }
+
+    //
+    // Time to reach each vertex from the start of the path, given distances
+    // and velocities at the vertices in consistent units
+    //
+    public static double[] getTravelTimes (double[] distances, double[] velocities) {
+        double[] result = new double[distances.length];
+        for (int i = 1; i < result.length; i += 1) {
+            double a = velocities[i - 1];
+            double b = velocities[i];
+            double velocity = (Double.isNaN(a) || (a <= 0)) ? b : ((Double.isNaN(b) || (b <= 0)) ? a : (a + b) / 2);
+            double length = distances[i] - distances[i - 1];
+            if (length == 0) {
+                result[i] = result[i - 1];
+            } else if (Double.isNaN(velocity) || (velocity <= 0)) {
+                result[i] = Double.NaN;
+            } else {
+                result[i] = result[i - 1] + length / velocity;
+            }
+        }
+        return result;
+    }
+}
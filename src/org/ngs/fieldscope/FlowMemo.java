@@ -0,0 +1,241 @@
+package org.ngs.fieldscope;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//
+// Memo of flow paths already traced over one grid, so that a new trace can
+// stop at the first cell some earlier trace visited and replay the rest
+// from memory. Paths are kept as segments of the cells a trace visited,
+// each with its direction code and the number of cells the trace then
+// skipped along a straight run (zero when it stepped cell by cell). A
+// segment either continues into another segment at a known offset, ends
+// just before a NoData or off-grid cell, or is open (its trace stopped at
+// the step limit and nobody has gone further yet).
+//
+// Cells map to (segment, offset) in an open-addressed hash table of
+// primitive arrays. The memo is bounded by the total number of cells held;
+// least recently used segments are dropped first, and a reference to a
+// dropped segment is treated as open. Not thread-safe; FlowTracer calls it
+// while holding its own lock.
+//
+public class FlowMemo
+{
+    private final int m_maxCells;
+    private final LinkedHashMap<Integer, Segment> m_segments;
+    private int m_nextId;
+    private long m_cellCount;
+    private int m_used;
+    private final int[] m_keys;
+    private final int[] m_ids;
+    private final int[] m_offsets;
+    private final int m_mask;
+
+    public FlowMemo (int maxCells) {
+        m_maxCells = maxCells;
+        m_segments = new LinkedHashMap<Integer, Segment>(64, 0.75f, true);
+        m_nextId = 1;
+        m_cellCount = 0;
+        int capacity = Integer.highestOneBit(Math.max(16, maxCells) * 2 - 1) << 1;
+        m_used = 0;
+        m_keys = new int[capacity];
+        m_ids = new int[capacity];
+        m_offsets = new int[capacity];
+        m_mask = capacity - 1;
+    }
+
+    //
+    // The largest maxCells whose memo fits in maxBytes: its hash table takes
+    // 12 bytes per slot, at two slots per cell, and its segments 6 bytes per
+    // cell held
+    //
+    public static int getMaxCells (long maxBytes) {
+        long slots = Math.min(1L << 30, maxBytes / (12 * 2 + 6) * 2);
+        return (slots < 32) ? 0 : (int)(Long.highestOneBit(slots) / 2);
+    }
+
+    public static final class Segment
+    {
+        public final int id;
+        public final int[] cells;
+        public final byte[] directions;
+        public final byte[] skips;
+        public int next;
+        public int nextOffset;
+        public boolean endsAtNoData;
+
+        private Segment (int id, int[] cells, byte[] directions, byte[] skips) {
+            this.id = id;
+            this.cells = cells;
+            this.directions = directions;
+            this.skips = skips;
+            this.next = 0;
+            this.nextOffset = 0;
+            this.endsAtNoData = false;
+        }
+
+        public int size () {
+            return cells.length;
+        }
+    }
+
+    public int getSegmentCount () {
+        return m_segments.size();
+    }
+
+    public long getCellCount () {
+        return m_cellCount;
+    }
+
+    //
+    // Segment with the given ID, or null if there is none (any more)
+    //
+    public Segment getSegment (int id) {
+        return (id != 0) ? m_segments.get(Integer.valueOf(id)) : null;
+    }
+
+    //
+    // Segment holding a cell, with the cell's offset in it stored in
+    // offset[0], or null if the cell has not been traced
+    //
+    public Segment find (int cell, int[] offset) {
+        int slot = slotOf(cell);
+        if (m_keys[slot] == 0) {
+            return null;
+        }
+        Segment result = getSegment(m_ids[slot]);
+        if (result != null) {
+            offset[0] = m_offsets[slot];
+        }
+        return result;
+    }
+
+    //
+    // Record newly traced cells as a segment continuing into (next,
+    // nextOffset), or ending as described; predecessor, if not null, is an
+    // open segment that the new cells (or, if there are none, next) carry on
+    // from. Returns the new segment, or null if no cells were given.
+    //
+    public Segment add (Segment predecessor, int[] cells, byte[] directions, byte[] skips, int count, Segment next, int nextOffset, boolean endsAtNoData) {
+        Segment result = null;
+        if (count > 0) {
+            result = new Segment(m_nextId++, Arrays.copyOf(cells, count), Arrays.copyOf(directions, count), Arrays.copyOf(skips, count));
+            if (m_nextId == 0) {
+                m_nextId = 1;
+            }
+            result.endsAtNoData = endsAtNoData;
+            if (next != null) {
+                result.next = next.id;
+                result.nextOffset = nextOffset;
+            }
+            for (int i = 0; i < count; i += 1) {
+                put(cells[i], result.id, i);
+            }
+            m_segments.put(Integer.valueOf(result.id), result);
+            m_cellCount += count;
+        }
+        if ((predecessor != null) && (m_segments.containsKey(Integer.valueOf(predecessor.id)))) {
+            if (result != null) {
+                predecessor.next = result.id;
+                predecessor.nextOffset = 0;
+            } else if (next != null) {
+                predecessor.next = next.id;
+                predecessor.nextOffset = nextOffset;
+            } else {
+                predecessor.endsAtNoData = endsAtNoData;
+            }
+        }
+        evict(result);
+        return result;
+    }
+
+    public void clear () {
+        m_segments.clear();
+        Arrays.fill(m_keys, 0);
+        m_used = 0;
+        m_cellCount = 0;
+    }
+
+    //
+    // Drop least recently used segments until the memo is back within its
+    // cell budget, keeping the one just added
+    //
+    private void evict (Segment keep) {
+        Iterator<Map.Entry<Integer, Segment>> eldest = m_segments.entrySet().iterator();
+        while ((m_cellCount > m_maxCells) && eldest.hasNext()) {
+            Segment segment = eldest.next().getValue();
+            if (segment == keep) {
+                continue;
+            }
+            eldest.remove();
+            m_cellCount -= segment.size();
+            for (int i = 0; i < segment.size(); i += 1) {
+                int slot = slotOf(segment.cells[i]);
+                if ((m_keys[slot] != 0) && (m_ids[slot] == segment.id)) {
+                    remove(slot);
+                }
+            }
+        }
+    }
+
+    //
+    // Slot holding the cell, or the empty slot where it would go. Keys are
+    // stored plus one so that zero marks an empty slot.
+    //
+    private int slotOf (int cell) {
+        int key = cell + 1;
+        int slot = hash(key) & m_mask;
+        while ((m_keys[slot] != 0) && (m_keys[slot] != key)) {
+            slot = (slot + 1) & m_mask;
+        }
+        return slot;
+    }
+
+    private void put (int cell, int id, int offset) {
+        int slot = slotOf(cell);
+        if (m_keys[slot] != 0) {
+            // Keep the earliest record of a cell
+            return;
+        }
+        if (m_used >= m_keys.length - m_keys.length / 4) {
+            // Table full; the cell is simply not memoized
+            return;
+        }
+        m_used += 1;
+        m_keys[slot] = cell + 1;
+        m_ids[slot] = id;
+        m_offsets[slot] = offset;
+    }
+
+    //
+    // Linear-probing delete: shift later entries of the same probe run back
+    // into the hole so lookups never stop early
+    //
+    private void remove (int slot) {
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & m_mask;
+            if (m_keys[next] == 0) {
+                break;
+            }
+            int home = hash(m_keys[next]) & m_mask;
+            boolean movable = (hole <= next) ? ((home <= hole) || (home > next)) : ((home <= hole) && (home > next));
+            if (movable) {
+                m_keys[hole] = m_keys[next];
+                m_ids[hole] = m_ids[next];
+                m_offsets[hole] = m_offsets[next];
+                hole = next;
+            }
+        }
+        m_keys[hole] = 0;
+        m_used -= 1;
+    }
+
+    private static int hash (int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
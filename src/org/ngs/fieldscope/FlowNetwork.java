@@ -0,0 +1,345 @@
+package org.ngs.fieldscope;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//
+// Flow paths from many pour points, traced so that paths which meet are
+// merged. Each pour point starts a branch; branches are traced one at a
+// time over one or more grids, and the first branch to visit a cell owns
+// it. When a later branch reaches an owned cell it stops there, since the
+// rest of its path is the same as the owner's, and the owner is cut at
+// that confluence. The result is a set of sections, each running from a
+// pour point or confluence to the next confluence or the end of the path,
+// so that every shared downstream stretch appears only once.
+//
+// Owners are kept per grid in an open-addressed hash table of primitive
+// arrays, as in FlowMemo, and the number of cells owned across all grids
+// is capped; a trace that would go past the cap is rejected.
+//
+public class FlowNetwork
+{
+    private final List<Branch> m_branches;
+    private final long m_maxCells;
+    private long m_cellCount;
+
+    public FlowNetwork () {
+        this(Long.MAX_VALUE);
+    }
+
+    public FlowNetwork (long maxCells) {
+        m_branches = new ArrayList<Branch>();
+        m_maxCells = maxCells;
+        m_cellCount = 0;
+    }
+
+    public static final class Branch
+    {
+        public final int pourPoint;
+        public final FlowTracer.Vertices vertices;
+        private final List<Cut> m_cuts;
+        private Cut m_join;
+        private int m_visits;
+
+        private Branch (int pourPoint, double x, double y) {
+            this.pourPoint = pourPoint;
+            this.vertices = new FlowTracer.Vertices();
+            this.vertices.add(x, y);
+            m_cuts = new ArrayList<Cut>();
+            m_join = null;
+            m_visits = 0;
+        }
+
+        //
+        // The cut at a visit, made the first time another branch joins there
+        //
+        private Cut cutAt (int order, int vertexCount, double x, double y) {
+            for (Cut cut : m_cuts) {
+                if (cut.order == order) {
+                    return cut;
+                }
+            }
+            Cut result = new Cut(this, order, vertexCount, x, y);
+            m_cuts.add(result);
+            return result;
+        }
+
+        //
+        // True once the branch has run into another one
+        //
+        public boolean isJoined () {
+            return m_join != null;
+        }
+    }
+
+    //
+    // A cell where another branch joined this one: the number of the visit
+    // along the branch, the number of vertices the branch had before it,
+    // and its position in the branch's coordinates
+    //
+    private static final class Cut
+    {
+        public final Branch branch;
+        public final int order;
+        public final int vertexCount;
+        public final double x;
+        public final double y;
+
+        public Cut (Branch branch, int order, int vertexCount, double x, double y) {
+            this.branch = branch;
+            this.order = order;
+            this.vertexCount = vertexCount;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    //
+    // One call to Grid.trace: the branch and the cell and coordinates it
+    // started from, from which the position of any cell it visited follows
+    //
+    private static final class Trace
+    {
+        public final Branch branch;
+        public final double x;
+        public final double y;
+        public final int column;
+        public final int row;
+
+        public Trace (Branch branch, double x, double y, int column, int row) {
+            this.branch = branch;
+            this.x = x;
+            this.y = y;
+            this.column = column;
+            this.row = row;
+        }
+    }
+
+    private static final Comparator<Cut> CUT_ORDER = new Comparator<Cut>() {
+        public int compare (Cut a, Cut b) {
+            return (a.order < b.order) ? -1 : ((a.order > b.order) ? 1 : 0);
+        }
+    };
+
+    public Branch addBranch (int pourPoint, double x, double y) {
+        Branch result = new Branch(pourPoint, x, y);
+        m_branches.add(result);
+        return result;
+    }
+
+    public List<Branch> getBranches () {
+        return Collections.unmodifiableList(m_branches);
+    }
+
+    public Grid newGrid (TiledGrid tiles) {
+        return new Grid(tiles);
+    }
+
+    //
+    // One grid the branches are traced over, with the owner of each cell
+    // visited on it so far: the trace that visited it, the number of the
+    // visit along the branch and the number of vertices the branch had
+    // before it. Keys are cell indexes plus one, so that zero marks an
+    // empty slot.
+    //
+    public final class Grid
+    {
+        private final TiledGrid m_tiles;
+        private final List<Trace> m_traces;
+        private long[] m_keys;
+        private int[] m_owners;
+        private int[] m_orders;
+        private int[] m_vertexCounts;
+        private int m_used;
+
+        private Grid (TiledGrid tiles) {
+            m_tiles = tiles;
+            m_traces = new ArrayList<Trace>();
+            allocate(1 << 10);
+        }
+
+        //
+        // Continue a branch from its last vertex, stopping where it meets
+        // a branch already traced over this grid; next, if not null, is
+        // also shown each cell. Joined branches are left as they are.
+        // Returns the number of cells stepped through. Throws
+        // IllegalArgumentException if the network would own more than its
+        // maximum number of cells.
+        //
+        public int trace (FlowTracer tracer, final Branch branch, int maxSteps, final FlowTracer.CellVisitor next) throws IOException {
+            if (branch.isJoined()) {
+                return 0;
+            }
+            final double x = branch.vertices.getLastX();
+            final double y = branch.vertices.getLastY();
+            final int traceIndex = m_traces.size();
+            m_traces.add(new Trace(branch, x, y, m_tiles.getColumn(x), m_tiles.getRow(y)));
+            final long width = m_tiles.getWidth();
+            return tracer.trace(x, y, maxSteps, branch.vertices, new FlowTracer.CellVisitor() {
+                public boolean visit (int column, int row, int vertexCount) {
+                    long key = row * width + column + 1;
+                    int slot = slotOf(key);
+                    if (m_keys[slot] == 0) {
+                        if (m_cellCount >= m_maxCells) {
+                            throw new IllegalArgumentException("flow paths would visit more than " + m_maxCells + " cells");
+                        }
+                        m_cellCount += 1;
+                        m_keys[slot] = key;
+                        m_owners[slot] = traceIndex;
+                        m_orders[slot] = branch.m_visits++;
+                        m_vertexCounts[slot] = vertexCount;
+                        m_used += 1;
+                        if (m_used > m_keys.length - m_keys.length / 4) {
+                            allocate(m_keys.length * 2);
+                        }
+                        return (next == null) || next.visit(column, row, vertexCount);
+                    }
+                    Trace owner = m_traces.get(m_owners[slot]);
+                    if (owner.branch == branch) {
+                        // A loop in the flow directions; the step limit ends it
+                        return (next == null) || next.visit(column, row, vertexCount);
+                    }
+                    branch.m_join = owner.branch.cutAt(m_orders[slot], m_vertexCounts[slot],
+                                                       owner.x + (column - owner.column) * m_tiles.getCellWidth(),
+                                                       owner.y - (row - owner.row) * m_tiles.getCellHeight());
+                    return false;
+                }
+            });
+        }
+
+        //
+        // Slot holding the key, or the empty slot where it would go
+        //
+        private int slotOf (long key) {
+            int mask = m_keys.length - 1;
+            int slot = (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while ((m_keys[slot] != 0) && (m_keys[slot] != key)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        //
+        // Move the table to new arrays of the given size, a power of two
+        //
+        private void allocate (int capacity) {
+            long[] keys = m_keys;
+            int[] owners = m_owners;
+            int[] orders = m_orders;
+            int[] vertexCounts = m_vertexCounts;
+            m_keys = new long[capacity];
+            m_owners = new int[capacity];
+            m_orders = new int[capacity];
+            m_vertexCounts = new int[capacity];
+            if (keys != null) {
+                for (int i = 0; i < keys.length; i += 1) {
+                    if (keys[i] != 0) {
+                        int slot = slotOf(keys[i]);
+                        m_keys[slot] = keys[i];
+                        m_owners[slot] = owners[i];
+                        m_orders[slot] = orders[i];
+                        m_vertexCounts[slot] = vertexCounts[i];
+                    }
+                }
+            }
+        }
+    }
+
+    public static final class Section
+    {
+        public final int id;
+        public final int downstream;
+        public final int pourPoint;
+        public final List<Integer> pourPoints;
+        public final FlowTracer.Vertices vertices;
+
+        private Section (int id, int downstream, int pourPoint, FlowTracer.Vertices vertices) {
+            this.id = id;
+            this.downstream = downstream;
+            this.pourPoint = pourPoint;
+            this.pourPoints = new ArrayList<Integer>();
+            this.vertices = vertices;
+        }
+    }
+
+    //
+    // Split the branches at their confluences. Sections are numbered in
+    // branch order, upstream first; downstream is the ID of the section a
+    // section flows into (-1 at the end of a path), pourPoint the pour point
+    // it starts at (-1 if it starts at a confluence) and pourPoints every
+    // pour point draining through it.
+    //
+    public List<Section> getSections () {
+        Map<Cut, Integer> sectionAfter = new HashMap<Cut, Integer>();
+        int[] firstSection = new int[m_branches.size()];
+        int count = 0;
+        for (int b = 0; b < m_branches.size(); b += 1) {
+            Branch branch = m_branches.get(b);
+            Collections.sort(branch.m_cuts, CUT_ORDER);
+            firstSection[b] = count;
+            for (int c = 0; c < branch.m_cuts.size(); c += 1) {
+                sectionAfter.put(branch.m_cuts.get(c), Integer.valueOf(count + c + 1));
+            }
+            count += branch.m_cuts.size() + 1;
+        }
+        List<Section> result = new ArrayList<Section>(count);
+        for (int b = 0; b < m_branches.size(); b += 1) {
+            Branch branch = m_branches.get(b);
+            List<Cut> cuts = branch.m_cuts;
+            FlowTracer.Vertices vertices = branch.vertices;
+            for (int c = 0; c <= cuts.size(); c += 1) {
+                FlowTracer.Vertices section = new FlowTracer.Vertices();
+                int first;
+                if (c == 0) {
+                    section.add(vertices.getX(0), vertices.getY(0));
+                    first = 1;
+                } else {
+                    section.add(cuts.get(c - 1).x, cuts.get(c - 1).y);
+                    first = cuts.get(c - 1).vertexCount;
+                }
+                int downstream = -1;
+                if (c < cuts.size()) {
+                    addVertices(section, vertices, first, cuts.get(c).vertexCount);
+                    addVertex(section, cuts.get(c).x, cuts.get(c).y);
+                    downstream = firstSection[b] + c + 1;
+                } else if (branch.m_join != null) {
+                    // The last vertex is where the branch stopped, in its own
+                    // coordinates; end at the confluence on the other branch
+                    addVertices(section, vertices, first, vertices.size() - 1);
+                    addVertex(section, branch.m_join.x, branch.m_join.y);
+                    downstream = sectionAfter.get(branch.m_join).intValue();
+                } else {
+                    addVertices(section, vertices, first, vertices.size());
+                }
+                if (section.size() == 1) {
+                    section.add(section.getX(0), section.getY(0));
+                }
+                result.add(new Section(firstSection[b] + c, downstream, (c == 0) ? branch.pourPoint : -1, section));
+            }
+        }
+        for (int b = 0; b < m_branches.size(); b += 1) {
+            Integer pourPoint = Integer.valueOf(m_branches.get(b).pourPoint);
+            for (int s = firstSection[b]; s >= 0; s = result.get(s).downstream) {
+                result.get(s).pourPoints.add(pourPoint);
+            }
+        }
+        return result;
+    }
+
+    private static void addVertices (FlowTracer.Vertices section, FlowTracer.Vertices vertices, int start, int end) {
+        for (int i = start; i < end; i += 1) {
+            addVertex(section, vertices.getX(i), vertices.getY(i));
+        }
+    }
+
+    private static void addVertex (FlowTracer.Vertices section, double x, double y) {
+        if ((section.getLastX() != x) || (section.getLastY() != y)) {
+            section.add(x, y);
+        }
+    }
+}
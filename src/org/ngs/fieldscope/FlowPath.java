@@ -1,26 +1,16 @@
 package org.ngs.fieldscope;
 
-import com.esri.arcgis.datasourcesraster.IPixelBlock3;
-import com.esri.arcgis.datasourcesraster.IRaster2;
-import com.esri.arcgis.datasourcesraster.IRasterBand;
-import com.esri.arcgis.datasourcesraster.IRasterBandCollection;
 import com.esri.arcgis.datasourcesraster.IRasterProps;
-import com.esri.arcgis.datasourcesraster.IRasterPropsProxy;
-import com.esri.arcgis.datasourcesraster.IRawPixels;
-import com.esri.arcgis.datasourcesraster.IRawPixelsProxy;
 import com.esri.arcgis.datasourcesraster.Raster;
 import com.esri.arcgis.geodatabase.FeatureClass;
 import com.esri.arcgis.geodatabase.IFeatureClass;
-import com.esri.arcgis.geodatabase.IPixelBlock;
-import com.esri.arcgis.geodatabase.IPnt;
 import com.esri.arcgis.geodatabase.IRaster;
-import com.esri.arcgis.geodatabase.Pnt;
 import com.esri.arcgis.geometry.IPoint;
-import com.esri.arcgis.geometry.IPointCollection;
 import com.esri.arcgis.geometry.ISpatialReference;
 import com.esri.arcgis.geometry.Path;
 import com.esri.arcgis.geometry.Point;
 import com.esri.arcgis.geometry.Polyline;
+import com.esri.arcgis.geometry._WKSPoint;
 import com.esri.arcgis.geometry.esriGeometryType;
 import com.esri.arcgis.interop.AutomationException;
 import com.esri.arcgis.interop.extn.ArcGISExtension;
@@ -29,23 +19,51 @@ import com.esri.arcgis.server.json.JSONArray;
 import com.esri.arcgis.server.json.JSONObject;
 import com.esri.arcgis.system.IPropertySet;
 import com.esri.arcgis.system.ServerUtilities;
+import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 @ArcGISExtension
 @ServerObjectExtProperties(displayName = "FlowPath", 
                            description = "Compute flow path downhill from pour point", 
-                           properties = { "HighResolutionMaxSteps=1000", "LowResolutionMaxSteps=16384" })
+                           properties = { "HighResolutionMaxSteps=1000", "LowResolutionMaxSteps=16384", "FlowPathsMaxCells=2097152", "LowResolutionCachedTiles=64",
+                                          "LowResolutionMemoMegabytes=32", "LowResolutionRunLengths=true", "LowResolutionRunLengthParallelism=1",
+                                          "LowResolutionRunLengthFile=", "CatalogCacheMaxRasters=16", "CatalogCacheMaxMegabytes=1024",
+                                          "CatalogTileCacheMaxMegabytes=0", "HighResolutionIndexMaxMegabytes=64",
+                                          "HighResolutionMaxRasters=8", "SampleLayers=",
+                                          "TileCacheDirectory=", "TileCacheCompression=false" })
 public class FlowPath extends FieldScopeSOE 
 {    
     private static final long serialVersionUID = -6325491414063347294L;
+    private static final int HIGH_RES_CACHED_TILES = 16;
+    private static final int MAX_POUR_POINTS = 1000;
     
     private IRaster m_LowResFlowDir = null;
     private IFeatureClass m_HighResFlowDirIndex = null;
     private IFeatureClass m_HighResFlowDirCatalog = null;
     private int m_maxHighResolutionSteps = 1000;
     private int m_maxLowResolutionSteps = 16384;
+    private int m_flowPathsMaxCells = 1 << 21;
+    private int m_lowResolutionCachedTiles = 64;
+    private long m_lowResolutionMemoBytes = 32L << 20;
+    private boolean m_lowResolutionRunLengths = true;
+    private int m_lowResolutionRunLengthParallelism = 1;
+    private String m_lowResolutionRunLengthFile = "";
+    private int m_catalogCacheMaxRasters = 16;
+    private long m_catalogCacheMaxBytes = 1024L << 20;
+    private long m_catalogTileCacheMaxBytes = 0;
+    private long m_highResolutionIndexMaxBytes = 64L << 20;
+    private PolygonValueIndex m_highResFlowDirValues = null;
+    private int m_maxHighResolutionRasters = 8;
+    private Map<String, TiledGrid> m_sampleLayers = new LinkedHashMap<String, TiledGrid>();
+    private FlowTracer m_lowResTracer = null;
     
     @Override
     @SuppressWarnings("deprecation")
@@ -57,33 +75,127 @@ public class FlowPath extends FieldScopeSOE
         if (propertySet.getProperty("LowResolutionMaxSteps") != null) {
             m_maxLowResolutionSteps = Integer.parseInt(propertySet.getProperty("LowResolutionMaxSteps").toString());
         }
+        if (propertySet.getProperty("FlowPathsMaxCells") != null) {
+            m_flowPathsMaxCells = Integer.parseInt(propertySet.getProperty("FlowPathsMaxCells").toString());
+        }
+        if (propertySet.getProperty("LowResolutionCachedTiles") != null) {
+            m_lowResolutionCachedTiles = Integer.parseInt(propertySet.getProperty("LowResolutionCachedTiles").toString());
+        }
+        if (propertySet.getProperty("LowResolutionMemoMegabytes") != null) {
+            m_lowResolutionMemoBytes = Long.parseLong(propertySet.getProperty("LowResolutionMemoMegabytes").toString()) << 20;
+        }
+        if (propertySet.getProperty("LowResolutionRunLengths") != null) {
+            m_lowResolutionRunLengths = Boolean.parseBoolean(propertySet.getProperty("LowResolutionRunLengths").toString());
+        }
+        if (propertySet.getProperty("LowResolutionRunLengthParallelism") != null) {
+            m_lowResolutionRunLengthParallelism = Integer.parseInt(propertySet.getProperty("LowResolutionRunLengthParallelism").toString());
+        }
+        if (propertySet.getProperty("LowResolutionRunLengthFile") != null) {
+            m_lowResolutionRunLengthFile = propertySet.getProperty("LowResolutionRunLengthFile").toString().trim();
+        }
+        if (propertySet.getProperty("CatalogCacheMaxRasters") != null) {
+            m_catalogCacheMaxRasters = Integer.parseInt(propertySet.getProperty("CatalogCacheMaxRasters").toString());
+        }
+        if (propertySet.getProperty("CatalogCacheMaxMegabytes") != null) {
+            m_catalogCacheMaxBytes = Long.parseLong(propertySet.getProperty("CatalogCacheMaxMegabytes").toString()) << 20;
+        }
+        if (propertySet.getProperty("CatalogTileCacheMaxMegabytes") != null) {
+            m_catalogTileCacheMaxBytes = Long.parseLong(propertySet.getProperty("CatalogTileCacheMaxMegabytes").toString()) << 20;
+        }
+        if (propertySet.getProperty("HighResolutionIndexMaxMegabytes") != null) {
+            m_highResolutionIndexMaxBytes = Long.parseLong(propertySet.getProperty("HighResolutionIndexMaxMegabytes").toString()) << 20;
+        }
+        if (propertySet.getProperty("HighResolutionMaxRasters") != null) {
+            m_maxHighResolutionRasters = Integer.parseInt(propertySet.getProperty("HighResolutionMaxRasters").toString());
+        }
+        CatalogRasters.configure(m_catalogCacheMaxRasters, m_catalogCacheMaxBytes, m_catalogTileCacheMaxBytes);
         // Raster(Object) is deprecated, but no alternative currently exists
         m_LowResFlowDir = new Raster(getDataSourceByID(0));
         if (m_LowResFlowDir == null) {
             logError("missing or invalid data layer: low resolution flow direction");
+        } else {
+            // Tiles of the low resolution grid stay cached between requests
+            m_lowResTracer = new FlowTracer(openTiles(m_LowResFlowDir, 0), m_lowResolutionCachedTiles);
+            // Paths from nearby pour points soon merge, so the downstream
+            // part of each low resolution trace is remembered for reuse, in
+            // at most LowResolutionMemoMegabytes; the least recently used
+            // paths are forgotten once it is full
+            int memoCells = FlowMemo.getMaxCells(m_lowResolutionMemoBytes);
+            if (memoCells > 0) {
+                try {
+                    m_lowResTracer.setMemo(new FlowMemo(memoCells));
+                } catch (IllegalArgumentException e) {
+                    logWarning("low resolution flow direction grid is too large to memoize");
+                }
+            }
+            if (m_lowResolutionRunLengths) {
+                try {
+                    m_lowResTracer.setRunLengths(loadRunLengths(m_lowResTracer.getTiles()));
+                } catch (IllegalArgumentException e) {
+                    logWarning("low resolution flow direction grid is too large for run lengths");
+                }
+            }
         }
         m_HighResFlowDirIndex = new FeatureClass(getDataSourceByID(1));
         if (m_HighResFlowDirIndex == null) {
             logWarning("missing or invalid data layer: high resolution flow direction index");
+        } else if (m_LowResFlowDir != null) {
+            m_highResFlowDirValues = PolygonValueIndex.load(m_HighResFlowDirIndex, "VALUE", ((IRasterProps)m_LowResFlowDir).getSpatialReference(),
+                                                            m_highResolutionIndexMaxBytes);
+            if (m_highResFlowDirValues == null) {
+                logWarning("high resolution flow direction index is too large to hold in memory");
+            }
         }
         m_HighResFlowDirCatalog = new FeatureClass(getDataSourceByID(2));
         if (m_HighResFlowDirCatalog == null) {
             logWarning("missing or invalid data layer: high resolution flow direction catalog");
         }
+        if (propertySet.getProperty("SampleLayers") != null) {
+            for (String name : propertySet.getProperty("SampleLayers").toString().split(",")) {
+                name = name.trim();
+                if (name.length() == 0) {
+                    continue;
+                }
+                Object dataSource = getDataSourceByName(name);
+                if (dataSource == null) {
+                    logWarning("missing or invalid sample layer: " + name);
+                    continue;
+                }
+                // Raster(Object) is deprecated, but no alternative currently exists
+                Raster sampleRaster = new Raster(dataSource);
+                //
+                // Samples are read at path vertices, which are in the low
+                // resolution grid's spatial reference
+                //
+                if ((m_LowResFlowDir != null) &&
+                    (sampleRaster.getSpatialReference().getFactoryCode() != ((IRasterProps)m_LowResFlowDir).getSpatialReference().getFactoryCode())) {
+                    logWarning("sample layer " + name + " is not in the spatial reference of the low resolution flow direction grid");
+                    continue;
+                }
+                m_sampleLayers.put(name.toLowerCase(), openTiles(sampleRaster, 0));
+            }
+        }
     }
     
     @Override 
     public void shutdown () throws IOException, AutomationException {
         super.shutdown();
         m_LowResFlowDir = null;
+        m_lowResTracer = null;
+        m_sampleLayers.clear();
         m_HighResFlowDirIndex = null;
+        m_highResFlowDirValues = null;
     }
     
     public String getSchema() throws IOException, AutomationException {
         JSONObject result = ServerUtilities.createResource("FlowPath", "Compute flow path downhill from pour point", false, false);
         JSONArray operations = new JSONArray();
-        operations.put(ServerUtilities.createOperation("flowPath", "pourPoint, outSR", "json", false));
+        operations.put(ServerUtilities.createOperation("flowPath", "pourPoint, outSR, returnM, returnDistances, sampleLayers, velocityLayer", "json", false));
+        operations.put(ServerUtilities.createOperation("flowPaths", "pourPoints, outSR, returnM, returnDistances, sampleLayers, velocityLayer", "json", false));
         result.put("operations", operations);
+        JSONArray resources = new JSONArray();
+        resources.put(createStatsResource());
+        result.put("resources", resources);
         return result.toString();
     }
     
@@ -104,137 +216,346 @@ public class FlowPath extends FieldScopeSOE
                                          Map<String, String> responsePropertiesMap) throws Exception {
         byte[] operationOutput = null;
         if (operationName.equalsIgnoreCase("flowPath")) {
-            JSONObject pointJson = operationInput.getJSONObject("pourPoint");
-            IPoint point = ServerUtilities.getPointFromJSON(pointJson);
             ISpatialReference outSR = getSpatialReferenceParam(operationInput, "outSR");
-            ISpatialReference workSR = ((IRasterProps)m_LowResFlowDir).getSpatialReference();
-            if ((point.getSpatialReference() != null) && (point.getSpatialReference().getFactoryCode() != workSR.getFactoryCode())) {
-                point.project(workSR);
-            }
-
-            Path path = new Path();
-            path.addPoint(point, null, null);
-            IRaster highResFlowDir = null;
-            if ((m_HighResFlowDirIndex != null) && (m_HighResFlowDirCatalog != null)) {
-                Object hiResDS = Util.findValue(m_HighResFlowDirIndex, "VALUE", point);
-                if (hiResDS != null) {
-                    highResFlowDir = Util.findRaster(m_HighResFlowDirCatalog, hiResDS.toString());
-                }
-            }
-            if (highResFlowDir != null) {
-                tracePath(point, highResFlowDir, m_maxHighResolutionSteps, path);
+            ISpatialReference workSR = getRasterSpatialReference(0, m_LowResFlowDir);
+            IPoint point = readPourPoint(operationInput.getJSONObject("pourPoint"), workSR);
+
+            FlowNetwork network = new FlowNetwork();
+            FlowNetwork.Branch branch = network.addBranch(0, point.getX(), point.getY());
+            String highResName = findHighResFlowDirName(point);
+            if (highResName != null) {
+                Map<String, List<FlowNetwork.Branch>> pending = new LinkedHashMap<String, List<FlowNetwork.Branch>>();
+                pending.put(highResName, new ArrayList<FlowNetwork.Branch>(Collections.singletonList(branch)));
+                traceHighResolution(network, pending);
             }
-            tracePath(point, m_LowResFlowDir, m_maxLowResolutionSteps, path);
+            FlowTracer.Vertices vertices = branch.vertices;
+            int steps = m_lowResTracer.trace(vertices.getLastX(), vertices.getLastY(), m_maxLowResolutionSteps, vertices);
+            getMetrics().add("cellsVisited", steps);
+            getMetrics().add("verticesEmitted", vertices.size());
 
-            Polyline poly = new Polyline();
-            poly.addGeometry(path, null, null);
-            poly.setSpatialReferenceByRef(workSR);
+            FeatureSet result = new FeatureSet();
+            result.geometryType = esriGeometryType.esriGeometryPolyline;
+            result.features.add(toFeature(vertices, workSR, outSR, readMeasures(operationInput)));
+            
+            operationOutput = result.toJsonObject().toString().getBytes("utf-8");
+        } else if (operationName.equalsIgnoreCase("flowPaths")) {
+            JSONArray pointsJson = operationInput.getJSONArray("pourPoints");
+            if (pointsJson.length() > MAX_POUR_POINTS) {
+                throw new IllegalArgumentException("at most " + MAX_POUR_POINTS + " pour points are allowed");
+            }
+            ISpatialReference outSR = getSpatialReferenceParam(operationInput, "outSR");
+            ISpatialReference workSR = getRasterSpatialReference(0, m_LowResFlowDir);
 
-            if ((outSR != null) && (outSR.getFactoryCode() != poly.getSpatialReference().getFactoryCode())) {
-                poly.project(outSR);
+            //
+            // Group the pour points by high resolution raster, so each is
+            // opened once and its tiles are shared by all the traces in it.
+            // The cells all the traces may visit between them are capped.
+            //
+            FlowNetwork network = new FlowNetwork(m_flowPathsMaxCells);
+            Map<String, List<FlowNetwork.Branch>> groups = new LinkedHashMap<String, List<FlowNetwork.Branch>>();
+            for (int i = 0; i < pointsJson.length(); i += 1) {
+                IPoint point = readPourPoint(pointsJson.getJSONObject(i), workSR);
+                FlowNetwork.Branch branch = network.addBranch(i, point.getX(), point.getY());
+                String name = findHighResFlowDirName(point);
+                if (name != null) {
+                    List<FlowNetwork.Branch> group = groups.get(name);
+                    if (group == null) {
+                        group = new ArrayList<FlowNetwork.Branch>();
+                        groups.put(name, group);
+                    }
+                    group.add(branch);
+                }
+            }
+            traceHighResolution(network, groups);
+            FlowNetwork.Grid lowResGrid = network.newGrid(m_lowResTracer.getTiles());
+            long steps = 0;
+            for (FlowNetwork.Branch branch : network.getBranches()) {
+                steps += lowResGrid.trace(m_lowResTracer, branch, m_maxLowResolutionSteps, null);
             }
+            getMetrics().add("cellsVisited", steps);
 
-            Feature resultFeature = new Feature();
-            resultFeature.geometry = poly;
-            resultFeature.attributes.put("Shape_Length", path.getLength());
-            resultFeature.attributes.put("Shape_Units", describeUnits(path.getSpatialReference()));
+            Measures measures = readMeasures(operationInput);
             FeatureSet result = new FeatureSet();
             result.geometryType = esriGeometryType.esriGeometryPolyline;
-            result.features.add(resultFeature);
-            
+            for (FlowNetwork.Section section : network.getSections()) {
+                Feature resultFeature = toFeature(section.vertices, workSR, outSR, measures);
+                resultFeature.attributes.put("SectionID", section.id);
+                resultFeature.attributes.put("DownstreamSectionID", section.downstream);
+                resultFeature.attributes.put("PourPoint", section.pourPoint);
+                resultFeature.attributes.put("PourPoints", join(section.pourPoints));
+                resultFeature.attributes.put("PourPointCount", section.pourPoints.size());
+                result.features.add(resultFeature);
+                getMetrics().add("verticesEmitted", section.vertices.size());
+            }
+
             operationOutput = result.toJsonObject().toString().getBytes("utf-8");
         }
         return operationOutput;
     }
     
-    private void tracePath (IPoint pourPoint, IRaster raster, int maxSteps, IPointCollection path) throws IOException {
-        Point point = new Point();
-        point.setX(pourPoint.getX());
-        point.setY(pourPoint.getY());
-        IRaster2 raster2 = (IRaster2)raster;
-        IRasterBand rasterBand = ((IRasterBandCollection)raster2).item(0);
-        IRawPixels rawPixels = new IRawPixelsProxy(rasterBand);
-        IRasterProps rasterProperties = new IRasterPropsProxy(rasterBand);
-        int rasterWidth = rasterProperties.getWidth();
-        int rasterHeight = rasterProperties.getHeight();
-        Object noDataValue = rasterProperties.getNoDataValue();
-        int noData = (noDataValue instanceof Number) ? ((Number)noDataValue).intValue() : -1;
-        IPnt cellSize = rasterProperties.meanCellSize();
-        IPnt blockSize = new Pnt();
-        blockSize.setCoords(rasterProperties.getWidth(), rasterProperties.getHeight());
-        IPixelBlock pixelBlock = raster.createPixelBlock(blockSize);
-        IPnt origin = new Pnt();
-        origin.setCoords(0, 0);
-        rawPixels.read(origin, pixelBlock);
-        Object data = ((IPixelBlock3)pixelBlock).getPixelDataByRef(0);
-        double dx = 0;
-        double dy = 0;
-        double lastDx;
-        double lastDy;
-        int[] row = { -1 };
-        int[] col = { -1 };
-        int steps = 0;
-        while (true) {
-            steps += 1;
-            raster2.mapToPixel(point.getX(), point.getY(), col, row);
-            if ((col[0] < 0) || (col[0] >= rasterWidth) || (row[0] < 0) || (row[0] >= rasterHeight)) {
-                break;
-            }
-            Number value = (Number)Array.get(Array.get(data, col[0]), row[0]);
-            if ((value == null) || (value.intValue() == noData)) {
-                break;
-            }
-            int flowDir = value.intValue();
-            lastDx = dx;
-            lastDy = dy;
-            switch (flowDir) {
-                case 1:
-                    dx = cellSize.getX();
-                    dy = 0;
-                    break;
-                case 2:
-                    dx = cellSize.getX();
-                    dy = -cellSize.getY();
-                    break;
-                case 4:
-                    dx = 0;
-                    dy = -cellSize.getY();
-                    break;
-                case 8:
-                    dx = -cellSize.getX();
-                    dy = -cellSize.getY();
-                    break;
-                case 16:
-                    dx = -cellSize.getX();
-                    dy = 0;
-                    break;
-                case 32:
-                    dx = -cellSize.getX();
-                    dy = cellSize.getY();
-                    break;
-                case 64:
-                    dx = 0;
-                    dy = cellSize.getY();
-                    break;
-                case 128:
-                    dx = cellSize.getX();
-                    dy = cellSize.getY();
-                    break;
-                default:
-                    dx = dy = 0;
-                    break;
-            }
-            if ((dx != lastDx) || (dy != lastDy)) {
-                path.addPoint((IPoint)point.esri_clone(), null, null);
-            }
-            if (((dx == 0) && (dy == 0)) || (steps > maxSteps)) {
-                break;
-            }
-            point.setX(point.getX() + dx);
-            point.setY(point.getY() + dy);
-        }
-        path.addPoint((IPoint)point.esri_clone(), null, null);
-        pourPoint.setX(point.getX());
-        pourPoint.setY(point.getY());
-    }
-}
\ No newline at end of file
+    private static IPoint readPourPoint (JSONObject pointJson, ISpatialReference workSR) throws IOException {
+        IPoint point = ServerUtilities.getPointFromJSON(pointJson);
+        if ((point.getSpatialReference() != null) && (point.getSpatialReference().getFactoryCode() != workSR.getFactoryCode())) {
+            point.project(workSR);
+        }
+        return point;
+    }
+
+    //
+    // Trace branches over the high resolution rasters, starting each one in
+    // the raster it is listed under in pending. A branch that runs off the
+    // data of one raster carries on in the raster the index names for the
+    // point where it left, with the steps it has left, until it has crossed
+    // m_maxHighResolutionRasters rasters. Each raster is opened once, and
+    // branches meeting in any of them are merged.
+    //
+    private void traceHighResolution (FlowNetwork network, Map<String, List<FlowNetwork.Branch>> pending) throws IOException {
+        Map<String, FlowTracer> tracers = new HashMap<String, FlowTracer>();
+        Map<String, FlowNetwork.Grid> grids = new HashMap<String, FlowNetwork.Grid>();
+        Map<FlowNetwork.Branch, int[]> budgets = new HashMap<FlowNetwork.Branch, int[]>();
+        while (!pending.isEmpty()) {
+            Iterator<Map.Entry<String, List<FlowNetwork.Branch>>> first = pending.entrySet().iterator();
+            Map.Entry<String, List<FlowNetwork.Branch>> group = first.next();
+            first.remove();
+            String name = group.getKey();
+            if (!tracers.containsKey(name)) {
+                TiledRaster tiles = CatalogRasters.getTiles(m_HighResFlowDirCatalog, name, 0);
+                tracers.put(name, (tiles != null) ? new FlowTracer(tiles, HIGH_RES_CACHED_TILES) : null);
+                if (tiles != null) {
+                    grids.put(name, network.newGrid(tiles));
+                }
+            }
+            FlowTracer tracer = tracers.get(name);
+            if (tracer == null) {
+                continue;
+            }
+            TiledGrid tiles = tracer.getTiles();
+            for (FlowNetwork.Branch branch : group.getValue()) {
+                // Steps and rasters the branch has left
+                int[] budget = budgets.get(branch);
+                if (budget == null) {
+                    budget = new int[] { m_maxHighResolutionSteps, m_maxHighResolutionRasters };
+                    budgets.put(branch, budget);
+                }
+                int steps = grids.get(name).trace(tracer, branch, budget[0], null);
+                getMetrics().add("cellsVisited", steps);
+                budget[0] -= steps;
+                budget[1] -= 1;
+                if (branch.isJoined() || (budget[0] <= 0) || (budget[1] <= 0)) {
+                    continue;
+                }
+                // Carry on only if the path ran off this raster's data
+                double x = branch.vertices.getLastX();
+                double y = branch.vertices.getLastY();
+                if (!tracer.isNoData(tiles.getColumn(x), tiles.getRow(y))) {
+                    continue;
+                }
+                String next = findHighResFlowDirName(x, y);
+                if ((next != null) && !next.equals(name)) {
+                    List<FlowNetwork.Branch> nextGroup = pending.get(next);
+                    if (nextGroup == null) {
+                        nextGroup = new ArrayList<FlowNetwork.Branch>();
+                        pending.put(next, nextGroup);
+                    }
+                    nextGroup.add(branch);
+                }
+            }
+        }
+    }
+
+    //
+    // Name of the high resolution flow direction raster covering a point,
+    // or null if there is none
+    //
+    private String findHighResFlowDirName (IPoint point) throws IOException {
+        if ((m_HighResFlowDirIndex == null) || (m_HighResFlowDirCatalog == null)) {
+            return null;
+        }
+        if (m_highResFlowDirValues != null) {
+            return m_highResFlowDirValues.find(point.getX(), point.getY());
+        }
+        Object hiResDS = Util.findValue(m_HighResFlowDirIndex, "VALUE", point);
+        return (hiResDS != null) ? hiResDS.toString() : null;
+    }
+
+    private String findHighResFlowDirName (double x, double y) throws IOException {
+        if (m_highResFlowDirValues != null) {
+            return m_highResFlowDirValues.find(x, y);
+        }
+        IPoint point = new Point();
+        point.putCoords(x, y);
+        point.setSpatialReferenceByRef(getRasterSpatialReference(0, m_LowResFlowDir));
+        return findHighResFlowDirName(point);
+    }
+
+    //
+    // Optional per-vertex measures a client asked for
+    //
+    private static class Measures
+    {
+        public boolean returnM = false;
+        public boolean returnDistances = false;
+        public Map<String, TiledGrid> samples = new LinkedHashMap<String, TiledGrid>();
+        public TiledGrid velocity = null;
+    }
+
+    private Measures readMeasures (JSONObject operationInput) {
+        Measures result = new Measures();
+        result.returnM = operationInput.optBoolean("returnM", false);
+        result.returnDistances = operationInput.optBoolean("returnDistances", false);
+        JSONArray names = operationInput.optJSONArray("sampleLayers");
+        if (names != null) {
+            for (int i = 0; i < names.length(); i += 1) {
+                String name = names.getString(i);
+                result.samples.put(name, getSampleLayer(name));
+            }
+        }
+        String velocity = operationInput.optString("velocityLayer", null);
+        if ((velocity != null) && (velocity.length() > 0)) {
+            result.velocity = getSampleLayer(velocity);
+        }
+        return result;
+    }
+
+    private TiledGrid getSampleLayer (String name) {
+        TiledGrid result = m_sampleLayers.get(name.toLowerCase());
+        if (result == null) {
+            throw new IllegalArgumentException("unknown sample layer: " + name);
+        }
+        return result;
+    }
+
+    //
+    // Polyline feature for a traced path. Requested measures are added as
+    // M-values (distance along the path, in the working spatial reference)
+    // or as arrays with one entry per vertex: Distances, TravelTimes
+    // (distance over velocity, so in seconds for a velocity in map units
+    // per second) and one array named after each sample layer.
+    //
+    private static Feature toFeature (FlowTracer.Vertices vertices, ISpatialReference workSR, ISpatialReference outSR, Measures measures) throws IOException {
+        // M-values are distances in the working spatial reference, so a path
+        // with them is projected after they are set
+        CoordinateTransform transform = measures.returnM ? null : getTransform(workSR, outSR);
+        Path path = toPath(vertices, transform);
+
+        Polyline poly = new Polyline();
+        poly.addGeometry(path, null, null);
+        poly.setSpatialReferenceByRef((transform != null) ? outSR : workSR);
+        if (measures.returnM) {
+            poly.setMAware(true);
+            poly.setMsAsDistance(false);
+        }
+
+        if ((transform == null) && (outSR != null) && (outSR.getFactoryCode() != poly.getSpatialReference().getFactoryCode())) {
+            poly.project(outSR);
+        }
+
+        Feature resultFeature = new Feature();
+        resultFeature.geometry = poly;
+        resultFeature.attributes.put("Shape_Length", path.getLength());
+        resultFeature.attributes.put("Shape_Units", describeUnits(path.getSpatialReference()));
+        if (measures.returnDistances || (measures.velocity != null)) {
+            double[] distances = FlowMeasures.getDistances(vertices);
+            if (measures.returnDistances) {
+                resultFeature.attributes.put("Distances", toJsonArray(distances));
+            }
+            if (measures.velocity != null) {
+                double[] times = FlowMeasures.getTravelTimes(distances, FlowMeasures.sample(measures.velocity, vertices));
+                resultFeature.attributes.put("TravelTimes", toJsonArray(times));
+            }
+        }
+        for (Map.Entry<String, TiledGrid> sample : measures.samples.entrySet()) {
+            TiledGrid tiles = sample.getValue();
+            double[] values = FlowMeasures.sample(tiles, vertices);
+            List<Object> boxed = new ArrayList<Object>(values.length);
+            for (int i = 0; i < values.length; i += 1) {
+                boxed.add(tiles.box(values[i]));
+            }
+            resultFeature.attributes.put(sample.getKey(), new JSONArray(boxed));
+        }
+        return resultFeature;
+    }
+
+    private static JSONArray toJsonArray (double[] values) {
+        List<Object> result = new ArrayList<Object>(values.length);
+        for (int i = 0; i < values.length; i += 1) {
+            result.add(Double.isNaN(values[i]) ? null : Double.valueOf(values[i]));
+        }
+        return new JSONArray(result);
+    }
+
+    private static String join (List<Integer> values) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < values.size(); i += 1) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(values.get(i));
+        }
+        return result.toString();
+    }
+    
+    //
+    // Straight-run lengths of the low resolution grid, read from the sidecar
+    // file if one is configured and matches the grid, and otherwise built
+    // (and saved there) on LowResolutionRunLengthParallelism workers.
+    // Delete the file whenever the grid changes.
+    //
+    private FlowRunLengths loadRunLengths (TiledGrid tiles) throws IOException {
+        File file = (m_lowResolutionRunLengthFile.length() > 0) ? new File(m_lowResolutionRunLengthFile) : null;
+        if (file != null) {
+            try {
+                FlowRunLengths result = FlowRunLengths.load(file, tiles);
+                if (result != null) {
+                    return result;
+                }
+                if (file.exists()) {
+                    logInfo("run lengths in " + file + " don't match the flow direction grid; rebuilding them");
+                }
+            } catch (IOException e) {
+                logWarning("unable to read run lengths from " + file + ", rebuilding them: " + e.getMessage());
+            }
+        }
+        ExecutorService workers = WorkerPool.create("FlowPath", m_lowResolutionRunLengthParallelism);
+        FlowRunLengths result;
+        try {
+            result = FlowRunLengths.build(tiles, workers);
+        } finally {
+            if (workers != null) {
+                workers.shutdown();
+            }
+        }
+        if (file != null) {
+            try {
+                result.save(file);
+            } catch (IOException e) {
+                logWarning("unable to save run lengths to " + file + ": " + e.getMessage());
+            }
+        }
+        return result;
+    }
+    
+    //
+    // Copy traced vertices, projected by transform if there is one, into a
+    // Path with a single COM call
+    //
+    private static Path toPath (FlowTracer.Vertices vertices, CoordinateTransform transform) throws IOException {
+        double[] coordinates = new double[vertices.size() * 2];
+        for (int i = 0; i < vertices.size(); i += 1) {
+            coordinates[i * 2] = vertices.getX(i);
+            coordinates[i * 2 + 1] = vertices.getY(i);
+        }
+        if (transform != null) {
+            transform.transform(coordinates);
+        }
+        _WKSPoint[] points = new _WKSPoint[vertices.size()];
+        for (int i = 0; i < points.length; i += 1) {
+            points[i] = new _WKSPoint();
+            points[i].x = coordinates[i * 2];
+            points[i].y = coordinates[i * 2 + 1];
+        }
+        Path path = new Path();
+        path.addWKSPoints(points.length, points);
+        return path;
+    }
+}
@@ -0,0 +1,218 @@
+package org.ngs.fieldscope;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+//
+// For every cell of a D8 flow-direction grid, the number of cells in the
+// straight run that starts there: the cell itself and the cells after it
+// that keep the same direction. A trace can then jump from one change of
+// direction to the next instead of stepping through every cell. Lengths are
+// held one byte per cell; MAX_RUN means "at least MAX_RUN", and the trace
+// simply looks again where that run ends.
+//
+public class FlowRunLengths
+{
+    public static final int MAX_RUN = 255;
+
+    private static final int FILE_MAGIC = 0x46524C32;
+    private static final int FILE_HEADER_BYTES = 20;
+    private static final int BAND_HEIGHT = 256;
+
+    private final int m_width;
+    private final int m_height;
+    private final long m_fingerprint;
+    private final byte[] m_runs;
+
+    private FlowRunLengths (int width, int height, long fingerprint, byte[] runs) {
+        m_width = width;
+        m_height = height;
+        m_fingerprint = fingerprint;
+        m_runs = runs;
+    }
+
+    public int getWidth () {
+        return m_width;
+    }
+
+    public int getHeight () {
+        return m_height;
+    }
+
+    //
+    // Length of the run starting at a cell inside the grid, at least 1
+    //
+    public int get (int column, int row) {
+        return Math.max(1, m_runs[row * m_width + column] & 0xFF);
+    }
+
+    //
+    // Read every tile of the grid once, then work out the runs over bands of
+    // rows, in parallel on the workers if there are any
+    //
+    public static FlowRunLengths build (TiledGrid tiles, ExecutorService workers) throws IOException {
+        final int width = tiles.getWidth();
+        final int height = tiles.getHeight();
+        if ((long)width * height >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("grid is too large for run lengths");
+        }
+        final byte[] directions = new byte[width * height];
+        int tileSize = tiles.getTileSize();
+        int tileCount = ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+        for (int t = 0; t < tileCount; t += 1) {
+            TiledGrid.Tile tile = tiles.readTile(t);
+            for (int row = tile.originRow; row < tile.originRow + tile.height; row += 1) {
+                for (int column = tile.originColumn; column < tile.originColumn + tile.width; column += 1) {
+                    directions[row * width + column] = (byte)FlowTracer.toDirection(tile.get(column, row));
+                }
+            }
+        }
+        final byte[] runs = new byte[width * height];
+        List<Callable<Object>> bands = new ArrayList<Callable<Object>>();
+        for (int top = 0; top < height; top += BAND_HEIGHT) {
+            final int first = top;
+            final int end = Math.min(height, top + BAND_HEIGHT);
+            bands.add(new Callable<Object>() {
+                public Object call () {
+                    computeBand(directions, runs, width, height, first, end);
+                    return null;
+                }
+            });
+        }
+        WorkerPool.invokeAll(workers, bands);
+        return new FlowRunLengths(width, height, tiles.getFingerprint(), runs);
+    }
+
+    //
+    // Runs are built from the far end of each direction back towards its
+    // start, so a cell's length is one more than the next cell's when both
+    // point the same way. Each direction is handled in its own pass in the
+    // order that makes this work; a run leaving the band is counted by
+    // walking it directly.
+    //
+    private static void computeBand (byte[] directions, byte[] runs, int width, int height, int first, int end) {
+        for (int row = first; row < end; row += 1) {
+            // East: right to left
+            for (int column = width - 1; column >= 0; column -= 1) {
+                int cell = row * width + column;
+                if (directions[cell] == 1) {
+                    runs[cell] = (byte)(((column + 1 < width) && (directions[cell + 1] == 1)) ? Math.min(MAX_RUN, (runs[cell + 1] & 0xFF) + 1) : 1);
+                }
+            }
+            // West: left to right
+            for (int column = 0; column < width; column += 1) {
+                int cell = row * width + column;
+                if (directions[cell] == 16) {
+                    runs[cell] = (byte)(((column > 0) && (directions[cell - 1] == 16)) ? Math.min(MAX_RUN, (runs[cell - 1] & 0xFF) + 1) : 1);
+                }
+            }
+        }
+        // Southward: bottom row of the band first
+        for (int row = end - 1; row >= first; row -= 1) {
+            for (int column = 0; column < width; column += 1) {
+                int cell = row * width + column;
+                int direction = directions[cell] & 0xFF;
+                if ((direction != 0) && (FlowTracer.getRowOffset(direction) > 0)) {
+                    runs[cell] = (byte)runFrom(directions, runs, width, height, column, row, direction, first, end);
+                }
+            }
+        }
+        // Northward: top row of the band first
+        for (int row = first; row < end; row += 1) {
+            for (int column = 0; column < width; column += 1) {
+                int cell = row * width + column;
+                int direction = directions[cell] & 0xFF;
+                if ((direction != 0) && (FlowTracer.getRowOffset(direction) < 0)) {
+                    runs[cell] = (byte)runFrom(directions, runs, width, height, column, row, direction, first, end);
+                }
+            }
+        }
+    }
+
+    private static int runFrom (byte[] directions, byte[] runs, int width, int height, int column, int row, int direction, int first, int end) {
+        int nextColumn = column + FlowTracer.getColumnOffset(direction);
+        int nextRow = row + FlowTracer.getRowOffset(direction);
+        if ((nextColumn < 0) || (nextColumn >= width) || (nextRow < 0) || (nextRow >= height)) {
+            return 1;
+        }
+        int next = nextRow * width + nextColumn;
+        if ((directions[next] & 0xFF) != direction) {
+            return 1;
+        }
+        if ((nextRow >= first) && (nextRow < end)) {
+            return Math.min(MAX_RUN, (runs[next] & 0xFF) + 1);
+        }
+        // The run carries on into another band, whose lengths may not be
+        // ready yet
+        int result = 1;
+        while (result < MAX_RUN) {
+            column += FlowTracer.getColumnOffset(direction);
+            row += FlowTracer.getRowOffset(direction);
+            if ((column < 0) || (column >= width) || (row < 0) || (row >= height) ||
+                ((directions[row * width + column] & 0xFF) != direction)) {
+                break;
+            }
+            result += 1;
+        }
+        return result;
+    }
+
+    //
+    // Read run lengths saved by save(), or return null if the file is
+    // missing, is not the right length, or was written for a different
+    // grid. Throws IOException if the file can't be read.
+    //
+    public static FlowRunLengths load (File file, TiledGrid tiles) throws IOException {
+        int width = tiles.getWidth();
+        int height = tiles.getHeight();
+        if (!file.isFile() || (file.length() != FILE_HEADER_BYTES + (long)width * height)) {
+            return null;
+        }
+        long fingerprint = tiles.getFingerprint();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if ((in.readInt() != FILE_MAGIC) || (in.readInt() != width) || (in.readInt() != height) || (in.readLong() != fingerprint)) {
+                return null;
+            }
+            byte[] runs = new byte[width * height];
+            in.readFully(runs);
+            return new FlowRunLengths(width, height, fingerprint, runs);
+        } finally {
+            in.close();
+        }
+    }
+
+    //
+    // Write the run lengths to a sidecar file, through a temporary file so
+    // a reader never sees a partial one
+    //
+    public void save (File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(m_width);
+            out.writeInt(m_height);
+            out.writeLong(m_fingerprint);
+            out.write(m_runs);
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("can't replace " + file);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("can't write " + file);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.ngs.fieldscope;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+//
+// Follows a D8 flow-direction raster downhill from a starting point. The
+// walk is done in integer column/row space using an offset table indexed by
+// direction code, reading tiles only as the path enters them; map
+// coordinates are worked out only for the vertices that are emitted.
+//
+// The vertices are the same ones FlowPath has always produced: the start
+// point moved by whole cells, emitted wherever the direction changes
+// (including the first cell) and once more at the end of the trace.
+//
+public class FlowTracer
+{
+    //
+    // D8 codes: 1 east, 2 south-east, 4 south, 8 south-west, 16 west,
+    // 32 north-west, 64 north, 128 north-east. Any other value, including
+    // 0, ends the path.
+    //
+    private static final int[] COLUMN_OFFSETS = new int[256];
+    private static final int[] ROW_OFFSETS = new int[256];
+    static {
+        int[] codes = { 1, 2, 4, 8, 16, 32, 64, 128 };
+        int[] columns = { 1, 1, 0, -1, -1, -1, 0, 1 };
+        int[] rows = { 0, 1, 1, 1, 0, -1, -1, -1 };
+        for (int i = 0; i < codes.length; i += 1) {
+            COLUMN_OFFSETS[codes[i]] = columns[i];
+            ROW_OFFSETS[codes[i]] = rows[i];
+        }
+    }
+
+    private final TiledGrid m_tiles;
+    private final TileCache m_cache;
+    private FlowMemo m_memo;
+    private FlowRunLengths m_runs;
+
+    public FlowTracer (TiledGrid tiles, int maxCachedTiles) {
+        m_tiles = tiles;
+        m_cache = new TileCache(tiles, maxCachedTiles);
+        m_memo = null;
+        m_runs = null;
+    }
+
+    public TiledGrid getTiles () {
+        return m_tiles;
+    }
+
+    //
+    // True if a cell is outside the raster or NoData
+    //
+    public synchronized boolean isNoData (int column, int row) throws IOException {
+        return Double.isNaN(m_cache.get(column, row));
+    }
+
+    public static int toDirection (double value) {
+        if (Double.isNaN(value)) {
+            return 0;
+        }
+        int code = (int)value;
+        return ((code > 0) && (code < 256) && ((COLUMN_OFFSETS[code] != 0) || (ROW_OFFSETS[code] != 0))) ? code : 0;
+    }
+
+    public static int getColumnOffset (int direction) {
+        return COLUMN_OFFSETS[direction];
+    }
+
+    public static int getRowOffset (int direction) {
+        return ROW_OFFSETS[direction];
+    }
+
+    //
+    // Remember traced paths so later traces can replay shared downstream
+    // sections instead of reading them again; null turns this off
+    //
+    public synchronized void setMemo (FlowMemo memo) {
+        if ((long)m_tiles.getWidth() * m_tiles.getHeight() >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("grid is too large to memoize");
+        }
+        m_memo = memo;
+    }
+
+    public synchronized FlowMemo getMemo () {
+        return m_memo;
+    }
+
+    //
+    // Straight-run lengths for the grid, letting a trace jump from one
+    // change of direction to the next; null to step cell by cell
+    //
+    public synchronized void setRunLengths (FlowRunLengths runs) {
+        if ((runs != null) && ((runs.getWidth() != m_tiles.getWidth()) || (runs.getHeight() != m_tiles.getHeight()))) {
+            throw new IllegalArgumentException("run lengths are for a different grid");
+        }
+        m_runs = runs;
+        if (m_memo != null) {
+            m_memo.clear();
+        }
+    }
+
+    //
+    // Trace from (x, y) for at most maxSteps cells, appending vertices to
+    // path. The last vertex added is where the trace stopped. Returns the
+    // number of cells stepped through.
+    //
+    // With run lengths, the cells of a straight run after the first are
+    // skipped over (counting towards the step limit) rather than read, so
+    // the work done is proportional to the number of vertices.
+    //
+    // With a memo, each visited cell is first looked up there. Once the
+    // trace reaches a memoized cell it replays the stored directions and
+    // skips, following segment links, and only goes back to reading tiles
+    // if it runs off the end of an open segment. The cells it visited itself
+    // are then added to the memo, as one section per stretch of tile
+    // reading. Since only visited cells are memoized, a trace joining the
+    // middle of an earlier straight run is recognized at the end of it.
+    //
+    public int trace (double x, double y, int maxSteps, Vertices path) throws IOException {
+        return trace(x, y, maxSteps, path, null);
+    }
+
+    //
+    // As above, also passing each visited cell inside the raster to visitor
+    // before it is read; the trace stops there if the visitor returns false
+    //
+    public synchronized int trace (double x, double y, int maxSteps, Vertices path, CellVisitor visitor) throws IOException {
+        double cellWidth = m_tiles.getCellWidth();
+        double cellHeight = m_tiles.getCellHeight();
+        int width = m_tiles.getWidth();
+        int startColumn = m_tiles.getColumn(x);
+        int startRow = m_tiles.getRow(y);
+        int column = startColumn;
+        int row = startRow;
+        int lastDirection = 0;
+        int steps = 0;
+        FlowMemo memo = m_memo;
+        FlowMemo.Segment replay = null;
+        int replayOffset = 0;
+        int[] found = new int[1];
+        FlowMemo.Segment predecessor = null;
+        int[] cells = (memo != null) ? new int[256] : null;
+        byte[] directions = (memo != null) ? new byte[256] : null;
+        byte[] skips = (memo != null) ? new byte[256] : null;
+        int count = 0;
+        boolean endsAtNoData = false;
+        while (true) {
+            steps += 1;
+            if ((visitor != null) && m_tiles.contains(column, row) && !visitor.visit(column, row, path.size())) {
+                break;
+            }
+            int direction;
+            if ((replay == null) && (memo != null) && m_tiles.contains(column, row)) {
+                replay = memo.find(row * width + column, found);
+                if (replay != null) {
+                    replayOffset = found[0];
+                    memo.add(predecessor, cells, directions, skips, count, replay, replayOffset, false);
+                    predecessor = null;
+                    count = 0;
+                }
+            }
+            int skip;
+            if (replay != null) {
+                direction = replay.directions[replayOffset] & 0xFF;
+                skip = replay.skips[replayOffset] & 0xFF;
+            } else {
+                double value = m_cache.get(column, row);
+                if (Double.isNaN(value)) {
+                    endsAtNoData = true;
+                    break;
+                }
+                direction = toDirection(value);
+                skip = ((m_runs != null) && (direction != 0)) ? m_runs.get(column, row) - 1 : 0;
+                if (memo != null) {
+                    if (count == cells.length) {
+                        cells = Arrays.copyOf(cells, count * 2);
+                        directions = Arrays.copyOf(directions, count * 2);
+                        skips = Arrays.copyOf(skips, count * 2);
+                    }
+                    cells[count] = row * width + column;
+                    directions[count] = (byte)direction;
+                    skips[count] = (byte)skip;
+                    count += 1;
+                }
+            }
+            if (direction != lastDirection) {
+                path.add(x + (column - startColumn) * cellWidth, y - (row - startRow) * cellHeight);
+            }
+            lastDirection = direction;
+            if ((direction == 0) || (steps > maxSteps)) {
+                break;
+            }
+            if (skip > 0) {
+                // The next skip cells go the same way, so there are no
+                // vertices among them; stop part way if the limit is hit
+                if (steps + skip > maxSteps) {
+                    skip = maxSteps - steps + 1;
+                    column += skip * COLUMN_OFFSETS[direction];
+                    row += skip * ROW_OFFSETS[direction];
+                    steps += skip;
+                    break;
+                }
+                column += skip * COLUMN_OFFSETS[direction];
+                row += skip * ROW_OFFSETS[direction];
+                steps += skip;
+            }
+            column += COLUMN_OFFSETS[direction];
+            row += ROW_OFFSETS[direction];
+            if (replay != null) {
+                replayOffset += 1;
+                if (replayOffset == replay.size()) {
+                    FlowMemo.Segment next = memo.getSegment(replay.next);
+                    if (next != null) {
+                        replayOffset = replay.nextOffset;
+                        replay = next;
+                    } else {
+                        // Open segment, or one ending at NoData: read tiles
+                        // from here on, and link what is found to it
+                        // afterwards. The NoData cell is read again so it
+                        // is counted and visited as in a plain trace.
+                        predecessor = replay;
+                        replay = null;
+                    }
+                }
+            }
+        }
+        if ((memo != null) && (replay == null)) {
+            memo.add(predecessor, cells, directions, skips, count, null, 0, endsAtNoData);
+        }
+        path.add(x + (column - startColumn) * cellWidth, y - (row - startRow) * cellHeight);
+        return steps;
+    }
+
+    public static interface CellVisitor
+    {
+        //
+        // Called with the number of vertices the path had before the cell
+        //
+        public boolean visit (int column, int row, int vertexCount);
+    }
+
+    //
+    // Growable list of path vertices in map coordinates
+    //
+    public static class Vertices
+    {
+        private double[] m_xs;
+        private double[] m_ys;
+        private int m_count;
+
+        public Vertices () {
+            m_xs = new double[64];
+            m_ys = new double[64];
+            m_count = 0;
+        }
+
+        public void add (double x, double y) {
+            if (m_count == m_xs.length) {
+                m_xs = Arrays.copyOf(m_xs, m_count * 2);
+                m_ys = Arrays.copyOf(m_ys, m_count * 2);
+            }
+            m_xs[m_count] = x;
+            m_ys[m_count] = y;
+            m_count += 1;
+        }
+
+        public int size () {
+            return m_count;
+        }
+
+        public double getX (int i) {
+            return m_xs[i];
+        }
+
+        public double getY (int i) {
+            return m_ys[i];
+        }
+
+        public double getLastX () {
+            return m_xs[m_count - 1];
+        }
+
+        public double getLastY () {
+            return m_ys[m_count - 1];
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.ngs.fieldscope;
+
+import com.esri.arcgis.server.json.JSONObject;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//
+// Concurrent histogram of durations in the style of HdrHistogram: buckets
+// are linear within each power of two, 16 to a power, so any recorded
+// value is known to within about 6%. Recording is a few arithmetic
+// operations and one atomic increment, with no allocation or locking.
+// Values are held in microseconds, up to about 12 days.
+//
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKET_COUNT = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray m_counts;
+    private final AtomicLong m_count;
+    private final AtomicLong m_total;
+    private final AtomicLong m_max;
+
+    public LatencyHistogram () {
+        m_counts = new AtomicLongArray(BUCKET_COUNT);
+        m_count = new AtomicLong();
+        m_total = new AtomicLong();
+        m_max = new AtomicLong();
+    }
+
+    public void recordNanos (long nanos) {
+        record(nanos / 1000);
+    }
+
+    public void record (long micros) {
+        long value = Math.max(0, Math.min(MAX_VALUE, micros));
+        m_counts.incrementAndGet(getBucket(value));
+        m_count.incrementAndGet();
+        m_total.addAndGet(value);
+        long max = m_max.get();
+        while ((value > max) && !m_max.compareAndSet(max, value)) {
+            max = m_max.get();
+        }
+    }
+
+    public long getCount () {
+        return m_count.get();
+    }
+
+    //
+    // Smallest bucket bound at or below which the given fraction of the
+    // recorded values fall, in microseconds
+    //
+    public long getPercentile (double fraction) {
+        long count = m_count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i += 1) {
+            seen += m_counts.get(i);
+            if (seen >= target) {
+                return Math.min(getBucketTop(i), m_max.get());
+            }
+        }
+        return m_max.get();
+    }
+
+    public JSONObject toJsonObject () {
+        JSONObject result = new JSONObject();
+        long count = m_count.get();
+        result.put("count", count);
+        result.put("meanMicros", (count > 0) ? m_total.get() / count : 0);
+        result.put("p50Micros", getPercentile(0.5));
+        result.put("p90Micros", getPercentile(0.9));
+        result.put("p99Micros", getPercentile(0.99));
+        result.put("p999Micros", getPercentile(0.999));
+        result.put("maxMicros", m_max.get());
+        return result;
+    }
+
+    //
+    // Values below SUB_BUCKETS get a bucket each; above that, the bucket is
+    // the power of two followed by the next SUB_BUCKET_BITS bits
+    //
+    private static int getBucket (long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int)((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long getBucketTop (int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long bottom = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return bottom + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,154 @@
+package org.ngs.fieldscope;
+
+import com.esri.arcgis.carto.IMapLayerInfo;
+import com.esri.arcgis.carto.IMapLayerInfos;
+import com.esri.arcgis.carto.IMapServer3;
+import com.esri.arcgis.carto.IMapServerDataAccess;
+import com.esri.arcgis.datasourcesraster.IRasterProps;
+import com.esri.arcgis.datasourcesraster.IRasterPropsProxy;
+import com.esri.arcgis.geometry.IEnvelope;
+import com.esri.arcgis.geometry.ISpatialReference;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//
+// The layers of a map service, read once when the service is constructed:
+// for each, its layer info, data source and extent, and for rasters their
+// pixel type, cell size and spatial reference. Lookups by ID or name are
+// then map reads with no COM calls. A registry never changes; a service
+// builds a new one when it restarts.
+//
+public final class LayerRegistry
+{
+    public static final String RASTER_LAYER = "Raster Layer";
+
+    //
+    // Layer types that have no data source of their own
+    //
+    private static final String[] CONTAINER_LAYERS = { "Group Layer", "Annotation Layer", "Annotation SubLayer" };
+
+    public static final class Layer
+    {
+        public final int id;
+        public final String name;
+        public final String type;
+        public final IMapLayerInfo info;
+        public final Object dataSource;
+        public final IEnvelope extent;
+        // Raster layers only: -1, NaN and null otherwise
+        public final int pixelType;
+        public final double cellWidth;
+        public final double cellHeight;
+        public final ISpatialReference spatialReference;
+        // Why the data source couldn't be opened, or null
+        private final IOException m_dataSourceError;
+
+        private Layer (IMapLayerInfo info, Object dataSource, IOException dataSourceError) throws IOException {
+            this.id = info.getID();
+            this.name = info.getName();
+            this.type = info.getType();
+            this.info = info;
+            this.dataSource = dataSource;
+            this.extent = info.getExtent();
+            m_dataSourceError = dataSourceError;
+            IRasterProps props = (RASTER_LAYER.equals(type) && (dataSource != null)) ? new IRasterPropsProxy(dataSource) : null;
+            if (props != null) {
+                this.pixelType = props.getPixelType();
+                this.cellWidth = props.meanCellSize().getX();
+                this.cellHeight = props.meanCellSize().getY();
+                this.spatialReference = props.getSpatialReference();
+            } else {
+                this.pixelType = -1;
+                this.cellWidth = Double.NaN;
+                this.cellHeight = Double.NaN;
+                this.spatialReference = null;
+            }
+        }
+
+        public boolean isRaster () {
+            return pixelType >= 0;
+        }
+
+        //
+        // The layer's data source, null for group layers and the like; throws
+        // the error met opening it at construct if there was one
+        //
+        public Object getDataSource () throws IOException {
+            if (m_dataSourceError != null) {
+                throw m_dataSourceError;
+            }
+            return dataSource;
+        }
+    }
+
+    private final List<Layer> m_layers;
+    private final Map<Integer, Layer> m_byID;
+    private final Map<String, Layer> m_byName;
+
+    private LayerRegistry (List<Layer> layers) {
+        m_layers = Collections.unmodifiableList(layers);
+        m_byID = new HashMap<Integer, Layer>();
+        m_byName = new HashMap<String, Layer>();
+        for (Layer layer : layers) {
+            m_byID.put(Integer.valueOf(layer.id), layer);
+            // The first of several layers with the same name wins, as the
+            // linear search this replaces would have found
+            String key = layer.name.toLowerCase();
+            if (!m_byName.containsKey(key)) {
+                m_byName.put(key, layer);
+            }
+        }
+    }
+
+    public static LayerRegistry build (IMapServer3 mapServer) throws IOException {
+        String mapName = mapServer.getDefaultMapName();
+        IMapServerDataAccess dataAccess = (IMapServerDataAccess)mapServer;
+        IMapLayerInfos layerInfos = mapServer.getServerInfo(mapName).getMapLayerInfos();
+        int count = layerInfos.getCount();
+        List<Layer> layers = new ArrayList<Layer>(count);
+        for (int i = 0; i < count; i += 1) {
+            IMapLayerInfo info = layerInfos.getElement(i);
+            Object dataSource = null;
+            IOException dataSourceError = null;
+            try {
+                dataSource = dataAccess.getDataSource(mapName, info.getID());
+            } catch (IOException e) {
+                // Kept for whoever asks for the data source, so a layer that
+                // fails to open doesn't stop the others from loading
+                if (!isContainer(info.getType())) {
+                    dataSourceError = e;
+                }
+            }
+            layers.add(new Layer(info, dataSource, dataSourceError));
+        }
+        return new LayerRegistry(layers);
+    }
+
+    private static boolean isContainer (String type) {
+        for (String container : CONTAINER_LAYERS) {
+            if (container.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //
+    // Layers in map order
+    //
+    public List<Layer> getLayers () {
+        return m_layers;
+    }
+
+    public Layer get (int id) {
+        return m_byID.get(Integer.valueOf(id));
+    }
+
+    public Layer get (String name) {
+        return m_byName.get(name.toLowerCase());
+    }
+}
@@ -0,0 +1,214 @@
+package org.ngs.fieldscope;
+
+import com.esri.arcgis.server.json.JSONObject;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+//
+// Least-recently-used cache bounded both by entry count and by total weight,
+// safe for concurrent callers. Loads are single-flight: while one thread is
+// loading a key, other threads asking for the same key wait for its result
+// instead of loading it again. Values are weighed by the thread that loaded
+// or put them, before the cache is locked, so weighers may be slow (or make
+// COM calls) without holding up other callers.
+//
+public class LruCache<K, V>
+{
+    public static interface Loader<K, V>
+    {
+        public V load (K key) throws IOException;
+    }
+
+    public static interface Weigher<V>
+    {
+        public long weigh (V value);
+    }
+
+    private int m_maxEntries;
+    private long m_maxWeight;
+    private final Weigher<V> m_weigher;
+    private final LinkedHashMap<K, Entry<V>> m_entries;
+    private final Map<K, FutureTask<V>> m_loading;
+    private long m_weight;
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+    private final AtomicLong m_evictions = new AtomicLong();
+
+    public LruCache (int maxEntries) {
+        this(maxEntries, Long.MAX_VALUE, null);
+    }
+
+    public LruCache (int maxEntries, long maxWeight, Weigher<V> weigher) {
+        m_maxEntries = maxEntries;
+        m_maxWeight = maxWeight;
+        m_weigher = weigher;
+        m_entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+        m_loading = new HashMap<K, FutureTask<V>>();
+        m_weight = 0;
+    }
+
+    public V get (final K key, final Loader<K, V> loader) throws IOException {
+        FutureTask<V> task;
+        boolean loading = false;
+        synchronized (this) {
+            Entry<V> entry = m_entries.get(key);
+            if (entry != null) {
+                m_hits.incrementAndGet();
+                return entry.value;
+            }
+            task = m_loading.get(key);
+            if (task == null) {
+                m_misses.incrementAndGet();
+                task = new FutureTask<V>(new Callable<V>() {
+                    public V call () throws IOException {
+                        return loader.load(key);
+                    }
+                });
+                m_loading.put(key, task);
+                loading = true;
+            } else {
+                m_hits.incrementAndGet();
+            }
+        }
+        if (loading) {
+            task.run();
+        }
+        try {
+            V value = task.get();
+            if (loading && (value != null)) {
+                insert(key, value, weigh(value));
+            }
+            return value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause.toString());
+        } finally {
+            if (loading) {
+                synchronized (this) {
+                    m_loading.remove(key);
+                }
+            }
+        }
+    }
+
+    public synchronized V getIfPresent (K key) {
+        Entry<V> entry = m_entries.get(key);
+        return (entry != null) ? entry.value : null;
+    }
+
+    public void put (K key, V value) {
+        if (value != null) {
+            insert(key, value, weigh(value));
+        }
+    }
+
+    private long weigh (V value) {
+        return (m_weigher != null) ? m_weigher.weigh(value) : 1;
+    }
+
+    private synchronized void insert (K key, V value, long weight) {
+        Entry<V> previous = m_entries.put(key, new Entry<V>(value, weight));
+        if (previous != null) {
+            m_weight -= previous.weight;
+        }
+        m_weight += weight;
+        evict();
+    }
+
+    //
+    // Change the limits, evicting least recently used entries if the cache
+    // is now over them
+    //
+    public synchronized void setLimits (int maxEntries, long maxWeight) {
+        m_maxEntries = maxEntries;
+        m_maxWeight = maxWeight;
+        evict();
+    }
+
+    private void evict () {
+        // Always keep the newest entry, even if it alone is over the limit
+        Iterator<Map.Entry<K, Entry<V>>> eldest = m_entries.entrySet().iterator();
+        while ((m_entries.size() > 1) && ((m_entries.size() > m_maxEntries) || (m_weight > m_maxWeight))) {
+            Map.Entry<K, Entry<V>> evicted = eldest.next();
+            m_weight -= evicted.getValue().weight;
+            eldest.remove();
+            m_evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void invalidateAll () {
+        m_entries.clear();
+        m_weight = 0;
+    }
+
+    public synchronized int size () {
+        return m_entries.size();
+    }
+
+    public synchronized long getWeight () {
+        return m_weight;
+    }
+
+    public synchronized int getMaxEntries () {
+        return m_maxEntries;
+    }
+
+    public synchronized long getMaxWeight () {
+        return m_maxWeight;
+    }
+
+    public long getHitCount () {
+        return m_hits.get();
+    }
+
+    public long getMissCount () {
+        return m_misses.get();
+    }
+
+    public long getEvictionCount () {
+        return m_evictions.get();
+    }
+
+    public synchronized JSONObject toJsonObject () {
+        JSONObject result = new JSONObject();
+        result.put("size", size());
+        result.put("weight", getWeight());
+        result.put("maxSize", m_maxEntries);
+        if (m_maxWeight != Long.MAX_VALUE) {
+            result.put("maxWeight", m_maxWeight);
+        }
+        result.put("hits", getHitCount());
+        result.put("misses", getMissCount());
+        result.put("evictions", getEvictionCount());
+        return result;
+    }
+
+    private static final class Entry<V>
+    {
+        public final V value;
+        public final long weight;
+
+        public Entry (V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package org.ngs.fieldscope;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//
+// A grid exported to a tiled sidecar file and read back through memory
+// mapped views, so its cells live in the operating system's page cache
+// rather than the heap, are shared by every process mapping the file, and
+// cost nothing to open beyond the mapping. Each tile is stored in the
+// grid's own cell type, optionally deflated; reading one decodes it from
+// the mapping into a Tile like any other grid.
+//
+// File layout, little-endian:
+//
+//     header (HEADER_SIZE bytes): magic, version, width, height, tile
+//         size, cell type, spatial reference code, a reserved int, then
+//         left, top, cell width, cell height and the NoData value (NaN for
+//         none) as doubles, and the source grid's fingerprint as a long
+//     tile index: for each tile, its offset (long), stored length (int)
+//         and encoding (int: RAW or DEFLATE, plus MASKED)
+//     tiles, row by row of cells within each tile, followed in a MASKED
+//         tile by one bit per cell, set for NoData
+//
+// An integer grid with no NoData value of its own marks its NoData cells
+// in the mask rather than with a value some cell might really hold.
+//
+// No tile straddles a multiple of REGION_SIZE, so the file can be mapped
+// as several regions when it is larger than one mapping allows.
+//
+// A file is only used for a grid of the same size and georeference whose
+// fingerprint (TiledGrid.getFingerprint) is the one it was written with.
+//
+public class MappedGrid extends TiledGrid
+{
+    public static final int TYPE_INT8 = 1;
+    public static final int TYPE_UINT8 = 2;
+    public static final int TYPE_INT16 = 3;
+    public static final int TYPE_UINT16 = 4;
+    public static final int TYPE_INT32 = 5;
+    public static final int TYPE_UINT32 = 6;
+    public static final int TYPE_FLOAT32 = 7;
+    public static final int TYPE_FLOAT64 = 8;
+
+    private static final int MAGIC = 0x47545346; // "FSTG"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 128;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int RAW = 0;
+    private static final int DEFLATE = 1;
+    private static final int MASKED = 2;
+    private static final long REGION_SIZE = 1L << 30;
+
+    //
+    // Grids already mapped in this process, by file path, so services
+    // opening the same sidecar share one mapping
+    //
+    private static final Map<String, MappedGrid> s_open = new HashMap<String, MappedGrid>();
+
+    private final File m_file;
+    private final long m_modified;
+    private final int m_type;
+    private final int m_spatialReferenceCode;
+    private final double m_noData;
+    private final long m_fingerprint;
+    private final MappedByteBuffer[] m_regions;
+    private final long[] m_offsets;
+    private final int[] m_lengths;
+    private final int[] m_encodings;
+
+    private MappedGrid (File file, ByteBuffer header, MappedByteBuffer[] regions, long[] offsets, int[] lengths, int[] encodings) {
+        super(header.getInt(8), header.getInt(12), header.getInt(16),
+              header.getDouble(32), header.getDouble(40), header.getDouble(48), header.getDouble(56));
+        m_file = file;
+        m_modified = file.lastModified();
+        m_type = header.getInt(20);
+        m_spatialReferenceCode = header.getInt(24);
+        m_noData = header.getDouble(64);
+        m_fingerprint = header.getLong(72);
+        m_regions = regions;
+        m_offsets = offsets;
+        m_lengths = lengths;
+        m_encodings = encodings;
+    }
+
+    public int getType () {
+        return m_type;
+    }
+
+    public int getSpatialReferenceCode () {
+        return m_spatialReferenceCode;
+    }
+
+    public static int getBytesPerCell (int type) {
+        switch (type) {
+            case TYPE_INT8:
+            case TYPE_UINT8:
+                return 1;
+            case TYPE_INT16:
+            case TYPE_UINT16:
+                return 2;
+            case TYPE_FLOAT64:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+    //
+    // Box a cell value as the raster the file was exported from would, so
+    // callers see the same number types
+    //
+    @Override
+    public Object box (double value) {
+        if (Double.isNaN(value)) {
+            return null;
+        }
+        switch (m_type) {
+            case TYPE_FLOAT32:
+                return Float.valueOf((float)value);
+            case TYPE_FLOAT64:
+                return Double.valueOf(value);
+            case TYPE_UINT32:
+                return Long.valueOf((long)value);
+            default:
+                return Integer.valueOf((int)value);
+        }
+    }
+
+    @Override
+    public boolean isThreadSafe () {
+        return true;
+    }
+
+    public Tile readTile (int tileIndex) throws IOException {
+        int originColumn = getTileOriginColumn(tileIndex);
+        int originRow = getTileOriginRow(tileIndex);
+        int width = Math.min(getTileSize(), getWidth() - originColumn);
+        int height = Math.min(getTileSize(), getHeight() - originRow);
+        int count = width * height;
+        boolean masked = (m_encodings[tileIndex] & MASKED) != 0;
+        long offset = m_offsets[tileIndex];
+        // A duplicate has its own position, so threads can read at once
+        ByteBuffer data = m_regions[(int)(offset / REGION_SIZE)].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        data.position((int)(offset % REGION_SIZE));
+        data.limit(data.position() + m_lengths[tileIndex]);
+        if ((m_encodings[tileIndex] & DEFLATE) != 0) {
+            byte[] packed = new byte[m_lengths[tileIndex]];
+            data.get(packed);
+            byte[] unpacked = new byte[count * getBytesPerCell(m_type) + (masked ? (count + 7) / 8 : 0)];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(packed);
+                if (inflater.inflate(unpacked) != unpacked.length) {
+                    throw new IOException(m_file + ": tile " + tileIndex + " is truncated");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(m_file + ": tile " + tileIndex + " is corrupt: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            data = ByteBuffer.wrap(unpacked).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new Tile(originColumn, originRow, width, height, decode(data, count, masked));
+    }
+
+    private double[] decode (ByteBuffer data, int count, boolean masked) {
+        double[] result = new double[count];
+        int start = data.position();
+        switch (m_type) {
+            case TYPE_INT8:
+                for (int i = 0; i < count; i += 1) {
+                    result[i] = data.get(start + i);
+                }
+                break;
+            case TYPE_UINT8:
+                for (int i = 0; i < count; i += 1) {
+                    result[i] = data.get(start + i) & 0xFF;
+                }
+                break;
+            case TYPE_INT16:
+                for (int i = 0; i < count; i += 1) {
+                    result[i] = data.getShort(start + i * 2);
+                }
+                break;
+            case TYPE_UINT16:
+                for (int i = 0; i < count; i += 1) {
+                    result[i] = data.getShort(start + i * 2) & 0xFFFF;
+                }
+                break;
+            case TYPE_INT32:
+                for (int i = 0; i < count; i += 1) {
+                    result[i] = data.getInt(start + i * 4);
+                }
+                break;
+            case TYPE_UINT32:
+                for (int i = 0; i < count; i += 1) {
+                    result[i] = data.getInt(start + i * 4) & 0xFFFFFFFFL;
+                }
+                break;
+            case TYPE_FLOAT32:
+                for (int i = 0; i < count; i += 1) {
+                    result[i] = data.getFloat(start + i * 4);
+                }
+                break;
+            default:
+                for (int i = 0; i < count; i += 1) {
+                    result[i] = data.getDouble(start + i * 8);
+                }
+                break;
+        }
+        if (masked) {
+            int mask = start + count * getBytesPerCell(m_type);
+            for (int i = 0; i < count; i += 1) {
+                if ((data.get(mask + i / 8) & (1 << (i % 8))) != 0) {
+                    result[i] = Double.NaN;
+                }
+            }
+        }
+        if (!Double.isNaN(m_noData)) {
+            for (int i = 0; i < count; i += 1) {
+                if (result[i] == m_noData) {
+                    result[i] = Double.NaN;
+                }
+            }
+        }
+        return result;
+    }
+
+    //
+    // Map a sidecar file, or return null if there is none, it was written
+    // by another version, or it does not match the size, tiling,
+    // georeference and fingerprint of the grid it stands for
+    //
+    public static MappedGrid open (File file, TiledGrid expected) throws IOException {
+        String path = file.getCanonicalPath();
+        long fingerprint = expected.getFingerprint();
+        synchronized (s_open) {
+            MappedGrid result = s_open.get(path);
+            if ((result == null) || (result.m_modified != file.lastModified())) {
+                s_open.remove(path);
+                result = file.isFile() ? map(file) : null;
+                if (result != null) {
+                    s_open.put(path, result);
+                }
+            }
+            return ((result != null) && (result.m_fingerprint == fingerprint) && matches(result, expected)) ? result : null;
+        }
+    }
+
+    private static boolean matches (TiledGrid grid, TiledGrid expected) {
+        return (grid.getWidth() == expected.getWidth()) &&
+               (grid.getHeight() == expected.getHeight()) &&
+               (grid.getTileSize() == expected.getTileSize()) &&
+               (grid.getLeft() == expected.getLeft()) &&
+               (grid.getTop() == expected.getTop()) &&
+               (grid.getCellWidth() == expected.getCellWidth()) &&
+               (grid.getCellHeight() == expected.getCellHeight());
+    }
+
+    private static MappedGrid map (File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(file + " is not a tile file");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a tile file");
+            }
+            if (header.getInt(4) != VERSION) {
+                // Written by another version; the caller exports it again
+                return null;
+            }
+            int width = header.getInt(8);
+            int height = header.getInt(12);
+            int tileSize = header.getInt(16);
+            int tileCount = ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long)tileCount * INDEX_ENTRY_SIZE)
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+            long[] offsets = new long[tileCount];
+            int[] lengths = new int[tileCount];
+            int[] encodings = new int[tileCount];
+            for (int t = 0; t < tileCount; t += 1) {
+                offsets[t] = index.getLong(t * INDEX_ENTRY_SIZE);
+                lengths[t] = index.getInt(t * INDEX_ENTRY_SIZE + 8);
+                encodings[t] = index.getInt(t * INDEX_ENTRY_SIZE + 12);
+                if ((offsets[t] < HEADER_SIZE) || (lengths[t] < 0) || (offsets[t] + lengths[t] > size) || (offsets[t] / REGION_SIZE != (offsets[t] + lengths[t] - 1) / REGION_SIZE)) {
+                    throw new IOException(file + ": tile " + t + " is out of place");
+                }
+            }
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int)((size + REGION_SIZE - 1) / REGION_SIZE)];
+            for (int r = 0; r < regions.length; r += 1) {
+                long start = r * REGION_SIZE;
+                regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+            }
+            // The mappings stay valid after the file is closed
+            return new MappedGrid(file, header, regions, offsets, lengths, encodings);
+        } finally {
+            input.close();
+        }
+    }
+
+    //
+    // Export a grid to a sidecar file, reading it a tile at a time. NoData
+    // is stored as noData, the raster's own NoData value, if it has one;
+    // otherwise as NaN in float types and in a mask in integer ones. Tiles
+    // are deflated when compress is set and it saves at least a tenth. The
+    // file is written under a temporary name and renamed into place, so no
+    // reader ever maps half of one.
+    //
+    public static void write (TiledGrid source, File file, int type, double noData, int spatialReferenceCode, boolean compress) throws IOException {
+        long fingerprint = source.getFingerprint();
+        int tileCount = source.getTileCount();
+        int bytesPerCell = getBytesPerCell(type);
+        File temporary = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        boolean written = false;
+        RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+        try {
+            ByteBuffer index = ByteBuffer.allocate(tileCount * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long offset = HEADER_SIZE + (long)tileCount * INDEX_ENTRY_SIZE;
+            Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+            try {
+                for (int t = 0; t < tileCount; t += 1) {
+                    Tile tile = source.readTile(t);
+                    boolean[] masked = { false };
+                    byte[] raw = encode(tile, type, noData, bytesPerCell, masked);
+                    byte[] stored = raw;
+                    int encoding = masked[0] ? MASKED : RAW;
+                    if (deflater != null) {
+                        byte[] packed = deflate(deflater, raw);
+                        if ((packed != null) && (packed.length <= raw.length - raw.length / 10)) {
+                            stored = packed;
+                            encoding |= DEFLATE;
+                        }
+                    }
+                    if (offset / REGION_SIZE != (offset + stored.length - 1) / REGION_SIZE) {
+                        offset = (offset / REGION_SIZE + 1) * REGION_SIZE;
+                    }
+                    output.seek(offset);
+                    output.write(stored);
+                    index.putLong(offset).putInt(stored.length).putInt(encoding);
+                    offset += stored.length;
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(source.getWidth()).putInt(source.getHeight())
+                  .putInt(source.getTileSize()).putInt(type).putInt(spatialReferenceCode).putInt(0)
+                  .putDouble(source.getLeft()).putDouble(source.getTop())
+                  .putDouble(source.getCellWidth()).putDouble(source.getCellHeight()).putDouble(noData)
+                  .putLong(fingerprint);
+            output.seek(0);
+            output.write(header.array());
+            output.write(index.array());
+            output.getFD().sync();
+            written = true;
+        } finally {
+            output.close();
+            if (!written) {
+                temporary.delete();
+            }
+        }
+        if (!temporary.renameTo(file)) {
+            // Windows will not rename over an existing file
+            if (!file.delete() || !temporary.renameTo(file)) {
+                temporary.delete();
+                throw new IOException("unable to replace " + file);
+            }
+        }
+    }
+
+    //
+    // A tile's cells in the given type, followed, if the type has no way to
+    // hold NoData and some cell is NoData, by the NoData mask, in which case
+    // masked[0] is set
+    //
+    private static byte[] encode (Tile tile, int type, double noData, int bytesPerCell, boolean[] masked) {
+        int count = tile.width * tile.height;
+        boolean maskable = Double.isNaN(noData) && (type != TYPE_FLOAT32) && (type != TYPE_FLOAT64);
+        ByteBuffer result = ByteBuffer.allocate(count * bytesPerCell + (maskable ? (count + 7) / 8 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        int mask = count * bytesPerCell;
+        int i = 0;
+        for (int row = tile.originRow; row < tile.originRow + tile.height; row += 1) {
+            for (int column = tile.originColumn; column < tile.originColumn + tile.width; column += 1) {
+                double value = tile.get(column, row);
+                if (Double.isNaN(value)) {
+                    if (maskable) {
+                        result.put(mask + i / 8, (byte)(result.get(mask + i / 8) | (1 << (i % 8))));
+                        masked[0] = true;
+                        value = 0;
+                    } else {
+                        value = noData;
+                    }
+                }
+                switch (type) {
+                    case TYPE_INT8:
+                    case TYPE_UINT8:
+                        result.put((byte)(long)value);
+                        break;
+                    case TYPE_INT16:
+                    case TYPE_UINT16:
+                        result.putShort((short)(long)value);
+                        break;
+                    case TYPE_INT32:
+                    case TYPE_UINT32:
+                        result.putInt((int)(long)value);
+                        break;
+                    case TYPE_FLOAT32:
+                        result.putFloat((float)value);
+                        break;
+                    default:
+                        result.putDouble(value);
+                        break;
+                }
+                i += 1;
+            }
+        }
+        return masked[0] ? result.array() : Arrays.copyOf(result.array(), mask);
+    }
+
+    //
+    // Deflated bytes, or null if they come out no smaller
+    //
+    private static byte[] deflate (Deflater deflater, byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buffer = new byte[raw.length];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                return null;
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+}
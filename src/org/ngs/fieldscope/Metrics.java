@@ -0,0 +1,129 @@
+package org.ngs.fieldscope;
+
+import com.esri.arcgis.server.json.JSONObject;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//
+// Request metrics for one service: a latency histogram, error count and
+// in-flight count per operation, plus named counters (cells visited, bytes
+// read and so on) that the service adds to as it works. Everything is
+// created on first use and then updated without locking. Operations are
+// keyed by names the service chooses from a fixed set, never by names
+// taken from requests as they are.
+//
+// Pixel blocks read from rasters are counted process-wide, since a read
+// does not know which service it is made for.
+//
+public class Metrics
+{
+    private static final AtomicLong s_pixelBlocksRead = new AtomicLong();
+    private static final AtomicLong s_pixelBytesRead = new AtomicLong();
+
+    private final long m_started;
+    private final ConcurrentMap<String, Operation> m_operations;
+    private final ConcurrentMap<String, AtomicLong> m_counters;
+    private final AtomicInteger m_inFlight;
+    private final AtomicInteger m_maxInFlight;
+
+    public Metrics () {
+        m_started = System.currentTimeMillis();
+        m_operations = new ConcurrentHashMap<String, Operation>();
+        m_counters = new ConcurrentHashMap<String, AtomicLong>();
+        m_inFlight = new AtomicInteger();
+        m_maxInFlight = new AtomicInteger();
+    }
+
+    public static class Operation
+    {
+        public final LatencyHistogram latency = new LatencyHistogram();
+        public final AtomicLong errors = new AtomicLong();
+        public final AtomicInteger inFlight = new AtomicInteger();
+
+        public JSONObject toJsonObject () {
+            JSONObject result = latency.toJsonObject();
+            result.put("errors", errors.get());
+            result.put("inFlight", inFlight.get());
+            return result;
+        }
+    }
+
+    public static void addPixelBlockRead (long pixelBytes) {
+        s_pixelBlocksRead.incrementAndGet();
+        s_pixelBytesRead.addAndGet(pixelBytes);
+    }
+
+    public Operation getOperation (String name) {
+        Operation result = m_operations.get(name);
+        if (result == null) {
+            Operation created = new Operation();
+            result = m_operations.putIfAbsent(name, created);
+            if (result == null) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    //
+    // Mark a request to an operation as started; returns the start time to
+    // pass to end()
+    //
+    public long begin (Operation operation) {
+        operation.inFlight.incrementAndGet();
+        int inFlight = m_inFlight.incrementAndGet();
+        int max = m_maxInFlight.get();
+        while ((inFlight > max) && !m_maxInFlight.compareAndSet(max, inFlight)) {
+            max = m_maxInFlight.get();
+        }
+        return System.nanoTime();
+    }
+
+    public void end (Operation operation, long started, boolean failed) {
+        operation.latency.recordNanos(System.nanoTime() - started);
+        if (failed) {
+            operation.errors.incrementAndGet();
+        }
+        operation.inFlight.decrementAndGet();
+        m_inFlight.decrementAndGet();
+    }
+
+    public void add (String counter, long amount) {
+        AtomicLong value = m_counters.get(counter);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = m_counters.putIfAbsent(counter, created);
+            if (value == null) {
+                value = created;
+            }
+        }
+        value.addAndGet(amount);
+    }
+
+    public JSONObject toJsonObject () {
+        JSONObject result = new JSONObject();
+        result.put("uptimeSeconds", (System.currentTimeMillis() - m_started) / 1000);
+        result.put("inFlight", m_inFlight.get());
+        result.put("maxInFlight", m_maxInFlight.get());
+        JSONObject operations = new JSONObject();
+        for (Map.Entry<String, Operation> operation : new TreeMap<String, Operation>(m_operations).entrySet()) {
+            operations.put(operation.getKey(), operation.getValue().toJsonObject());
+        }
+        result.put("operations", operations);
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<String, AtomicLong>(m_counters).entrySet()) {
+            counters.put(counter.getKey(), counter.getValue().get());
+        }
+        result.put("counters", counters);
+        JSONObject process = new JSONObject();
+        process.put("pixelBlocksRead", s_pixelBlocksRead.get());
+        process.put("pixelBytesRead", s_pixelBytesRead.get());
+        process.put("catalogRasters", CatalogRasters.toJsonObject());
+        result.put("process", process);
+        return result;
+    }
+}
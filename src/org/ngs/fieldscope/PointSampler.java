@@ -0,0 +1,251 @@
+package org.ngs.fieldscope;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//
+// Reads raster values at a batch of map points: the cell under each point,
+// a value interpolated from the cells around it, or a statistic over a
+// square neighbourhood. Points are visited in tile order and tiles are kept
+// for the whole batch, so a tile is read once however many points and
+// kernel taps fall in it.
+//
+public class PointSampler
+{
+    public static final int NEAREST = 0;
+    public static final int BILINEAR = 1;
+    public static final int CUBIC = 2;
+    public static final int NEIGHBORHOOD = 3;
+
+    public static final int MEAN = 0;
+    public static final int MIN = 1;
+    public static final int MAX = 2;
+
+    public static final int MAX_NEIGHBORHOOD = 51;
+    public static final PointSampler NEAREST_CELL = new PointSampler(NEAREST, 1, MEAN);
+
+    private static final int MAX_CACHED_TILES = 16;
+    private static final Pattern NEIGHBORHOOD_PATTERN = Pattern.compile("(\\d+)\\s*[xX]\\s*(\\d+)");
+
+    private final int m_method;
+    private final int m_size;
+    private final int m_statistic;
+
+    public PointSampler (int method, int size, int statistic) {
+        m_method = method;
+        m_size = size;
+        m_statistic = statistic;
+    }
+
+    //
+    // Build a sampler from the interpolation ("nearest", "bilinear" or
+    // "cubic"), neighborhood ("NxN") and neighborhood statistic ("mean",
+    // "min" or "max") request parameters, any of which may be empty
+    //
+    public static PointSampler parse (String interpolation, String neighborhood, String statistic) {
+        boolean hasInterpolation = (interpolation != null) && (interpolation.length() > 0) && !interpolation.equalsIgnoreCase("nearest");
+        boolean hasNeighborhood = (neighborhood != null) && (neighborhood.length() > 0);
+        if (hasInterpolation && hasNeighborhood) {
+            throw new IllegalArgumentException("specify either interpolation or neighborhood, not both");
+        }
+        if (hasInterpolation) {
+            if (interpolation.equalsIgnoreCase("bilinear")) {
+                return new PointSampler(BILINEAR, 2, MEAN);
+            } else if (interpolation.equalsIgnoreCase("cubic")) {
+                return new PointSampler(CUBIC, 4, MEAN);
+            }
+            throw new IllegalArgumentException("interpolation must be one of {nearest,bilinear,cubic}");
+        }
+        if (hasNeighborhood) {
+            Matcher m = NEIGHBORHOOD_PATTERN.matcher(neighborhood.trim());
+            if (!m.matches() || !m.group(1).equals(m.group(2))) {
+                throw new IllegalArgumentException("neighborhood must be of the form NxN");
+            }
+            int size = Integer.parseInt(m.group(1));
+            if ((size < 1) || (size > MAX_NEIGHBORHOOD)) {
+                throw new IllegalArgumentException("neighborhood size must be between 1 and " + MAX_NEIGHBORHOOD);
+            }
+            int stat = MEAN;
+            if ((statistic != null) && (statistic.length() > 0)) {
+                if (statistic.equalsIgnoreCase("min")) {
+                    stat = MIN;
+                } else if (statistic.equalsIgnoreCase("max")) {
+                    stat = MAX;
+                } else if (!statistic.equalsIgnoreCase("mean")) {
+                    throw new IllegalArgumentException("neighborhoodStatistic must be one of {mean,min,max}");
+                }
+            }
+            return (size == 1) ? NEAREST_CELL : new PointSampler(NEIGHBORHOOD, size, stat);
+        }
+        return NEAREST_CELL;
+    }
+
+    public boolean isNearest () {
+        return m_method == NEAREST;
+    }
+
+    //
+    // True if every sampled value is the value of some cell, so it can be
+    // boxed as the raster's own type and looked up in an attribute table
+    //
+    public boolean isCellValue () {
+        return (m_method == NEAREST) || ((m_method == NEIGHBORHOOD) && (m_statistic != MEAN));
+    }
+
+    public Object box (TiledGrid tiles, double value) {
+        if (Double.isNaN(value)) {
+            return null;
+        }
+        return isCellValue() ? tiles.box(value) : Double.valueOf(value);
+    }
+
+    //
+    // Sample the raster at each point, NaN where the point is outside the
+    // raster or there is no data to sample
+    //
+    public double[] sample (TiledGrid tiles, double[] xs, double[] ys) throws IOException {
+        int count = xs.length;
+        double[] result = new double[count];
+        Arrays.fill(result, Double.NaN);
+        int[] columns = new int[count];
+        int[] rows = new int[count];
+        long[] order = new long[count];
+        int ordered = 0;
+        for (int i = 0; i < count; i += 1) {
+            columns[i] = tiles.getColumn(xs[i]);
+            rows[i] = tiles.getRow(ys[i]);
+            int tileIndex = tiles.getTileIndex(columns[i], rows[i]);
+            if (tileIndex >= 0) {
+                order[ordered++] = ((long)tileIndex << 32) | i;
+            }
+        }
+        Arrays.sort(order, 0, ordered);
+        TileCache cache = new TileCache(tiles, MAX_CACHED_TILES);
+        for (int j = 0; j < ordered; j += 1) {
+            int i = (int)order[j];
+            switch (m_method) {
+                case BILINEAR:
+                    result[i] = interpolateBilinear(cache, tiles.getColumnCoordinate(xs[i]), tiles.getRowCoordinate(ys[i]), columns[i], rows[i]);
+                    break;
+                case CUBIC:
+                    result[i] = interpolateCubic(cache, tiles.getColumnCoordinate(xs[i]), tiles.getRowCoordinate(ys[i]), columns[i], rows[i]);
+                    break;
+                case NEIGHBORHOOD:
+                    result[i] = summarize(cache, columns[i], rows[i]);
+                    break;
+                default:
+                    result[i] = cache.get(columns[i], rows[i]);
+                    break;
+            }
+        }
+        return result;
+    }
+
+    //
+    // Interpolate between the four cell centres around the point. Taps that
+    // fall outside the raster or on NoData are left out and the remaining
+    // weights renormalized; a point on a NoData cell has no value.
+    //
+    private static double interpolateBilinear (TileCache cache, double columnCoordinate, double rowCoordinate, int column, int row) throws IOException {
+        if (Double.isNaN(cache.get(column, row))) {
+            return Double.NaN;
+        }
+        double fx = columnCoordinate - 0.5;
+        double fy = rowCoordinate - 0.5;
+        int c0 = (int)Math.floor(fx);
+        int r0 = (int)Math.floor(fy);
+        double tx = fx - c0;
+        double ty = fy - r0;
+        double sum = 0;
+        double weight = 0;
+        for (int dy = 0; dy < 2; dy += 1) {
+            for (int dx = 0; dx < 2; dx += 1) {
+                double w = ((dx == 0) ? 1 - tx : tx) * ((dy == 0) ? 1 - ty : ty);
+                double value = cache.get(c0 + dx, r0 + dy);
+                if ((w > 0) && !Double.isNaN(value)) {
+                    sum += w * value;
+                    weight += w;
+                }
+            }
+        }
+        return (weight > 0) ? sum / weight : cache.get(column, row);
+    }
+
+    //
+    // Cubic convolution over the sixteen cell centres around the point,
+    // falling back to bilinear where any of them is missing
+    //
+    private static double interpolateCubic (TileCache cache, double columnCoordinate, double rowCoordinate, int column, int row) throws IOException {
+        if (Double.isNaN(cache.get(column, row))) {
+            return Double.NaN;
+        }
+        double fx = columnCoordinate - 0.5;
+        double fy = rowCoordinate - 0.5;
+        int c0 = (int)Math.floor(fx);
+        int r0 = (int)Math.floor(fy);
+        double tx = fx - c0;
+        double ty = fy - r0;
+        double sum = 0;
+        for (int dy = -1; dy < 3; dy += 1) {
+            double wy = cubicWeight(ty - dy);
+            for (int dx = -1; dx < 3; dx += 1) {
+                double value = cache.get(c0 + dx, r0 + dy);
+                if (Double.isNaN(value)) {
+                    return interpolateBilinear(cache, columnCoordinate, rowCoordinate, column, row);
+                }
+                sum += wy * cubicWeight(tx - dx) * value;
+            }
+        }
+        return sum;
+    }
+
+    //
+    // Keys cubic convolution kernel, a = -0.5
+    //
+    private static double cubicWeight (double t) {
+        t = Math.abs(t);
+        if (t <= 1) {
+            return (1.5 * t - 2.5) * t * t + 1;
+        } else if (t < 2) {
+            return ((-0.5 * t + 2.5) * t - 4) * t + 2;
+        }
+        return 0;
+    }
+
+    //
+    // Statistic over the valid cells of the N by N block centred on the
+    // point's cell; for even N the extra row and column are below and right
+    //
+    private double summarize (TileCache cache, int column, int row) throws IOException {
+        int first = -(m_size - 1) / 2;
+        int last = first + m_size;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int count = 0;
+        for (int dy = first; dy < last; dy += 1) {
+            for (int dx = first; dx < last; dx += 1) {
+                double value = cache.get(column + dx, row + dy);
+                if (!Double.isNaN(value)) {
+                    sum += value;
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                    count += 1;
+                }
+            }
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        switch (m_statistic) {
+            case MIN:
+                return min;
+            case MAX:
+                return max;
+            default:
+                return sum / count;
+        }
+    }
+}
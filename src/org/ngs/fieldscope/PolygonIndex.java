@@ -0,0 +1,484 @@
+package org.ngs.fieldscope;
+
+import com.esri.arcgis.geodatabase.IFeature;
+import com.esri.arcgis.geodatabase.IFeatureClass;
+import com.esri.arcgis.geodatabase.IFeatureCursor;
+import com.esri.arcgis.geodatabase.IQueryFilter;
+import com.esri.arcgis.geodatabase.QueryFilter;
+import com.esri.arcgis.geometry.IGeometry;
+import com.esri.arcgis.geometry.IGeometryCollection;
+import com.esri.arcgis.geometry.IGeometryCollectionProxy;
+import com.esri.arcgis.geometry.IPointCollection;
+import com.esri.arcgis.geometry.IPointCollectionProxy;
+import com.esri.arcgis.geometry._WKSPoint;
+import com.esri.arcgis.geometry.esriGeometryType;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+//
+// Read-only point-in-polygon index. Polygon bounding boxes are packed into an
+// R-tree with the Sort-Tile-Recursive algorithm, and each polygon keeps its
+// vertices in primitive arrays along with a list of edges per horizontal slab
+// of its bounding box, so a containment test only looks at the edges that can
+// cross the test point's scanline.
+//
+public class PolygonIndex
+{
+    private static final int NODE_CAPACITY = 16;
+    private static final int EDGES_PER_SLAB = 8;
+    private static final int MAX_SLABS = 1024;
+
+    //
+    // Rough heap cost of one vertex: two coordinates, its successor and its
+    // share of the slab edge lists
+    //
+    public static final int BYTES_PER_VERTEX = 32;
+
+    private final int m_count;
+    private final int[] m_ids;
+    private final double[] m_xs;
+    private final double[] m_ys;
+    private final int[] m_ringStart;
+    private final int[] m_polygonRingStart;
+    private final int[] m_next;
+    private final double[] m_bounds;
+    private final int[] m_slabStart;
+    private final int[] m_slabEdgeStart;
+    private final int[] m_slabEdges;
+
+    // R-tree levels, leaves first. Level 0 entries are polygons; an entry at
+    // level L > 0 covers entries [childStart, childStart + childCount) of
+    // level L - 1.
+    private final double[][] m_levelBounds;
+    private final int[][] m_levelChildStart;
+    private final int[][] m_levelChildCount;
+    private final int[] m_leafOrder;
+
+    private PolygonIndex (Builder builder) {
+        m_count = builder.m_polygonCount;
+        m_ids = Arrays.copyOf(builder.m_ids, m_count);
+        m_xs = Arrays.copyOf(builder.m_xs, builder.m_vertexCount);
+        m_ys = Arrays.copyOf(builder.m_ys, builder.m_vertexCount);
+        m_ringStart = Arrays.copyOf(builder.m_ringStart, builder.m_ringCount + 1);
+        m_ringStart[builder.m_ringCount] = builder.m_vertexCount;
+        m_polygonRingStart = Arrays.copyOf(builder.m_polygonRingStart, m_count + 1);
+        m_polygonRingStart[m_count] = builder.m_ringCount;
+        m_bounds = new double[m_count * 4];
+        m_slabStart = new int[m_count + 1];
+
+        // Bounding boxes and slab counts
+        int totalSlabs = 0;
+        for (int p = 0; p < m_count; p += 1) {
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            int firstVertex = m_ringStart[m_polygonRingStart[p]];
+            int lastVertex = m_ringStart[m_polygonRingStart[p + 1]];
+            for (int v = firstVertex; v < lastVertex; v += 1) {
+                minX = Math.min(minX, m_xs[v]);
+                maxX = Math.max(maxX, m_xs[v]);
+                minY = Math.min(minY, m_ys[v]);
+                maxY = Math.max(maxY, m_ys[v]);
+            }
+            m_bounds[p * 4] = minX;
+            m_bounds[p * 4 + 1] = minY;
+            m_bounds[p * 4 + 2] = maxX;
+            m_bounds[p * 4 + 3] = maxY;
+            m_slabStart[p] = totalSlabs;
+            totalSlabs += Math.max(1, Math.min(MAX_SLABS, (lastVertex - firstVertex) / EDGES_PER_SLAB));
+        }
+        m_slabStart[m_count] = totalSlabs;
+
+        // Each vertex's successor, wrapping at the end of its ring
+        m_next = new int[builder.m_vertexCount];
+        for (int r = 0; r < builder.m_ringCount; r += 1) {
+            for (int v = m_ringStart[r]; v < m_ringStart[r + 1]; v += 1) {
+                m_next[v] = (v + 1 < m_ringStart[r + 1]) ? v + 1 : m_ringStart[r];
+            }
+        }
+
+        // Count the edges crossing each slab, then fill in the edge lists
+        m_slabEdgeStart = new int[totalSlabs + 1];
+        for (int p = 0; p < m_count; p += 1) {
+            for (int v = m_ringStart[m_polygonRingStart[p]]; v < m_ringStart[m_polygonRingStart[p + 1]]; v += 1) {
+                int first = slabOf(p, Math.min(m_ys[v], m_ys[m_next[v]]));
+                int last = slabOf(p, Math.max(m_ys[v], m_ys[m_next[v]]));
+                for (int slab = first; slab <= last; slab += 1) {
+                    m_slabEdgeStart[slab + 1] += 1;
+                }
+            }
+        }
+        for (int slab = 0; slab < totalSlabs; slab += 1) {
+            m_slabEdgeStart[slab + 1] += m_slabEdgeStart[slab];
+        }
+        m_slabEdges = new int[m_slabEdgeStart[totalSlabs]];
+        int[] fill = Arrays.copyOf(m_slabEdgeStart, totalSlabs);
+        for (int p = 0; p < m_count; p += 1) {
+            for (int v = m_ringStart[m_polygonRingStart[p]]; v < m_ringStart[m_polygonRingStart[p + 1]]; v += 1) {
+                int first = slabOf(p, Math.min(m_ys[v], m_ys[m_next[v]]));
+                int last = slabOf(p, Math.max(m_ys[v], m_ys[m_next[v]]));
+                for (int slab = first; slab <= last; slab += 1) {
+                    m_slabEdges[fill[slab]++] = v;
+                }
+            }
+        }
+
+        // Pack the R-tree
+        m_leafOrder = new int[m_count];
+        for (int p = 0; p < m_count; p += 1) {
+            m_leafOrder[p] = p;
+        }
+        double[] leafBounds = new double[m_count * 4];
+        strSort(m_leafOrder, 0, m_count, m_bounds);
+        for (int i = 0; i < m_count; i += 1) {
+            System.arraycopy(m_bounds, m_leafOrder[i] * 4, leafBounds, i * 4, 4);
+        }
+        List<double[]> bounds = new ArrayList<double[]>();
+        List<int[]> childStarts = new ArrayList<int[]>();
+        List<int[]> childCounts = new ArrayList<int[]>();
+        bounds.add(leafBounds);
+        childStarts.add(null);
+        childCounts.add(null);
+        double[] levelBounds = leafBounds;
+        int levelCount = m_count;
+        while (levelCount > 1) {
+            int parentCount = (levelCount + NODE_CAPACITY - 1) / NODE_CAPACITY;
+            double[] parentBounds = new double[parentCount * 4];
+            int[] childStart = new int[parentCount];
+            int[] childCount = new int[parentCount];
+            for (int n = 0; n < parentCount; n += 1) {
+                childStart[n] = n * NODE_CAPACITY;
+                childCount[n] = Math.min(NODE_CAPACITY, levelCount - childStart[n]);
+                parentBounds[n * 4] = Double.POSITIVE_INFINITY;
+                parentBounds[n * 4 + 1] = Double.POSITIVE_INFINITY;
+                parentBounds[n * 4 + 2] = Double.NEGATIVE_INFINITY;
+                parentBounds[n * 4 + 3] = Double.NEGATIVE_INFINITY;
+                for (int c = childStart[n]; c < childStart[n] + childCount[n]; c += 1) {
+                    parentBounds[n * 4] = Math.min(parentBounds[n * 4], levelBounds[c * 4]);
+                    parentBounds[n * 4 + 1] = Math.min(parentBounds[n * 4 + 1], levelBounds[c * 4 + 1]);
+                    parentBounds[n * 4 + 2] = Math.max(parentBounds[n * 4 + 2], levelBounds[c * 4 + 2]);
+                    parentBounds[n * 4 + 3] = Math.max(parentBounds[n * 4 + 3], levelBounds[c * 4 + 3]);
+                }
+            }
+            bounds.add(parentBounds);
+            childStarts.add(childStart);
+            childCounts.add(childCount);
+            levelBounds = parentBounds;
+            levelCount = parentCount;
+        }
+        m_levelBounds = bounds.toArray(new double[bounds.size()][]);
+        m_levelChildStart = childStarts.toArray(new int[childStarts.size()][]);
+        m_levelChildCount = childCounts.toArray(new int[childCounts.size()][]);
+    }
+
+    public int size () {
+        return m_count;
+    }
+
+    //
+    // Caller-supplied identifier (usually the feature OID) of the polygon at
+    // the given position
+    //
+    public int getId (int polygon) {
+        return m_ids[polygon];
+    }
+
+    public int[] getIds () {
+        return m_ids.clone();
+    }
+
+    //
+    // Position of the first polygon, in the order they were added, that
+    // contains the point, or -1 if none does
+    //
+    public int find (double x, double y) {
+        int result = -1;
+        if (m_count == 0) {
+            return result;
+        }
+        int[] stack = new int[m_levelBounds.length * NODE_CAPACITY + 1];
+        int[] stackLevel = new int[stack.length];
+        int top = 0;
+        stack[top] = 0;
+        stackLevel[top] = m_levelBounds.length - 1;
+        top += 1;
+        while (top > 0) {
+            top -= 1;
+            int entry = stack[top];
+            int level = stackLevel[top];
+            double[] b = m_levelBounds[level];
+            if ((x < b[entry * 4]) || (y < b[entry * 4 + 1]) || (x > b[entry * 4 + 2]) || (y > b[entry * 4 + 3])) {
+                continue;
+            }
+            if (level == 0) {
+                int polygon = m_leafOrder[entry];
+                if (((result < 0) || (polygon < result)) && contains(polygon, x, y)) {
+                    result = polygon;
+                }
+            } else {
+                int start = m_levelChildStart[level][entry];
+                int end = start + m_levelChildCount[level][entry];
+                for (int c = start; c < end; c += 1) {
+                    stack[top] = c;
+                    stackLevel[top] = level - 1;
+                    top += 1;
+                }
+            }
+        }
+        return result;
+    }
+
+    //
+    // Positions of every polygon containing the point, in the order they
+    // were added
+    //
+    public int[] findAll (double x, double y) {
+        int[] result = new int[4];
+        int found = 0;
+        if (m_count == 0) {
+            return new int[0];
+        }
+        int[] stack = new int[m_levelBounds.length * NODE_CAPACITY + 1];
+        int[] stackLevel = new int[stack.length];
+        int top = 0;
+        stack[top] = 0;
+        stackLevel[top] = m_levelBounds.length - 1;
+        top += 1;
+        while (top > 0) {
+            top -= 1;
+            int entry = stack[top];
+            int level = stackLevel[top];
+            double[] b = m_levelBounds[level];
+            if ((x < b[entry * 4]) || (y < b[entry * 4 + 1]) || (x > b[entry * 4 + 2]) || (y > b[entry * 4 + 3])) {
+                continue;
+            }
+            if (level == 0) {
+                int polygon = m_leafOrder[entry];
+                if (contains(polygon, x, y)) {
+                    if (found == result.length) {
+                        result = Arrays.copyOf(result, found * 2);
+                    }
+                    result[found++] = polygon;
+                }
+            } else {
+                int start = m_levelChildStart[level][entry];
+                int end = start + m_levelChildCount[level][entry];
+                for (int c = start; c < end; c += 1) {
+                    stack[top] = c;
+                    stackLevel[top] = level - 1;
+                    top += 1;
+                }
+            }
+        }
+        result = Arrays.copyOf(result, found);
+        Arrays.sort(result);
+        return result;
+    }
+
+    //
+    // Even-odd containment test against every ring of the polygon, using
+    // only the edges listed for the slab the point falls in. A point lying
+    // exactly on an edge or vertex counts as inside, as it would for an
+    // esriSpatialRelIntersects search; unlike the search, no XY tolerance
+    // is applied, so points a hair outside the boundary are not matched.
+    //
+    public boolean contains (int polygon, double x, double y) {
+        if ((x < m_bounds[polygon * 4]) || (y < m_bounds[polygon * 4 + 1]) ||
+            (x > m_bounds[polygon * 4 + 2]) || (y > m_bounds[polygon * 4 + 3])) {
+            return false;
+        }
+        int slab = slabOf(polygon, y);
+        boolean inside = false;
+        for (int e = m_slabEdgeStart[slab]; e < m_slabEdgeStart[slab + 1]; e += 1) {
+            int v = m_slabEdges[e];
+            int w = m_next[v];
+            double yv = m_ys[v];
+            double yw = m_ys[w];
+            if (onEdge(m_xs[v], yv, m_xs[w], yw, x, y)) {
+                return true;
+            }
+            if ((yv > y) != (yw > y)) {
+                double crossX = m_xs[v] + (y - yv) * (m_xs[w] - m_xs[v]) / (yw - yv);
+                if (x < crossX) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    private static boolean onEdge (double x0, double y0, double x1, double y1, double x, double y) {
+        if ((x < Math.min(x0, x1)) || (x > Math.max(x0, x1)) || (y < Math.min(y0, y1)) || (y > Math.max(y0, y1))) {
+            return false;
+        }
+        return (x1 - x0) * (y - y0) == (y1 - y0) * (x - x0);
+    }
+
+    private int slabOf (int polygon, double y) {
+        int first = m_slabStart[polygon];
+        int count = m_slabStart[polygon + 1] - first;
+        double minY = m_bounds[polygon * 4 + 1];
+        double height = m_bounds[polygon * 4 + 3] - minY;
+        if ((count <= 1) || (height <= 0)) {
+            return first;
+        }
+        int slab = (int)((y - minY) / height * count);
+        return first + Math.max(0, Math.min(count - 1, slab));
+    }
+
+    //
+    // Sort-Tile-Recursive ordering: sort by x-center, cut into vertical
+    // slices of sqrt(n / capacity) nodes each, sort each slice by y-center
+    //
+    private static void strSort (int[] items, int from, int to, final double[] bounds) {
+        int count = to - from;
+        if (count <= NODE_CAPACITY) {
+            return;
+        }
+        Integer[] boxed = new Integer[count];
+        for (int i = 0; i < count; i += 1) {
+            boxed[i] = Integer.valueOf(items[from + i]);
+        }
+        Arrays.sort(boxed, new CenterComparator(bounds, 0));
+        int leafCount = (count + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        int sliceSize = (int)Math.ceil(Math.sqrt(leafCount)) * NODE_CAPACITY;
+        CenterComparator byY = new CenterComparator(bounds, 1);
+        for (int start = 0; start < count; start += sliceSize) {
+            Arrays.sort(boxed, start, Math.min(count, start + sliceSize), byY);
+        }
+        for (int i = 0; i < count; i += 1) {
+            items[from + i] = boxed[i].intValue();
+        }
+    }
+
+    private static final class CenterComparator implements Comparator<Integer>
+    {
+        private final double[] m_bounds;
+        private final int m_axis;
+
+        public CenterComparator (double[] bounds, int axis) {
+            m_bounds = bounds;
+            m_axis = axis;
+        }
+
+        public int compare (Integer a, Integer b) {
+            double ca = m_bounds[a.intValue() * 4 + m_axis] + m_bounds[a.intValue() * 4 + m_axis + 2];
+            double cb = m_bounds[b.intValue() * 4 + m_axis] + m_bounds[b.intValue() * 4 + m_axis + 2];
+            return Double.compare(ca, cb);
+        }
+    }
+
+    //
+    // Read every polygon in a feature class, identified by OID. Returns null
+    // if the feature class doesn't hold polygons, or if the vertices would
+    // take more than maxBytes of heap; either way the caller should keep
+    // querying the feature class directly.
+    //
+    public static PolygonIndex load (IFeatureClass fc, String whereClause, long maxBytes) throws IOException {
+        if (fc.getShapeType() != esriGeometryType.esriGeometryPolygon) {
+            return null;
+        }
+        IQueryFilter filter = new QueryFilter();
+        filter.setSubFields(fc.getOIDFieldName() + "," + fc.getShapeFieldName());
+        if (whereClause != null) {
+            filter.setWhereClause(whereClause);
+        }
+        Builder builder = new Builder();
+        long maxVertices = maxBytes / BYTES_PER_VERTEX;
+        IFeatureCursor cursor = fc.search(filter, false);
+        IFeature feature;
+        while ((feature = cursor.nextFeature()) != null) {
+            builder.addPolygon(feature.getOID(), feature.getShape());
+            if (builder.getVertexCount() > maxVertices) {
+                return null;
+            }
+        }
+        return builder.build();
+    }
+
+    public static class Builder
+    {
+        private int m_polygonCount = 0;
+        private int m_ringCount = 0;
+        private int m_vertexCount = 0;
+        private int[] m_ids = new int[16];
+        private int[] m_polygonRingStart = new int[16];
+        private int[] m_ringStart = new int[16];
+        private double[] m_xs = new double[256];
+        private double[] m_ys = new double[256];
+        private _WKSPoint[] m_points = new _WKSPoint[0];
+
+        public int getVertexCount () {
+            return m_vertexCount;
+        }
+
+        public void beginPolygon (int id) {
+            if (m_polygonCount == m_ids.length) {
+                m_ids = Arrays.copyOf(m_ids, m_polygonCount * 2);
+                m_polygonRingStart = Arrays.copyOf(m_polygonRingStart, m_polygonCount * 2);
+            }
+            m_ids[m_polygonCount] = id;
+            m_polygonRingStart[m_polygonCount] = m_ringCount;
+            m_polygonCount += 1;
+        }
+
+        //
+        // Add a ring to the current polygon. A closing vertex equal to the
+        // first is dropped, since rings are stored open.
+        //
+        public void addRing (double[] xs, double[] ys, int count) {
+            if ((count > 1) && (xs[0] == xs[count - 1]) && (ys[0] == ys[count - 1])) {
+                count -= 1;
+            }
+            if (m_ringCount + 1 >= m_ringStart.length) {
+                m_ringStart = Arrays.copyOf(m_ringStart, m_ringStart.length * 2);
+            }
+            if (m_vertexCount + count > m_xs.length) {
+                int capacity = Math.max(m_xs.length * 2, m_vertexCount + count);
+                m_xs = Arrays.copyOf(m_xs, capacity);
+                m_ys = Arrays.copyOf(m_ys, capacity);
+            }
+            m_ringStart[m_ringCount] = m_vertexCount;
+            System.arraycopy(xs, 0, m_xs, m_vertexCount, count);
+            System.arraycopy(ys, 0, m_ys, m_vertexCount, count);
+            m_vertexCount += count;
+            m_ringCount += 1;
+        }
+
+        //
+        // Add a polygon (or envelope-like) geometry, copying each ring's
+        // vertices with a single queryWKSPoints call
+        //
+        public void addPolygon (int id, IGeometry shape) throws IOException {
+            beginPolygon(id);
+            if ((shape == null) || shape.isEmpty()) {
+                return;
+            }
+            IGeometryCollection rings = new IGeometryCollectionProxy(shape);
+            for (int r = 0; r < rings.getGeometryCount(); r += 1) {
+                IPointCollection ring = new IPointCollectionProxy(rings.getGeometry(r));
+                int count = ring.getPointCount();
+                if (m_points.length < count) {
+                    m_points = new _WKSPoint[Math.max(count, m_points.length * 2)];
+                    for (int i = 0; i < m_points.length; i += 1) {
+                        m_points[i] = new _WKSPoint();
+                    }
+                }
+                ring.queryWKSPoints(0, count, m_points);
+                double[] xs = new double[count];
+                double[] ys = new double[count];
+                for (int i = 0; i < count; i += 1) {
+                    xs[i] = m_points[i].x;
+                    ys[i] = m_points[i].y;
+                }
+                addRing(xs, ys, count);
+            }
+        }
+
+        public PolygonIndex build () {
+            return new PolygonIndex(this);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.ngs.fieldscope;
+
+import com.esri.arcgis.geodatabase.IFeature;
+import com.esri.arcgis.geodatabase.IFeatureClass;
+import com.esri.arcgis.geodatabase.IFeatureCursor;
+import com.esri.arcgis.geodatabase.IQueryFilter;
+import com.esri.arcgis.geodatabase.QueryFilter;
+import com.esri.arcgis.geometry.IGeometry;
+import com.esri.arcgis.geometry.ISpatialReference;
+import com.esri.arcgis.geometry.esriGeometryType;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+//
+// The polygons of a static feature class held in memory with one field's
+// value as a string, for looking up the value at a point without a
+// geodatabase search. Used for index layers such as the one naming the
+// high resolution raster that covers each area.
+//
+public class PolygonValueIndex
+{
+    private final PolygonIndex m_polygons;
+    private final String[] m_values;
+
+    private PolygonValueIndex (PolygonIndex polygons, String[] values) {
+        m_polygons = polygons;
+        m_values = values;
+    }
+
+    public int size () {
+        return m_values.length;
+    }
+
+    //
+    // Value of the first polygon containing the point, or null if none does
+    // or its value is null
+    //
+    public String find (double x, double y) {
+        int polygon = m_polygons.find(x, y);
+        return (polygon >= 0) ? m_values[m_polygons.getId(polygon)] : null;
+    }
+
+    //
+    // Read every polygon in a feature class along with the given field,
+    // projecting them into spatialReference if it is not null and differs.
+    // Returns null if the feature class doesn't hold polygons, or if the
+    // vertices would take more than maxBytes of heap, in which case the
+    // caller should keep querying the feature class.
+    //
+    public static PolygonValueIndex load (IFeatureClass fc, String field, ISpatialReference spatialReference, long maxBytes) throws IOException {
+        if (fc.getShapeType() != esriGeometryType.esriGeometryPolygon) {
+            return null;
+        }
+        IQueryFilter filter = new QueryFilter();
+        filter.setSubFields(fc.getOIDFieldName() + "," + fc.getShapeFieldName() + "," + field);
+        PolygonIndex.Builder builder = new PolygonIndex.Builder();
+        List<String> values = new ArrayList<String>();
+        long maxVertices = maxBytes / PolygonIndex.BYTES_PER_VERTEX;
+        IFeatureCursor cursor = fc.search(filter, false);
+        int fieldIndex = cursor.findField(field);
+        IFeature feature;
+        while ((feature = cursor.nextFeature()) != null) {
+            IGeometry shape = feature.getShape();
+            if ((shape != null) && (spatialReference != null) && (shape.getSpatialReference() != null) &&
+                (shape.getSpatialReference().getFactoryCode() != spatialReference.getFactoryCode())) {
+                shape.project(spatialReference);
+            }
+            Object value = feature.getValue(fieldIndex);
+            builder.addPolygon(values.size(), shape);
+            values.add((value != null) ? value.toString() : null);
+            if (builder.getVertexCount() > maxVertices) {
+                return null;
+            }
+        }
+        return new PolygonValueIndex(builder.build(), values.toArray(new String[values.size()]));
+    }
+}
@@ -5,19 +5,29 @@ import com.esri.arcgis.carto.IMapTableTimeInfo;
 import com.esri.arcgis.carto.IMapTableTimeInfoProxy;
 import com.esri.arcgis.carto.TimeQueryFilter;
 import com.esri.arcgis.datasourcesraster.IRaster2;
+import com.esri.arcgis.datasourcesraster.IRasterBandCollection;
+import com.esri.arcgis.datasourcesraster.IRasterProps;
+import com.esri.arcgis.datasourcesraster.IRasterPropsProxy;
 import com.esri.arcgis.datasourcesraster.Raster;
 import com.esri.arcgis.geodatabase.FeatureClass;
 import com.esri.arcgis.geodatabase.IFeature;
 import com.esri.arcgis.geodatabase.IFeatureClass;
+import com.esri.arcgis.geodatabase.ICursor;
 import com.esri.arcgis.geodatabase.IFeatureCursor;
 import com.esri.arcgis.geodatabase.IRaster;
 import com.esri.arcgis.geodatabase.IRasterCatalogItem;
 import com.esri.arcgis.geodatabase.IRasterCatalogItemProxy;
+import com.esri.arcgis.geodatabase.IRow;
+import com.esri.arcgis.geodatabase.ITable;
+import com.esri.arcgis.geodatabase.QueryFilter;
 import com.esri.arcgis.geodatabase.SpatialFilter;
 import com.esri.arcgis.geodatabase.esriSpatialRelEnum;
 import com.esri.arcgis.geometry.IEnvelope;
 import com.esri.arcgis.geometry.IPoint;
+import com.esri.arcgis.geometry.ISpatialReference;
+import com.esri.arcgis.geometry.Multipoint;
 import com.esri.arcgis.geometry.Point;
+import com.esri.arcgis.geometry._WKSPoint;
 import com.esri.arcgis.interop.AutomationException;
 import com.esri.arcgis.interop.extn.ArcGISExtension;
 import com.esri.arcgis.interop.extn.ServerObjectExtProperties;
@@ -32,44 +42,90 @@ import com.esri.arcgis.system.ServerUtilities;
 import com.esri.arcgis.system.TimeExtent;
 import com.esri.arcgis.system.TimeInstant;
 import com.esri.arcgis.system.esriTimeStringFormat;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.xml.bind.DatatypeConverter;
 
 @ArcGISExtension
 @ServerObjectExtProperties(displayName = "QueryPoints", 
-                           description = "Query map layer at multiple points")
+                           description = "Query map layer at multiple points",
+                           properties = { "FeatureIndexMaxMegabytes=64", "MosaicCacheMaxRasters=64", "MosaicCacheMaxMegabytes=4096",
+                                          "QueryParallelism=1", "QueryChunkSize=2048", "AllowReload=false",
+                                          "TileCacheDirectory=", "TileCacheCompression=false" })
 public class QueryPoints extends FieldScopeSOE 
 {
     private static final long serialVersionUID = 3407992158163980844L;
     
     private Map<Integer, QueryPointsLayer> m_layers;
+    private long m_featureIndexMaxBytes = 64L << 20;
+    private int m_mosaicCacheMaxRasters = 64;
+    private long m_mosaicCacheMaxBytes = 4096L << 20;
+    private int m_parallelism = 1;
+    private int m_chunkSize = 2048;
+    private boolean m_allowReload = false;
+    private ExecutorService m_workers = null;
 
     @Override
     @SuppressWarnings("deprecation")
     public void construct(IPropertySet propertySet) throws IOException, AutomationException {
         super.construct(propertySet);
+        if (propertySet.getProperty("FeatureIndexMaxMegabytes") != null) {
+            m_featureIndexMaxBytes = Long.parseLong(propertySet.getProperty("FeatureIndexMaxMegabytes").toString()) << 20;
+        }
+        if (propertySet.getProperty("MosaicCacheMaxRasters") != null) {
+            m_mosaicCacheMaxRasters = Integer.parseInt(propertySet.getProperty("MosaicCacheMaxRasters").toString());
+        }
+        if (propertySet.getProperty("MosaicCacheMaxMegabytes") != null) {
+            m_mosaicCacheMaxBytes = Long.parseLong(propertySet.getProperty("MosaicCacheMaxMegabytes").toString()) << 20;
+        }
+        if (propertySet.getProperty("QueryParallelism") != null) {
+            m_parallelism = Integer.parseInt(propertySet.getProperty("QueryParallelism").toString());
+        }
+        if (propertySet.getProperty("QueryChunkSize") != null) {
+            m_chunkSize = Math.max(1, Integer.parseInt(propertySet.getProperty("QueryChunkSize").toString()));
+        }
+        if (propertySet.getProperty("AllowReload") != null) {
+            m_allowReload = Boolean.parseBoolean(propertySet.getProperty("AllowReload").toString());
+        }
+        m_workers = WorkerPool.create("QueryPoints", m_parallelism);
         m_layers = new TreeMap<Integer, QueryPointsLayer>();
         IMapLayerInfo[] layers = getMapLayerInfo();
         for (int i = 0; i < layers.length; ) {
             if (layers[i].getType().equals("Raster Layer")) {
+                IRaster raster = new Raster(getDataSourceByID(layers[i].getID()));
                 m_layers.put(Integer.valueOf(layers[i].getID()), 
                              new QueryPointsRasterLayer(
                                  layers[i],
-                                 new Raster(getDataSourceByID(layers[i].getID()))));
+                                 raster,
+                                 openTiles(raster, 0)));
                 i += 1;
             } else if (layers[i].getType().equals("Feature Layer")) {
                 m_layers.put(Integer.valueOf(layers[i].getID()), 
                              new QueryPointsFeatureClassLayer(
                                  layers[i],
-                                 new FeatureClass(getDataSourceByID(layers[i].getID()))));
+                                 new FeatureClass(getDataSourceByID(layers[i].getID())),
+                                 m_featureIndexMaxBytes));
                 i += 1;
             } else if (layers[i].getType().equals("Mosaic Layer")) {
                 m_layers.put(Integer.valueOf(layers[i].getID()), 
@@ -77,7 +133,10 @@ public class QueryPoints extends FieldScopeSOE
                                  layers[i],
                                  new FeatureClass(getDataSourceByID(layers[i].getID() + 1)),
                                  new FeatureClass(getDataSourceByID(layers[i].getID() + 2)),
-                                 new Raster(getDataSourceByID(layers[i].getID() + 3))));
+                                 new Raster(getDataSourceByID(layers[i].getID() + 3)),
+                                 m_mosaicCacheMaxRasters,
+                                 m_mosaicCacheMaxBytes,
+                                 m_featureIndexMaxBytes));
                 i += 4;
             } else {
                 i += 1;
@@ -88,6 +147,10 @@ public class QueryPoints extends FieldScopeSOE
     @Override 
     public void shutdown () throws IOException, AutomationException {
         super.shutdown();
+        if (m_workers != null) {
+            m_workers.shutdownNow();
+            m_workers = null;
+        }
         m_layers = null;
     }
     
@@ -96,9 +159,15 @@ public class QueryPoints extends FieldScopeSOE
         JSONArray resources = new JSONArray();
         JSONObject layers = ServerUtilities.createResource("layers", "Queryable layers in this map service", true, false);
         JSONArray operations = new JSONArray();
-        operations.put(ServerUtilities.createOperation("queryPoints", "points, outField", "json", false));
+        operations.put(ServerUtilities.createOperation("queryPoints", "points, pointsBinary, coordinates, pointStride, ids, outField, interpolation, neighborhood, neighborhoodStatistic, outputFormat", "json, columnar, binary", false));
+        operations.put(ServerUtilities.createOperation("queryProfile", "polyline, sampleDistance, outField", "json", false));
+        operations.put(ServerUtilities.createOperation("zonalStats", "polygon, histogram", "json", false));
+        if (m_allowReload) {
+            operations.put(ServerUtilities.createOperation("reload", "", "json", false));
+        }
         layers.put("operations", operations);
         resources.put(layers);
+        resources.put(createStatsResource());
         result.put("resources", resources);
         return result.toString();
     }
@@ -137,56 +206,317 @@ public class QueryPoints extends FieldScopeSOE
         Matcher m = lp.matcher(resourceName);
         if (operationName.equalsIgnoreCase("queryPoints") && m.matches()) {
             Integer layerId = Integer.valueOf(m.group(1).trim());
-            JSONArray pointsJson = operationInput.getJSONArray("points");
-            List<PointQuery> points = new ArrayList<PointQuery>(pointsJson.length());
-            for (int i = 0; i < pointsJson.length(); i += 1) {
-                points.add(new PointQuery(pointsJson.getJSONObject(i)));
+            List<PointQuery> points = readPoints(operationInput);
+            String outField = operationInput.optString("outField");
+            PointSampler sampler = PointSampler.parse(operationInput.optString("interpolation"),
+                                                      operationInput.optString("neighborhood"),
+                                                      operationInput.optString("neighborhoodStatistic"));
+            Object[] values = query(m_layers.get(layerId), points, outField, sampler);
+            getMetrics().add("pointsQueried", points.size());
+            String format = operationInput.optString("outputFormat", outputFormat);
+            if ("columnar".equalsIgnoreCase(format)) {
+                return writeColumnar(points, values);
+            } else if ("binary".equalsIgnoreCase(format)) {
+                responsePropertiesMap.put("Content-Type", "application/octet-stream");
+                return writeBinary(values);
+            }
+            List<JSONObject> results = new ArrayList<JSONObject>(values.length);
+            for (int i = 0; i < values.length; i += 1) {
+                results.add(points.get(i).toJson(values[i]));
             }
+            JSONObject result = new JSONObject();
+            result.put("results", results);
+            operationOutput = result.toString().getBytes("utf-8");
+        } else if (operationName.equalsIgnoreCase("queryProfile") && m.matches()) {
+            Integer layerId = Integer.valueOf(m.group(1).trim());
+            JSONObject polyline = operationInput.getJSONObject("polyline");
+            List<double[]> paths = readPaths(polyline);
+            projectParts(paths, polyline, getLayerSpatialReference(layerId.intValue()));
+            double sampleDistance = operationInput.optDouble("sampleDistance", 0);
             String outField = operationInput.optString("outField");
+            operationOutput = m_layers.get(layerId).profile(paths, sampleDistance, outField).toString().getBytes("utf-8");
+        } else if (operationName.equalsIgnoreCase("zonalStats") && m.matches()) {
+            Integer layerId = Integer.valueOf(m.group(1).trim());
+            JSONObject polygon = operationInput.getJSONObject("polygon");
+            List<double[]> rings = ZonalStatistics.readRings(polygon);
+            projectParts(rings, polygon, getLayerSpatialReference(layerId.intValue()));
+            boolean histogram = operationInput.optBoolean("histogram", false);
+            operationOutput = m_layers.get(layerId).zonalStats(rings, histogram, m_workers).toString().getBytes("utf-8");
+        } else if (operationName.equalsIgnoreCase("reload") && m.matches() && m_allowReload) {
+            Integer layerId = Integer.valueOf(m.group(1).trim());
+            m_layers.get(layerId).reload();
             JSONObject result = new JSONObject();
-            result.put("results", m_layers.get(layerId).query(points, outField));
+            result.put("success", true);
             operationOutput = result.toString().getBytes("utf-8");
         }
         return operationOutput;
     }
     
+    //
+    // Run a layer query. When there are workers and the layer can answer
+    // from plain Java data, large batches are split into chunks that are
+    // looked up on the workers; points are taken in the layer's preferred
+    // order, so each chunk touches as little data as possible, and the
+    // values are scattered back into input order. Anything else runs here
+    // on the request thread.
+    //
+    private Object[] query (QueryPointsLayer layer, final List<PointQuery> points, String field, PointSampler sampler) throws IOException {
+        if ((m_workers == null) || (points.size() <= m_chunkSize)) {
+            return layer.query(points, field, sampler);
+        }
+        final PointLookup lookup = layer.prepare(field, sampler);
+        if (lookup == null) {
+            return layer.query(points, field, sampler);
+        }
+        final int[] order = layer.getExecutionOrder(points);
+        final Object[] result = new Object[points.size()];
+        List<Callable<Object>> chunks = new ArrayList<Callable<Object>>();
+        for (int from = 0; from < points.size(); from += m_chunkSize) {
+            final int start = from;
+            final int end = Math.min(points.size(), from + m_chunkSize);
+            chunks.add(new Callable<Object>() {
+                public Object call () throws IOException {
+                    List<PointQuery> chunk = new ArrayList<PointQuery>(end - start);
+                    for (int i = start; i < end; i += 1) {
+                        chunk.add(points.get((order != null) ? order[i] : i));
+                    }
+                    Object[] values = lookup.query(chunk);
+                    for (int i = start; i < end; i += 1) {
+                        result[(order != null) ? order[i] : i] = values[i - start];
+                    }
+                    return null;
+                }
+            });
+        }
+        WorkerPool.invokeAll(m_workers, chunks);
+        return result;
+    }
+    
+    //
+    // Columnar response: {"ids":[...],"values":[...]}, written straight to
+    // the output buffer without building an object per point
+    //
+    private static byte[] writeColumnar (List<PointQuery> points, Object[] values) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(values.length * 16 + 32);
+        Writer out = new BufferedWriter(new OutputStreamWriter(buffer, "utf-8"));
+        out.write("{\"ids\":[");
+        for (int i = 0; i < values.length; i += 1) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(JSONObject.quote(points.get(i).id));
+        }
+        out.write("],\"values\":[");
+        for (int i = 0; i < values.length; i += 1) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeValue(out, PointQuery.getResult(values[i]));
+        }
+        out.write("]}");
+        out.flush();
+        return buffer.toByteArray();
+    }
+    
+    private static void writeValue (Writer out, Object value) throws IOException {
+        if (value == null) {
+            out.write("null");
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[])value;
+            out.write('[');
+            for (int i = 0; i < array.length; i += 1) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                writeValue(out, array[i]);
+            }
+            out.write(']');
+        } else if ((value instanceof Double) || (value instanceof Float)) {
+            double number = ((Number)value).doubleValue();
+            out.write((Double.isNaN(number) || Double.isInfinite(number)) ? "null" : value.toString());
+        } else if ((value instanceof Number) || (value instanceof Boolean)) {
+            out.write(value.toString());
+        } else {
+            out.write(JSONObject.quote(value.toString()));
+        }
+    }
+    
+    //
+    // Binary response: one little-endian IEEE double per point, NaN where
+    // there is no value. Only single numeric values can be sent this way.
+    //
+    private static byte[] writeBinary (Object[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < values.length; i += 1) {
+            Object value = PointQuery.getResult(values[i]);
+            if (value == null) {
+                buffer.putDouble(Double.NaN);
+            } else if (value instanceof Number) {
+                buffer.putDouble(((Number)value).doubleValue());
+            } else {
+                throw new IllegalArgumentException("binary output requires a single numeric value per point");
+            }
+        }
+        return buffer.array();
+    }
+    
+    //
+    // Points can be sent as an array of {x, y, t, id} objects ("points"), or
+    // packed as x,y or x,y,t doubles, either base64-encoded little-endian
+    // ("pointsBinary") or as a flat JSON array ("coordinates"), with an
+    // optional parallel "ids" array. A packed t of NaN means no time.
+    //
+    private static List<PointQuery> readPoints (JSONObject input) throws IOException {
+        JSONArray pointsJson = input.optJSONArray("points");
+        if (pointsJson != null) {
+            List<PointQuery> result = new ArrayList<PointQuery>(pointsJson.length());
+            for (int i = 0; i < pointsJson.length(); i += 1) {
+                result.add(PointQuery.fromJson(pointsJson.getJSONObject(i)));
+            }
+            return result;
+        }
+        int stride = input.optInt("pointStride", 2);
+        if ((stride != 2) && (stride != 3)) {
+            throw new IllegalArgumentException("pointStride must be 2 (x,y) or 3 (x,y,t)");
+        }
+        double[] coordinates;
+        if (input.has("pointsBinary")) {
+            byte[] bytes = DatatypeConverter.parseBase64Binary(input.getString("pointsBinary"));
+            DoubleBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            coordinates = new double[buffer.remaining()];
+            buffer.get(coordinates);
+        } else if (input.has("coordinates")) {
+            JSONArray coordinatesJson = input.getJSONArray("coordinates");
+            coordinates = new double[coordinatesJson.length()];
+            for (int i = 0; i < coordinates.length; i += 1) {
+                coordinates[i] = coordinatesJson.getDouble(i);
+            }
+        } else {
+            throw new IllegalArgumentException("must specify one of {points,pointsBinary,coordinates}");
+        }
+        if (coordinates.length % stride != 0) {
+            throw new IllegalArgumentException("point data is not a whole number of points");
+        }
+        JSONArray ids = input.optJSONArray("ids");
+        int count = coordinates.length / stride;
+        List<PointQuery> result = new ArrayList<PointQuery>(count);
+        for (int i = 0; i < count; i += 1) {
+            double t = (stride == 3) ? coordinates[i * stride + 2] : Double.NaN;
+            result.add(new PointQuery((ids != null) ? ids.optString(i) : "",
+                                      coordinates[i * stride],
+                                      coordinates[i * stride + 1],
+                                      Double.isNaN(t) ? PointQuery.NO_TIME : PointQuery.TIME_INSTANT,
+                                      (long)t,
+                                      (long)t));
+        }
+        return result;
+    }
+    
+    //
+    // Spatial reference of a raster layer as read at construct; null for
+    // other layers, whose operations take coordinates as they are
+    //
+    private ISpatialReference getLayerSpatialReference (int layerId) {
+        LayerRegistry.Layer layer = getLayerRegistry().get(layerId);
+        return (layer != null) ? layer.spatialReference : null;
+    }
+
+    //
+    // Paths of an Esri JSON polyline, each as interleaved x,y coordinates
+    //
+    private static List<double[]> readPaths (JSONObject polyline) {
+        JSONArray pathsJson = polyline.getJSONArray("paths");
+        List<double[]> result = new ArrayList<double[]>(pathsJson.length());
+        for (int i = 0; i < pathsJson.length(); i += 1) {
+            JSONArray pathJson = pathsJson.getJSONArray(i);
+            double[] path = new double[pathJson.length() * 2];
+            for (int j = 0; j < pathJson.length(); j += 1) {
+                JSONArray vertex = pathJson.getJSONArray(j);
+                path[j * 2] = vertex.getDouble(0);
+                path[j * 2 + 1] = vertex.getDouble(1);
+            }
+            result.add(path);
+        }
+        return result;
+    }
+    
+    //
+    // A single point to query, held in primitive fields. The COM geometry
+    // and time objects are only built if a layer asks for them.
+    //
     private static class PointQuery
     {
-        public final IPoint geometry;
+        public static final int NO_TIME = 0;
+        public static final int TIME_INSTANT = 1;
+        public static final int TIME_EXTENT = 2;
+        
+        public final double x;
+        public final double y;
         public final String id;
-        public final ITimeValue time;
+        public final int timeType;
+        public final long startTime;
+        public final long endTime;
+        private IPoint m_geometry;
+        
+        public PointQuery (String id, double x, double y, int timeType, long startTime, long endTime) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.timeType = timeType;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            m_geometry = null;
+        }
     
-        public PointQuery (JSONObject json) throws IOException {
-            geometry = new Point();
-            geometry.setX(json.getDouble("x"));
-            geometry.setY(json.getDouble("y"));
-            id = json.optString("id");
-            ITimeValue timeValue = null;
+        public static PointQuery fromJson (JSONObject json) {
+            int timeType = NO_TIME;
+            long start = 0;
+            long end = 0;
             try {
-                long tstamp = json.getLong("t");
-                ITimeInstant instant = new TimeInstant();
-                instant.setTime(Util.parseUTCMilliseconds(tstamp));
-                timeValue = instant;
+                start = end = json.getLong("t");
+                timeType = TIME_INSTANT;
             } catch (JSONException e) {
                 String timeStr = json.optString("t");
                 if ((timeStr != null) && (timeStr.length() > 0)) {
                     if (timeStr.indexOf(',') >= 0) {
                         String[] times = timeStr.split(",");
-                        ITimeExtent extent = new TimeExtent();
-                        extent.setStartTime(Util.parseUTCMilliseconds(Long.valueOf(times[0])));
-                        extent.setEndTime(Util.parseUTCMilliseconds(Long.valueOf(times[1])));
-                        timeValue = extent;
+                        start = Long.parseLong(times[0].trim());
+                        end = Long.parseLong(times[1].trim());
+                        timeType = TIME_EXTENT;
                     } else {
-                        ITimeInstant instant = new TimeInstant();
-                        instant.setTime(Util.parseUTCMilliseconds(Long.valueOf(timeStr)));
-                        timeValue = instant;
+                        start = end = Long.parseLong(timeStr.trim());
+                        timeType = TIME_INSTANT;
                     }
                 }
             }
-            time = timeValue;
+            return new PointQuery(json.optString("id"), json.getDouble("x"), json.getDouble("y"), timeType, start, end);
+        }
+        
+        public IPoint getGeometry () throws IOException {
+            if (m_geometry == null) {
+                m_geometry = new Point();
+                m_geometry.setX(x);
+                m_geometry.setY(y);
+            }
+            return m_geometry;
+        }
+        
+        public ITimeValue getTimeValue () throws IOException {
+            if (timeType == TIME_EXTENT) {
+                ITimeExtent extent = new TimeExtent();
+                extent.setStartTime(Util.parseUTCMilliseconds(startTime));
+                extent.setEndTime(Util.parseUTCMilliseconds(endTime));
+                return extent;
+            } else if (timeType == TIME_INSTANT) {
+                ITimeInstant instant = new TimeInstant();
+                instant.setTime(Util.parseUTCMilliseconds(startTime));
+                return instant;
+            }
+            return null;
         }
     
         public String getWhereClause (IMapTableTimeInfo timeInfo) throws IOException {
+            ITimeValue time = getTimeValue();
             if ((time == null) || (!timeInfo.isSupportsTime())) {
                 return null;
             } else if (time instanceof ITimeExtent) {
@@ -217,22 +547,42 @@ public class QueryPoints extends FieldScopeSOE
             if (id != null) {
                 result.put("id", id);
             }
+            Object value = getResult(values);
+            if (value == null) {
+                result.put("result", (JSONObject)null);
+            } else {
+                result.put("result", value);
+            }
+            return result;
+        }
+        
+        //
+        // A layer returns either one value per point or a list of them; a
+        // list is reported as null, its only element, or an array
+        //
+        public static Object getResult (Object values) {
             if (values instanceof List<?>) {
-                List<Object> list = (List<Object>)values;
+                List<?> list = (List<?>)values;
                 if (list.size() == 0) {
-                    result.put("result", (JSONObject)null);
+                    return null;
                 } else if (list.size() == 1) {
-                    result.put("result", list.get(0));
+                    return list.get(0);
                 } else {
-                    result.put("result", list.toArray());
+                    return list.toArray();
                 }
-            } else {
-                result.put("result", values);
             }
-            return result;
+            return values;
         }
     }
     
+    //
+    // A layer query that touches no COM objects
+    //
+    private static interface PointLookup
+    {
+        public Object[] query (List<PointQuery> points) throws IOException;
+    }
+    
     private static abstract class QueryPointsLayer
     {
         public String name;
@@ -252,107 +602,836 @@ public class QueryPoints extends FieldScopeSOE
             return result;
         }
         
-        public abstract Iterable<JSONObject> query (Iterable<PointQuery> points, String field) throws IOException;
+        //
+        // Look up every point, returning one value (or list of values) per
+        // point in the same order. Raster layers read cell values with the
+        // given sampler. Called on the request thread.
+        //
+        public abstract Object[] query (List<PointQuery> points, String field, PointSampler sampler) throws IOException;
+        
+        //
+        // The same lookup as query, for one field and sampler, if the layer
+        // can answer it from plain Java data that any thread may read, so
+        // that it can be run on workers; null if the layer has to be read
+        // through ArcObjects. Called on the request thread, which loads
+        // whatever the lookup needs first.
+        //
+        public PointLookup prepare (String field, PointSampler sampler) throws IOException {
+            return null;
+        }
+        
+        //
+        // Values along a polyline, as {"distances":[...],"values":[...]}
+        //
+        public JSONObject profile (List<double[]> paths, double sampleDistance, String field) throws IOException {
+            throw new IllegalArgumentException("queryProfile only applies to raster layers");
+        }
+        
+        //
+        // Statistics of the layer's values inside a polygon
+        //
+        public JSONObject zonalStats (List<double[]> rings, boolean histogram, ExecutorService workers) throws IOException {
+            throw new IllegalArgumentException("zonalStats only applies to raster layers");
+        }
+        
+        //
+        // Order in which a large batch should be split into chunks, or null
+        // for input order
+        //
+        public int[] getExecutionOrder (List<PointQuery> points) {
+            return null;
+        }
+        
+        //
+        // Drop anything read from the layer's data source, so the next query
+        // sees the current contents
+        //
+        public void reload () {
+        }
     }
     
     private static class QueryPointsMosaicLayer extends QueryPointsLayer
     {
+        private static final int MAX_POINTS_PER_SEARCH = 1000;
+        
         IFeatureClass m_catalog;
         IMapTableTimeInfo m_timeInfo;
-        Map<Integer, IRaster2> m_cache;
+        LruCache<Integer, IRaster2> m_cache;
+        long m_maxIndexBytes;
+        boolean m_footprintsLoaded;
+        FootprintIndex m_footprints;
     
         public QueryPointsMosaicLayer (IMapLayerInfo layerInfo,
                                        IFeatureClass boundary,
                                        IFeatureClass footprint,
-                                       IRaster mosaic) throws IOException {
+                                       IRaster mosaic,
+                                       int maxCachedRasters,
+                                       long maxCachedBytes,
+                                       long maxIndexBytes) throws IOException {
             super(layerInfo);
             m_catalog = footprint;
             m_timeInfo = new IMapTableTimeInfoProxy(layerInfo);
-            m_cache = new HashMap<Integer, IRaster2>();
+            // Rasters are weighed by the nominal size of their pixel data, so
+            // a handful of very large items can't hold the whole budget
+            m_cache = new LruCache<Integer, IRaster2>(maxCachedRasters, maxCachedBytes, new LruCache.Weigher<IRaster2>() {
+                public long weigh (IRaster2 raster) {
+                    try {
+                        IRasterProps props = new IRasterPropsProxy(raster);
+                        int bands = ((IRasterBandCollection)raster).getCount();
+                        return (long)props.getWidth() * props.getHeight() * bands * TiledRaster.getBytesPerPixel(props.getPixelType());
+                    } catch (IOException e) {
+                        return 1;
+                    }
+                }
+            });
+            m_maxIndexBytes = maxIndexBytes;
+            m_footprintsLoaded = false;
+            m_footprints = null;
+        }
+        
+        @Override
+        public JSONObject toJsonObject () {
+            JSONObject result = super.toJsonObject();
+            result.put("rasterCache", m_cache.toJsonObject());
+            return result;
+        }
+        
+        @Override
+        public synchronized void reload () {
+            m_footprintsLoaded = false;
+            m_footprints = null;
+            m_cache.invalidateAll();
         }
     
         @Override 
-        public Iterable<JSONObject> query (Iterable<PointQuery> points, String field) throws IOException {
-            LinkedList<JSONObject> results = new LinkedList<JSONObject>();
-            List<Object> pointResults = new ArrayList<Object>();
-            for (PointQuery point : points) {
-                pointResults.clear();
-                TimeQueryFilter filter = new TimeQueryFilter();
-                filter.setGeometryByRef(point.geometry);
-                filter.setSpatialRel(esriSpatialRelEnum.esriSpatialRelIntersects);
-                filter.setGeometryField(m_catalog.getShapeFieldName());
-                filter.setWhereClause(point.getWhereClause(m_timeInfo));
-                IFeatureCursor cursor = m_catalog.search(filter, false);
+        public Object[] query (List<PointQuery> points, String field, PointSampler sampler) throws IOException {
+            FootprintIndex footprints = getFootprints();
+            if (footprints == null) {
+                return search(points, sampler);
+            }
+            int[][] matches = new int[points.size()][];
+            for (int i = 0; i < matches.length; i += 1) {
+                matches[i] = footprints.find(points.get(i));
+                for (int k = 0; k < matches[i].length; k += 1) {
+                    matches[i][k] = footprints.polygons.getId(matches[i][k]);
+                }
+            }
+            return sample(points, matches, sampler);
+        }
+        
+        //
+        // Read each point's value from every footprint it falls in, given as
+        // catalog OIDs. Points are gathered by footprint and each raster's
+        // tiles are sampled once for all of them, whatever the sampler.
+        //
+        private Object[] sample (List<PointQuery> points, int[][] matches, PointSampler sampler) throws IOException {
+            Object[][] values = new Object[points.size()][];
+            for (int i = 0; i < values.length; i += 1) {
+                values[i] = new Object[matches[i].length];
+            }
+            Map<Integer, List<int[]>> byFootprint = new LinkedHashMap<Integer, List<int[]>>();
+            for (int i = 0; i < values.length; i += 1) {
+                for (int k = 0; k < matches[i].length; k += 1) {
+                    Integer oid = Integer.valueOf(matches[i][k]);
+                    List<int[]> pairs = byFootprint.get(oid);
+                    if (pairs == null) {
+                        pairs = new ArrayList<int[]>();
+                        byFootprint.put(oid, pairs);
+                    }
+                    pairs.add(new int[] { i, k });
+                }
+            }
+            for (Map.Entry<Integer, List<int[]>> entry : byFootprint.entrySet()) {
+                TiledRaster tiles = new TiledRaster(getRaster(entry.getKey().intValue()), 0);
+                List<int[]> pairs = entry.getValue();
+                double[] xs = new double[pairs.size()];
+                double[] ys = new double[pairs.size()];
+                for (int j = 0; j < xs.length; j += 1) {
+                    PointQuery point = points.get(pairs.get(j)[0]);
+                    xs[j] = point.x;
+                    ys[j] = point.y;
+                }
+                double[] samples = sampler.sample(tiles, xs, ys);
+                for (int j = 0; j < samples.length; j += 1) {
+                    values[pairs.get(j)[0]][pairs.get(j)[1]] = sampler.box(tiles, samples[j]);
+                }
+            }
+            Object[] results = new Object[values.length];
+            for (int i = 0; i < results.length; i += 1) {
+                results[i] = Arrays.asList(values[i]);
+            }
+            return results;
+        }
+        
+        //
+        // Used when the footprints are too large to hold in memory. Points
+        // are grouped by their time filter, and each group is sent to the
+        // catalog as a single multipoint search; the footprints that come
+        // back are indexed in memory, within the same budget as the full
+        // index, and matched to the group's points. Groups whose footprints
+        // don't fit are searched point by point.
+        //
+        private Object[] search (List<PointQuery> points, PointSampler sampler) throws IOException {
+            Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+            for (int i = 0; i < points.size(); i += 1) {
+                PointQuery point = points.get(i);
+                String key = point.timeType + ":" + point.startTime + ":" + point.endTime;
+                List<Integer> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<Integer>();
+                    groups.put(key, group);
+                }
+                group.add(Integer.valueOf(i));
+            }
+            Object[] results = new Object[points.size()];
+            for (List<Integer> group : groups.values()) {
+                for (int start = 0; start < group.size(); start += MAX_POINTS_PER_SEARCH) {
+                    searchGroup(points, group.subList(start, Math.min(group.size(), start + MAX_POINTS_PER_SEARCH)), sampler, results);
+                }
+            }
+            return results;
+        }
+        
+        private void searchGroup (List<PointQuery> points, List<Integer> group, PointSampler sampler, Object[] results) throws IOException {
+            _WKSPoint[] vertices = new _WKSPoint[group.size()];
+            List<PointQuery> groupPoints = new ArrayList<PointQuery>(group.size());
+            for (int i = 0; i < vertices.length; i += 1) {
+                PointQuery point = points.get(group.get(i).intValue());
+                groupPoints.add(point);
+                vertices[i] = new _WKSPoint();
+                vertices[i].x = point.x;
+                vertices[i].y = point.y;
+            }
+            Multipoint multipoint = new Multipoint();
+            multipoint.addWKSPoints(vertices.length, vertices);
+            TimeQueryFilter filter = new TimeQueryFilter();
+            filter.setGeometryByRef(multipoint);
+            filter.setSpatialRel(esriSpatialRelEnum.esriSpatialRelIntersects);
+            filter.setGeometryField(m_catalog.getShapeFieldName());
+            filter.setSubFields(m_catalog.getOIDFieldName() + "," + m_catalog.getShapeFieldName());
+            filter.setWhereClause(groupPoints.get(0).getWhereClause(m_timeInfo));
+            PolygonIndex.Builder builder = new PolygonIndex.Builder();
+            long maxVertices = m_maxIndexBytes / PolygonIndex.BYTES_PER_VERTEX;
+            boolean fits = true;
+            IFeatureCursor cursor = m_catalog.search(filter, false);
+            IFeature feature;
+            while ((feature = cursor.nextFeature()) != null) {
+                builder.addPolygon(feature.getOID(), feature.getShape());
+                if (builder.getVertexCount() > maxVertices) {
+                    fits = false;
+                    break;
+                }
+            }
+            int[][] matches = new int[group.size()][];
+            if (fits) {
+                PolygonIndex footprints = builder.build();
+                for (int i = 0; i < matches.length; i += 1) {
+                    matches[i] = footprints.findAll(groupPoints.get(i).x, groupPoints.get(i).y);
+                    for (int k = 0; k < matches[i].length; k += 1) {
+                        matches[i][k] = footprints.getId(matches[i][k]);
+                    }
+                }
+            } else {
+                for (int i = 0; i < matches.length; i += 1) {
+                    matches[i] = searchPoint(groupPoints.get(i));
+                }
+            }
+            Object[] groupResults = sample(groupPoints, matches, sampler);
+            for (int i = 0; i < groupResults.length; i += 1) {
+                results[group.get(i).intValue()] = groupResults[i];
+            }
+        }
+        
+        //
+        // OIDs of the footprints containing one point, in catalog order
+        //
+        private int[] searchPoint (PointQuery point) throws IOException {
+            TimeQueryFilter filter = new TimeQueryFilter();
+            filter.setGeometryByRef(point.getGeometry());
+            filter.setSpatialRel(esriSpatialRelEnum.esriSpatialRelIntersects);
+            filter.setGeometryField(m_catalog.getShapeFieldName());
+            filter.setSubFields(m_catalog.getOIDFieldName());
+            filter.setWhereClause(point.getWhereClause(m_timeInfo));
+            int[] result = new int[4];
+            int found = 0;
+            IFeatureCursor cursor = m_catalog.search(filter, false);
+            IFeature feature;
+            while ((feature = cursor.nextFeature()) != null) {
+                if (found == result.length) {
+                    result = Arrays.copyOf(result, found * 2);
+                }
+                result[found++] = feature.getOID();
+            }
+            return Arrays.copyOf(result, found);
+        }
+        
+        //
+        // Raster handles are opened on the request thread and cached by
+        // catalog OID; mosaic layers are never queried on workers
+        //
+        private IRaster2 getRaster (final int oid) throws IOException {
+            return m_cache.get(Integer.valueOf(oid), new LruCache.Loader<Integer, IRaster2>() {
+                public IRaster2 load (Integer key) throws IOException {
+                    IRasterCatalogItem catalogItem = new IRasterCatalogItemProxy(m_catalog.getFeature(oid));
+                    return (IRaster2)catalogItem.getRasterDataset().createDefaultRaster();
+                }
+            });
+        }
+        
+        //
+        // The footprints are read on first use and kept until the service
+        // restarts or the layer is reloaded; null means the catalog is too
+        // large to hold in memory and should be searched instead
+        //
+        private synchronized FootprintIndex getFootprints () throws IOException {
+            if (!m_footprintsLoaded) {
+                PolygonIndex polygons = PolygonIndex.load(m_catalog, null, m_maxIndexBytes);
+                if (polygons != null) {
+                    m_footprints = new FootprintIndex(polygons, m_catalog, m_timeInfo);
+                }
+                m_footprintsLoaded = true;
+            }
+            return m_footprints;
+        }
+    }
+    
+    //
+    // Mosaic catalog footprints with their time intervals. Points with a time
+    // filter are matched against an index of the intervals, sorted by start
+    // time with a running maximum of end times, and then tested against the
+    // candidate footprints; when the time filter is not selective the
+    // spatial index is used first instead.
+    //
+    private static class FootprintIndex
+    {
+        private static final int MAX_TIME_CANDIDATES = 64;
+        
+        public final PolygonIndex polygons;
+        private final boolean m_hasTime;
+        private final boolean m_hasEndTime;
+        private final long[] m_start;
+        private final long[] m_end;
+        private final boolean[] m_hasValue;
+        private final int[] m_byStart;
+        private final long[] m_sortedStart;
+        private final long[] m_maxEnd;
+        
+        public FootprintIndex (PolygonIndex polygons, IFeatureClass catalog, IMapTableTimeInfo timeInfo) throws IOException {
+            this.polygons = polygons;
+            int count = polygons.size();
+            m_start = new long[count];
+            m_end = new long[count];
+            m_hasValue = new boolean[count];
+            m_hasTime = timeInfo.isSupportsTime();
+            String startField = m_hasTime ? timeInfo.getStartTimeFieldName() : null;
+            String endField = m_hasTime ? timeInfo.getEndTimeFieldName() : null;
+            m_hasEndTime = endField != null;
+            if (m_hasTime) {
+                int[] ids = polygons.getIds();
+                long[] order = new long[count];
+                for (int i = 0; i < count; i += 1) {
+                    order[i] = ((long)ids[i] << 32) | i;
+                }
+                Arrays.sort(order);
+                for (int i = 0; i < count; i += 1) {
+                    ids[i] = (int)(order[i] >> 32);
+                }
+                QueryFilter filter = new QueryFilter();
+                filter.setSubFields(catalog.getOIDFieldName() + "," + startField + (m_hasEndTime ? "," + endField : ""));
+                IFeatureCursor cursor = catalog.search(filter, false);
+                int startIndex = cursor.findField(startField);
+                int endIndex = m_hasEndTime ? cursor.findField(endField) : startIndex;
                 IFeature feature;
                 while ((feature = cursor.nextFeature()) != null) {
-                    IRaster2 raster = m_cache.get(Integer.valueOf(feature.getOID()));
-                    if (raster == null) {
-                        IRasterCatalogItem item = new IRasterCatalogItemProxy(feature);
-                        raster = (IRaster2)item.getRasterDataset().createDefaultRaster();
-                        m_cache.put(Integer.valueOf(feature.getOID()), raster);
+                    int i = Arrays.binarySearch(ids, feature.getOID());
+                    if (i >= 0) {
+                        int position = (int)order[i];
+                        Object start = feature.getValue(startIndex);
+                        Object end = feature.getValue(endIndex);
+                        if ((start != null) && (end != null)) {
+                            m_start[position] = toMilliseconds(start);
+                            m_end[position] = toMilliseconds(end);
+                            m_hasValue[position] = true;
+                        }
                     }
-                    pointResults.add(Util.findValue(raster, 0, point.geometry));
                 }
-                results.addLast(point.toJson(pointResults));
             }
-            return results;
+            int timed = 0;
+            for (int i = 0; i < count; i += 1) {
+                if (m_hasValue[i]) {
+                    timed += 1;
+                }
+            }
+            Integer[] sorted = new Integer[timed];
+            for (int i = 0, j = 0; i < count; i += 1) {
+                if (m_hasValue[i]) {
+                    sorted[j++] = Integer.valueOf(i);
+                }
+            }
+            Arrays.sort(sorted, new Comparator<Integer>() {
+                public int compare (Integer a, Integer b) {
+                    long sa = m_start[a.intValue()];
+                    long sb = m_start[b.intValue()];
+                    return (sa < sb) ? -1 : ((sa == sb) ? 0 : 1);
+                }
+            });
+            m_byStart = new int[timed];
+            m_sortedStart = new long[timed];
+            m_maxEnd = new long[timed];
+            for (int i = 0; i < timed; i += 1) {
+                m_byStart[i] = sorted[i].intValue();
+                m_sortedStart[i] = m_start[m_byStart[i]];
+                m_maxEnd[i] = Math.max((i > 0) ? m_maxEnd[i - 1] : Long.MIN_VALUE, m_end[m_byStart[i]]);
+            }
+        }
+        
+        private static long toMilliseconds (Object value) {
+            if (value instanceof Date) {
+                return Util.getUTCMilliseconds((Date)value);
+            } else if (value instanceof Calendar) {
+                return Util.getUTCMilliseconds((Calendar)value);
+            }
+            return ((Number)value).longValue();
+        }
+        
+        //
+        // Positions of the footprints that contain the point and satisfy its
+        // time filter, in catalog order
+        //
+        public int[] find (PointQuery point) {
+            if ((point.timeType == PointQuery.NO_TIME) || (!m_hasTime)) {
+                return polygons.findAll(point.x, point.y);
+            }
+            // Compared at the precision the where clause sends them with
+            long startTime = Util.truncateToSecond(point.startTime);
+            long endTime = Util.truncateToSecond(point.endTime);
+            int[] candidates = findTime(point.timeType, startTime, endTime, MAX_TIME_CANDIDATES);
+            if (candidates == null) {
+                int[] spatial = polygons.findAll(point.x, point.y);
+                int found = 0;
+                for (int i = 0; i < spatial.length; i += 1) {
+                    if (matchesTime(spatial[i], point.timeType, startTime, endTime)) {
+                        spatial[found++] = spatial[i];
+                    }
+                }
+                return Arrays.copyOf(spatial, found);
+            }
+            int found = 0;
+            for (int i = 0; i < candidates.length; i += 1) {
+                if (polygons.contains(candidates[i], point.x, point.y)) {
+                    candidates[found++] = candidates[i];
+                }
+            }
+            candidates = Arrays.copyOf(candidates, found);
+            Arrays.sort(candidates);
+            return candidates;
+        }
+        
+        //
+        // Same tests as PointQuery.getWhereClause, on times converted the
+        // same way
+        //
+        private boolean matchesTime (int footprint, int timeType, long startTime, long endTime) {
+            if (!m_hasValue[footprint]) {
+                return false;
+            } else if (timeType == PointQuery.TIME_EXTENT) {
+                return (m_start[footprint] >= startTime) && (m_end[footprint] <= endTime);
+            } else if (m_hasEndTime) {
+                return (m_start[footprint] <= startTime) && (m_end[footprint] > startTime);
+            }
+            return m_start[footprint] == startTime;
+        }
+        
+        //
+        // Footprints whose interval satisfies the time filter, or null if
+        // there are more than maxCount of them
+        //
+        private int[] findTime (int timeType, long startTime, long endTime, int maxCount) {
+            int[] result = new int[maxCount];
+            int found = 0;
+            if ((timeType == PointQuery.TIME_EXTENT) || (!m_hasEndTime)) {
+                // Intervals starting within [startTime, endTime]
+                int from = lowerBound(m_sortedStart, startTime);
+                int to = lowerBound(m_sortedStart, endTime + 1);
+                for (int i = from; i < to; i += 1) {
+                    if (matchesTime(m_byStart[i], timeType, startTime, endTime)) {
+                        if (found == maxCount) {
+                            return null;
+                        }
+                        result[found++] = m_byStart[i];
+                    }
+                }
+            } else {
+                // Intervals starting at or before the instant, scanning back
+                // until no earlier interval can still be open
+                for (int i = lowerBound(m_sortedStart, startTime + 1) - 1; (i >= 0) && (m_maxEnd[i] > startTime); i -= 1) {
+                    if (matchesTime(m_byStart[i], timeType, startTime, endTime)) {
+                        if (found == maxCount) {
+                            return null;
+                        }
+                        result[found++] = m_byStart[i];
+                    }
+                }
+            }
+            return Arrays.copyOf(result, found);
+        }
+        
+        private static int lowerBound (long[] values, long key) {
+            int low = 0;
+            int high = values.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
         }
     }
     
     private static class QueryPointsRasterLayer extends QueryPointsLayer
     {
         private IRaster2 m_raster;
+        private int m_pixelType;
+        private TiledGrid m_grid;
+        private Map<String, AttributeColumn> m_attributes;
+        private boolean m_tableLoaded;
+        private ITable m_table;
     
-        public QueryPointsRasterLayer (IMapLayerInfo layerInfo, IRaster raster) throws IOException {
+        public QueryPointsRasterLayer (IMapLayerInfo layerInfo, IRaster raster, TiledGrid grid) throws IOException {
             super(layerInfo);
             m_raster = (IRaster2)raster;
+            m_pixelType = new IRasterPropsProxy(raster).getPixelType();
+            m_grid = grid;
+            m_attributes = new HashMap<String, AttributeColumn>();
+            m_tableLoaded = false;
+            m_table = null;
         }
 
         @Override 
-        public Iterable<JSONObject> query (Iterable<PointQuery> points, String field) throws IOException {
-            LinkedList<JSONObject> results = new LinkedList<JSONObject>();
-            int fieldIndex = -1;
-            if ((m_raster.getAttributeTable() != null) && (field != null)) {
-                fieldIndex = m_raster.getAttributeTable().findField(field);
-            }
-            for (PointQuery point : points) {
-                Object value = Util.findValue(m_raster, 0, point.geometry);
+        public Object[] query (List<PointQuery> points, String field, PointSampler sampler) throws IOException {
+            return query(m_grid, getAttributeColumn(field), sampler, points);
+        }
+        
+        //
+        // Only a memory-mapped grid can be sampled on workers; the attribute
+        // column is read here and only looked up by them
+        //
+        @Override
+        public PointLookup prepare (String field, final PointSampler sampler) throws IOException {
+            if (!m_grid.isThreadSafe()) {
+                return null;
+            }
+            final AttributeColumn column = getAttributeColumn(field);
+            return new PointLookup() {
+                public Object[] query (List<PointQuery> points) throws IOException {
+                    return QueryPointsRasterLayer.query(m_grid, column, sampler, points);
+                }
+            };
+        }
+        
+        private static Object[] query (TiledGrid grid, AttributeColumn column, PointSampler sampler, List<PointQuery> points) throws IOException {
+            if ((column != null) && !sampler.isCellValue()) {
+                throw new IllegalArgumentException("outField can't be used with interpolated or mean values");
+            }
+            double[] xs = new double[points.size()];
+            double[] ys = new double[points.size()];
+            for (int i = 0; i < xs.length; i += 1) {
+                xs[i] = points.get(i).x;
+                ys[i] = points.get(i).y;
+            }
+            double[] samples = sampler.sample(grid, xs, ys);
+            Object[] values = new Object[samples.length];
+            for (int i = 0; i < values.length; i += 1) {
+                if (column == null) {
+                    values[i] = sampler.box(grid, samples[i]);
+                } else if (!Double.isNaN(samples[i])) {
+                    values[i] = column.get((int)samples[i]);
+                }
+            }
+            return values;
+        }
+        
+        //
+        // Split large batches by tile, so that each worker reads as few
+        // tiles as possible
+        //
+        @Override
+        public int[] getExecutionOrder (List<PointQuery> points) {
+            long[] keys = new long[points.size()];
+            for (int i = 0; i < keys.length; i += 1) {
+                PointQuery point = points.get(i);
+                int tileIndex = m_grid.getTileIndex(m_grid.getColumn(point.x), m_grid.getRow(point.y));
+                keys[i] = ((long)tileIndex << 32) | i;
+            }
+            Arrays.sort(keys);
+            int[] result = new int[keys.length];
+            for (int i = 0; i < keys.length; i += 1) {
+                result[i] = (int)keys[i];
+            }
+            return result;
+        }
+        
+        @Override
+        public JSONObject profile (List<double[]> paths, double sampleDistance, String field) throws IOException {
+            TiledGrid tiles = m_grid;
+            AttributeColumn column = getAttributeColumn(field);
+            RasterProfile profile = new RasterProfile(tiles, sampleDistance);
+            for (double[] path : paths) {
+                profile.addPath(path);
+            }
+            profile.finish();
+            double[] distances = profile.getDistances();
+            double[] samples = profile.getValues();
+            JSONArray distancesJson = new JSONArray();
+            List<Object> values = new ArrayList<Object>(samples.length);
+            for (int i = 0; i < samples.length; i += 1) {
+                distancesJson.put(distances[i]);
+                if (column == null) {
+                    values.add(tiles.box(samples[i]));
+                } else {
+                    values.add(Double.isNaN(samples[i]) ? null : column.get((int)samples[i]));
+                }
+            }
+            JSONObject result = new JSONObject();
+            result.put("distances", distancesJson);
+            result.put("values", values);
+            return result;
+        }
+        
+        @Override
+        public JSONObject zonalStats (List<double[]> rings, boolean histogram, ExecutorService workers) throws IOException {
+            ZonalStatistics zone = new ZonalStatistics(m_grid, m_pixelType);
+            zone.setPolygon(rings);
+            ZonalStatistics.Accumulator stats = zone.compute(workers, histogram);
+            return stats.toJsonObject(m_grid.getCellWidth() * m_grid.getCellHeight());
+        }
+        
+        @Override
+        public synchronized void reload () {
+            m_attributes.clear();
+            m_tableLoaded = false;
+            m_table = null;
+        }
+        
+        //
+        // The value attribute table is read once per field and kept for the
+        // life of the layer, which is rebuilt whenever the SOE is constructed.
+        // Only fields the table actually has are kept, so unknown names sent
+        // by clients can't grow the map.
+        //
+        private synchronized AttributeColumn getAttributeColumn (String field) throws IOException {
+            if ((field == null) || (field.length() == 0)) {
+                return null;
+            }
+            AttributeColumn result = m_attributes.get(field);
+            if (result == null) {
+                if (!m_tableLoaded) {
+                    m_table = m_raster.getAttributeTable();
+                    m_tableLoaded = true;
+                }
+                int fieldIndex = (m_table != null) ? m_table.findField(field) : -1;
                 if (fieldIndex >= 0) {
-                    value = m_raster.getAttributeTable().getRow(((Number)value).intValue()).getValue(fieldIndex);
+                    result = new AttributeColumn(m_table, fieldIndex);
+                    m_attributes.put(field, result);
+                }
+            }
+            return result;
+        }
+    }
+    
+    //
+    // One field of a raster value attribute table, keyed by row ID the same
+    // way ITable.getRow looks it up. Compact ID ranges are held in a dense
+    // array indexed by ID; sparse ones in sorted parallel arrays searched by
+    // bisection.
+    //
+    private static class AttributeColumn
+    {
+        private int m_minKey;
+        private int[] m_keys;
+        private Object[] m_values;
+        
+        public AttributeColumn (ITable table, int fieldIndex) throws IOException {
+            int count = 0;
+            int[] keys = new int[64];
+            Object[] values = new Object[64];
+            ICursor cursor = table.search(null, false);
+            IRow row;
+            while ((row = cursor.nextRow()) != null) {
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                keys[count] = row.getOID();
+                values[count] = row.getValue(fieldIndex);
+                count += 1;
+            }
+            int minKey = Integer.MAX_VALUE;
+            int maxKey = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i += 1) {
+                minKey = Math.min(minKey, keys[i]);
+                maxKey = Math.max(maxKey, keys[i]);
+            }
+            m_minKey = minKey;
+            if ((count > 0) && ((long)maxKey - minKey < 2L * count + 256)) {
+                m_keys = null;
+                m_values = new Object[maxKey - minKey + 1];
+                for (int i = 0; i < count; i += 1) {
+                    m_values[keys[i] - minKey] = values[i];
+                }
+            } else {
+                Integer[] order = new Integer[count];
+                for (int i = 0; i < count; i += 1) {
+                    order[i] = Integer.valueOf(i);
+                }
+                final int[] unsortedKeys = keys;
+                Arrays.sort(order, new Comparator<Integer>() {
+                    public int compare (Integer a, Integer b) {
+                        int ka = unsortedKeys[a.intValue()];
+                        int kb = unsortedKeys[b.intValue()];
+                        return (ka < kb) ? -1 : ((ka == kb) ? 0 : 1);
+                    }
+                });
+                m_keys = new int[count];
+                m_values = new Object[count];
+                for (int i = 0; i < count; i += 1) {
+                    m_keys[i] = keys[order[i].intValue()];
+                    m_values[i] = values[order[i].intValue()];
                 }
-                results.addLast(point.toJson(value));
             }
-            return results;
+        }
+        
+        public Object get (int key) {
+            if (m_keys == null) {
+                int index = key - m_minKey;
+                return ((index >= 0) && (index < m_values.length)) ? m_values[index] : null;
+            }
+            int index = Arrays.binarySearch(m_keys, key);
+            return (index >= 0) ? m_values[index] : null;
         }
     }
     
     private static class QueryPointsFeatureClassLayer extends QueryPointsLayer
     {
         private IFeatureClass m_fc;
+        private long m_maxIndexBytes;
+        private boolean m_indexLoaded;
+        private PolygonIndex m_index;
+        private Map<String, Object[]> m_columns;
     
-        public QueryPointsFeatureClassLayer (IMapLayerInfo layerInfo, IFeatureClass fc) throws IOException { 
+        public QueryPointsFeatureClassLayer (IMapLayerInfo layerInfo, IFeatureClass fc, long maxIndexBytes) throws IOException { 
             super(layerInfo);
             m_fc = fc;
+            m_maxIndexBytes = maxIndexBytes;
+            m_indexLoaded = false;
+            m_index = null;
+            m_columns = new HashMap<String, Object[]>();
+        }
+
+        @Override
+        public synchronized void reload () {
+            m_indexLoaded = false;
+            m_index = null;
+            m_columns.clear();
         }
 
         @Override 
-        public Iterable<JSONObject> query (Iterable<PointQuery> points, String field) throws IOException {
-            LinkedList<JSONObject> results = new LinkedList<JSONObject>();
+        public Object[] query (List<PointQuery> points, String field, PointSampler sampler) throws IOException {
+            PointLookup lookup = prepare(field, sampler);
+            return (lookup != null) ? lookup.query(points) : search(points, field);
+        }
+        
+        //
+        // The in-memory index and column can be read from any thread; a
+        // layer that has to be searched can't
+        //
+        @Override
+        public PointLookup prepare (String field, PointSampler sampler) throws IOException {
+            if (!sampler.isNearest()) {
+                throw new IllegalArgumentException("interpolation and neighborhood only apply to raster layers");
+            }
+            final PolygonIndex index;
+            final Object[] column;
+            synchronized (this) {
+                column = getColumn(field);
+                index = m_index;
+            }
+            if (column == null) {
+                return null;
+            }
+            return new PointLookup() {
+                public Object[] query (List<PointQuery> points) {
+                    Object[] results = new Object[points.size()];
+                    for (int i = 0; i < results.length; i += 1) {
+                        int polygon = index.find(points.get(i).x, points.get(i).y);
+                        results[i] = (polygon >= 0) ? column[polygon] : null;
+                    }
+                    return results;
+                }
+            };
+        }
+        
+        private Object[] search (List<PointQuery> points, String field) throws IOException {
+            Object[] results = new Object[points.size()];
             SpatialFilter filter = new SpatialFilter();
             filter.setSubFields(field);
             filter.setSpatialRel(esriSpatialRelEnum.esriSpatialRelIntersects);
-            for (PointQuery point : points) {
-                filter.setGeometryByRef(point.geometry);
+            for (int i = 0; i < results.length; i += 1) {
+                filter.setGeometryByRef(points.get(i).getGeometry());
                 IFeatureCursor cursor = m_fc.search(filter, false);
                 IFeature feature = cursor.nextFeature();
                 if (feature != null) {
-                    Object value = feature.getValue(cursor.findField(field));
-                    results.addLast(point.toJson(value));
-                } else {
-                    results.addLast(point.toJson(null));
+                    results[i] = feature.getValue(cursor.findField(field));
                 }
             }
             return results;
         }
+        
+        //
+        // Values of one field, in polygon index order. The geometry is loaded
+        // on first use and each field on its first request; null means the
+        // layer is not a polygon layer, is too large to index, or doesn't
+        // have the field, and should be searched instead.
+        //
+        private synchronized Object[] getColumn (String field) throws IOException {
+            if (!m_indexLoaded) {
+                m_index = PolygonIndex.load(m_fc, null, m_maxIndexBytes);
+                m_indexLoaded = true;
+            }
+            if ((m_index == null) || (field == null) || (m_fc.findField(field) < 0)) {
+                return null;
+            }
+            Object[] result = m_columns.get(field);
+            if (result == null) {
+                int[] ids = m_index.getIds();
+                int[] positions = new int[ids.length];
+                long[] order = new long[ids.length];
+                for (int i = 0; i < ids.length; i += 1) {
+                    order[i] = ((long)ids[i] << 32) | i;
+                }
+                Arrays.sort(order);
+                for (int i = 0; i < ids.length; i += 1) {
+                    ids[i] = (int)(order[i] >> 32);
+                    positions[i] = (int)order[i];
+                }
+                result = new Object[ids.length];
+                QueryFilter filter = new QueryFilter();
+                filter.setSubFields(m_fc.getOIDFieldName() + "," + field);
+                IFeatureCursor cursor = m_fc.search(filter, false);
+                int fieldIndex = cursor.findField(field);
+                IFeature feature;
+                while ((feature = cursor.nextFeature()) != null) {
+                    int i = Arrays.binarySearch(ids, feature.getOID());
+                    if (i >= 0) {
+                        result[positions[i]] = feature.getValue(fieldIndex);
+                    }
+                }
+                m_columns.put(field, result);
+            }
+            return result;
+        }
     }
 }
\ No newline at end of file
@@ -1,22 +1,15 @@
 package org.ngs.fieldscope;
 
 import com.esri.arcgis.carto.IMapLayerInfo;
-import com.esri.arcgis.datasourcesraster.IPixelBlock3;
-import com.esri.arcgis.datasourcesraster.IRasterBand;
-import com.esri.arcgis.datasourcesraster.IRasterBandCollection;
 import com.esri.arcgis.datasourcesraster.IRasterProps;
 import com.esri.arcgis.datasourcesraster.IRasterPropsProxy;
-import com.esri.arcgis.datasourcesraster.IRawPixels;
-import com.esri.arcgis.datasourcesraster.IRawPixelsProxy;
 import com.esri.arcgis.datasourcesraster.Raster;
-import com.esri.arcgis.geodatabase.IPixelBlock;
-import com.esri.arcgis.geodatabase.IPnt;
 import com.esri.arcgis.geodatabase.IRaster;
-import com.esri.arcgis.geodatabase.Pnt;
 import com.esri.arcgis.geometry.Envelope;
 import com.esri.arcgis.geometry.IArea;
 import com.esri.arcgis.geometry.IEnvelope;
 import com.esri.arcgis.geometry.IPolygon;
+import com.esri.arcgis.geometry.IPointCollection;
 import com.esri.arcgis.geometry.ISpatialReference;
 import com.esri.arcgis.geometry.esriGeometryType;
 import com.esri.arcgis.interop.AutomationException;
@@ -27,30 +20,38 @@ import com.esri.arcgis.server.json.JSONObject;
 import com.esri.arcgis.system.IPropertySet;
 import com.esri.arcgis.system.ServerUtilities;
 import java.io.IOException;
-import java.lang.reflect.Array;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 @ArcGISExtension
 @ServerObjectExtProperties(displayName = "QueryRaster", 
-                           description = "Return polygon of all raster cells that satisfy given conditions")
+                           description = "Return polygon of all raster cells that satisfy given conditions",
+                           properties = { "QueryParallelism=1", "TileCacheDirectory=", "TileCacheCompression=false" })
 public class QueryRaster extends FieldScopeSOE 
 {
     private static final long serialVersionUID = -6524431909300303670L;
     
     private Map<Integer, QueryRasterLayer> m_layers;
+    private int m_parallelism = 1;
+    private ExecutorService m_workers = null;
     
     @Override
     @SuppressWarnings("deprecation")
     public void construct(IPropertySet propertySet) throws IOException, AutomationException {
         super.construct(propertySet);
+        if (propertySet.getProperty("QueryParallelism") != null) {
+            m_parallelism = Integer.parseInt(propertySet.getProperty("QueryParallelism").toString());
+        }
+        m_workers = WorkerPool.create("QueryRaster", m_parallelism);
         m_layers = new TreeMap<Integer, QueryRasterLayer>();
         for (IMapLayerInfo layer : getMapLayerInfo()) {
             try {
                 IRaster raster = new Raster(getDataSourceByID(layer.getID()));
-                m_layers.put(Integer.valueOf(layer.getID()), new QueryRasterLayer(layer, raster));
+                m_layers.put(Integer.valueOf(layer.getID()), new QueryRasterLayer(layer, raster, openTiles(raster, 0)));
             } catch (IOException e) {
                 logWarning("Layer " + layer.getName() + " is not a raster");
             }
@@ -60,6 +61,10 @@ public class QueryRaster extends FieldScopeSOE
     @Override 
     public void shutdown () throws IOException, AutomationException {
         super.shutdown();
+        if (m_workers != null) {
+            m_workers.shutdownNow();
+            m_workers = null;
+        }
         m_layers = null;
     }
     
@@ -69,8 +74,10 @@ public class QueryRaster extends FieldScopeSOE
         JSONObject layers = ServerUtilities.createResource("layers", "Queryable layers in this map service", true, false);
         JSONArray operations = new JSONArray();
         operations.put(ServerUtilities.createOperation("queryRaster", "min, max, outSR", "json", false));
+        operations.put(ServerUtilities.createOperation("zonalStats", "polygon, histogram", "json", false));
         layers.put("operations", operations);
         resources.put(layers);
+        resources.put(createStatsResource());
         result.put("resources", resources);
         return result.toString();
     }
@@ -118,43 +125,18 @@ public class QueryRaster extends FieldScopeSOE
             }
             ISpatialReference outSR = getSpatialReferenceParam(operationInput, "outSR");
 
-            IRaster raster = layer.raster;
-            IRasterBand band = ((IRasterBandCollection)raster).item(0);
-            IRawPixels pixels = new IRawPixelsProxy(band);
-            IRasterProps properties = new IRasterPropsProxy(band);
-            int width = properties.getWidth();
-            int height = properties.getHeight();
-            Object noData = properties.getNoDataValue();
-            IPnt flowDirBlockSize = new Pnt();
-            flowDirBlockSize.setCoords(width, height);
-            IPixelBlock pixelBlock = raster.createPixelBlock(flowDirBlockSize);
-            IPnt pixelOrigin = new Pnt();
-            pixelOrigin.setCoords(0, 0);
-            pixels.read(pixelOrigin, pixelBlock);
-            Object data = ((IPixelBlock3)pixelBlock).getPixelDataByRef(0);
-            boolean[][] outData = new boolean[width][height];
-            
-            
-            for (int x = 0; x < width; x += 1) {
-                for (int y = 0; y < height; y += 1) {
-                    Object value = Array.get(Array.get(data, x), y);
-                    boolean cellValue = false;
-                    if ((value != null) && (!value.equals(noData)) && (value instanceof Number)) {
-                        double numericValue = ((Number)value).doubleValue();
-                        if ((Double.isNaN(min) || (numericValue >= min)) &&
-                            (Double.isNaN(max) || (numericValue <= max))) {
-                            cellValue = true;
-                        }
-                    }
-                    outData[x][y] = cellValue;
-                }
-            }
+            TiledGrid tiles = layer.grid;
+            boolean[][] outData = ThresholdMask.compute(tiles, min, max);
+            getMetrics().add("cellsScanned", (long)tiles.getWidth() * tiles.getHeight());
 
             BoundingCurve bc = new BoundingCurve(outData);
-            IPolygon resultGeom = bc.getBoundaryAsPolygon(properties);
-            resultGeom.setSpatialReferenceByRef(properties.getSpatialReference());
+            ISpatialReference workSR = getRasterSpatialReference(layer.id, layer.raster);
+            CoordinateTransform transform = getTransform(workSR, outSR);
+            IPolygon resultGeom = getBoundaryAsPolygon(bc, tiles, 0, 0, transform, m_workers);
+            resultGeom.setSpatialReferenceByRef((transform != null) ? outSR : workSR);
+            getMetrics().add("boundaryVertices", ((IPointCollection)resultGeom).getPointCount());
             
-            if ((outSR != null) && (outSR.getFactoryCode() != resultGeom.getSpatialReference().getFactoryCode())) {
+            if ((transform == null) && (outSR != null) && (outSR.getFactoryCode() != resultGeom.getSpatialReference().getFactoryCode())) {
                 resultGeom.project(outSR);
             }
 
@@ -168,6 +150,20 @@ public class QueryRaster extends FieldScopeSOE
             result.features.add(resultFeature);
 
             operationOutput = result.toJsonObject().toString().getBytes("utf-8");
+        } else if (operationName.equalsIgnoreCase("zonalStats") && m.matches()) {
+            Integer layerId = Integer.valueOf(m.group(1).trim());
+            QueryRasterLayer layer = m_layers.get(layerId);
+            JSONObject polygon = operationInput.getJSONObject("polygon");
+            List<double[]> rings = ZonalStatistics.readRings(polygon);
+            projectParts(rings, polygon, getRasterSpatialReference(layerId.intValue(), layer.raster));
+            boolean histogram = operationInput.optBoolean("histogram", false);
+            
+            ZonalStatistics zone = new ZonalStatistics(layer.grid, layer.tiles.getPixelType());
+            zone.setPolygon(rings);
+            ZonalStatistics.Accumulator stats = zone.compute(m_workers, histogram);
+            getMetrics().add("zonalCells", stats.getCount());
+            JSONObject result = stats.toJsonObject(layer.tiles.getCellWidth() * layer.tiles.getCellHeight());
+            operationOutput = result.toString().getBytes("utf-8");
         }
         return operationOutput;
     }
@@ -178,12 +174,17 @@ public class QueryRaster extends FieldScopeSOE
         public int id;
         public IEnvelope extent;
         public IRaster raster;
+        public TiledRaster tiles;
+        // Whole-grid scans read this, which may be a memory mapped copy
+        public TiledGrid grid;
 
-        public QueryRasterLayer (IMapLayerInfo mapLayerInfo, IRaster raster) throws IOException {
+        public QueryRasterLayer (IMapLayerInfo mapLayerInfo, IRaster raster, TiledGrid grid) throws IOException {
             this.name = mapLayerInfo.getName();
             this.id = mapLayerInfo.getID();
             this.extent = mapLayerInfo.getExtent();
             this.raster = raster;
+            this.tiles = new TiledRaster(raster, 0);
+            this.grid = grid;
         }
 
         public JSONObject toJsonObject () throws IOException {
@@ -0,0 +1,184 @@
+package org.ngs.fieldscope;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+//
+// Raster values along a polyline. Each segment is clipped to the raster
+// and walked cell by cell in pixel space (Amanatides & Woo's incremental
+// traversal), so the work done depends on the number of cells crossed, and
+// tiles are read through a small cache as the line enters them. A stretch
+// of line off the raster crosses no cells and has no data.
+//
+// With a sample distance, values are taken every sampleDistance map units
+// along the line, plus one at its end. Without one, there is one value per
+// cell crossed, placed at the middle of the line's run through the cell.
+//
+public class RasterProfile
+{
+    public static final int MAX_SAMPLES = 1 << 20;
+    public static final int MAX_CELLS = 1 << 22;
+
+    private static final int MAX_CACHED_TILES = 16;
+
+    private final TiledGrid m_tiles;
+    private final TileCache m_cache;
+    private final double m_sampleDistance;
+    private double m_length;
+    private double m_nextSample;
+    private double m_lastValue;
+    private double[] m_distances;
+    private double[] m_values;
+    private int m_count;
+    private int m_cellCount;
+
+    public RasterProfile (TiledGrid tiles, double sampleDistance) {
+        m_tiles = tiles;
+        m_cache = new TileCache(tiles, MAX_CACHED_TILES);
+        m_sampleDistance = sampleDistance;
+        m_length = 0;
+        m_nextSample = 0;
+        m_lastValue = Double.NaN;
+        m_distances = new double[64];
+        m_values = new double[64];
+        m_count = 0;
+        m_cellCount = 0;
+    }
+
+    //
+    // Walk one path, given as interleaved x,y map coordinates. Distances
+    // carry on from the end of the previous path.
+    //
+    public void addPath (double[] coordinates) throws IOException {
+        for (int i = 2; i + 1 < coordinates.length; i += 2) {
+            addSegment(coordinates[i - 2], coordinates[i - 1], coordinates[i], coordinates[i + 1]);
+        }
+    }
+
+    //
+    // Add the sample at the very end of the line, if sampling by distance
+    //
+    public void finish () {
+        if ((m_sampleDistance > 0) && ((m_count == 0) || (m_distances[m_count - 1] < m_length))) {
+            add(m_length, m_lastValue);
+        }
+    }
+
+    public int size () {
+        return m_count;
+    }
+
+    public double[] getDistances () {
+        return Arrays.copyOf(m_distances, m_count);
+    }
+
+    public double[] getValues () {
+        return Arrays.copyOf(m_values, m_count);
+    }
+
+    private void addSegment (double x0, double y0, double x1, double y1) throws IOException {
+        double length = Math.sqrt((x1 - x0) * (x1 - x0) + (y1 - y0) * (y1 - y0));
+        if (length == 0) {
+            return;
+        }
+        double cx0 = m_tiles.getColumnCoordinate(x0);
+        double cy0 = m_tiles.getRowCoordinate(y0);
+        double dcx = m_tiles.getColumnCoordinate(x1) - cx0;
+        double dcy = m_tiles.getRowCoordinate(y1) - cy0;
+        // Parameter t runs from 0 to 1 along the segment; [tFirst, tLast] is
+        // the part of it inside the raster
+        double[] range = { 0, 1 };
+        if (!clip(cx0, dcx, m_tiles.getWidth(), range) || !clip(cy0, dcy, m_tiles.getHeight(), range)) {
+            emit(Double.NaN, m_length, m_length + length);
+            m_length += length;
+            return;
+        }
+        double tFirst = range[0];
+        double tLast = range[1];
+        emit(Double.NaN, m_length, m_length + tFirst * length);
+        int column = Math.max(0, Math.min(m_tiles.getWidth() - 1, (int)Math.floor(cx0 + tFirst * dcx)));
+        int row = Math.max(0, Math.min(m_tiles.getHeight() - 1, (int)Math.floor(cy0 + tFirst * dcy)));
+        int stepX = (dcx > 0) ? 1 : -1;
+        int stepY = (dcy > 0) ? 1 : -1;
+        // tMax is where the next column (or row) boundary is crossed, tDelta
+        // the distance in t between boundaries
+        double tDeltaX = (dcx != 0) ? Math.abs(1 / dcx) : Double.POSITIVE_INFINITY;
+        double tDeltaY = (dcy != 0) ? Math.abs(1 / dcy) : Double.POSITIVE_INFINITY;
+        double tMaxX = (dcx > 0) ? (column + 1 - cx0) / dcx : ((dcx < 0) ? (cx0 - column) / -dcx : Double.POSITIVE_INFINITY);
+        double tMaxY = (dcy > 0) ? (row + 1 - cy0) / dcy : ((dcy < 0) ? (cy0 - row) / -dcy : Double.POSITIVE_INFINITY);
+        double tEnter = tFirst;
+        while (true) {
+            double tExit = Math.min(tLast, Math.min(tMaxX, tMaxY));
+            if (tExit > tEnter) {
+                if (m_cellCount == MAX_CELLS) {
+                    throw new IllegalArgumentException("profile crosses more than " + MAX_CELLS + " cells");
+                }
+                m_cellCount += 1;
+                emit(m_cache.get(column, row), m_length + tEnter * length, m_length + tExit * length);
+            }
+            if (tExit >= tLast) {
+                break;
+            }
+            if (tMaxX < tMaxY) {
+                column += stepX;
+                tEnter = tMaxX;
+                tMaxX += tDeltaX;
+            } else {
+                row += stepY;
+                tEnter = tMaxY;
+                tMaxY += tDeltaY;
+            }
+        }
+        emit(Double.NaN, m_length + tLast * length, m_length + length);
+        m_length += length;
+    }
+
+    //
+    // Narrow range (a pair of t values) to where start + t * delta lies in
+    // [0, size]; false if it never does
+    //
+    private static boolean clip (double start, double delta, int size, double[] range) {
+        if (delta == 0) {
+            return (start >= 0) && (start <= size);
+        }
+        double t0 = (0 - start) / delta;
+        double t1 = (size - start) / delta;
+        range[0] = Math.max(range[0], Math.min(t0, t1));
+        range[1] = Math.min(range[1], Math.max(t0, t1));
+        return range[0] < range[1];
+    }
+
+    //
+    // The line has the given value (NaN for NoData, or off the raster) from
+    // distance start to distance end. Without a sample distance, a stretch
+    // off the raster is one NoData value, however many cells it would have
+    // crossed.
+    //
+    private void emit (double value, double start, double end) {
+        if (end <= start) {
+            return;
+        }
+        m_lastValue = value;
+        if (m_sampleDistance > 0) {
+            while (m_nextSample < end) {
+                add(m_nextSample, value);
+                m_nextSample = m_count * m_sampleDistance;
+            }
+        } else {
+            add((start + end) / 2, value);
+        }
+    }
+
+    private void add (double distance, double value) {
+        if (m_count == MAX_SAMPLES) {
+            throw new IllegalArgumentException("profile has more than " + MAX_SAMPLES + " samples");
+        }
+        if (m_count == m_distances.length) {
+            m_distances = Arrays.copyOf(m_distances, m_count * 2);
+            m_values = Arrays.copyOf(m_values, m_count * 2);
+        }
+        m_distances[m_count] = distance;
+        m_values[m_count] = value;
+        m_count += 1;
+    }
+}
@@ -0,0 +1,37 @@
+package org.ngs.fieldscope;
+
+import java.io.IOException;
+
+//
+// The cells of a grid whose values fall within a range, as a [column][row]
+// mask for BoundingCurve. The grid is read a tile at a time, so only one
+// tile of values is held alongside the mask.
+//
+public class ThresholdMask
+{
+    private ThresholdMask () {
+    }
+
+    //
+    // Mask of the cells with min <= value <= max; either bound may be NaN
+    // for no limit. NoData cells are never included.
+    //
+    public static boolean[][] compute (TiledGrid grid, double min, double max) throws IOException {
+        boolean[][] result = new boolean[grid.getWidth()][grid.getHeight()];
+        boolean hasMin = !Double.isNaN(min);
+        boolean hasMax = !Double.isNaN(max);
+        int tileCount = grid.getTileCount();
+        for (int t = 0; t < tileCount; t += 1) {
+            TiledGrid.Tile tile = grid.readTile(t);
+            for (int column = tile.originColumn; column < tile.originColumn + tile.width; column += 1) {
+                boolean[] cells = result[column];
+                for (int row = tile.originRow; row < tile.originRow + tile.height; row += 1) {
+                    double value = tile.get(column, row);
+                    // NaN fails both comparisons, so NoData stays false
+                    cells[row] = (hasMin ? (value >= min) : !Double.isNaN(value)) && (!hasMax || (value <= max));
+                }
+            }
+        }
+        return result;
+    }
+}
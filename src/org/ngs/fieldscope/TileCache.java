@@ -0,0 +1,55 @@
+package org.ngs.fieldscope;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//
+// Tiles of a TiledGrid read during one request, least recently used
+// dropped first. Callers that visit cells in tile order only ever need the
+// current tile and its neighbours again, so a small cache is enough for
+// each tile to be read once.
+//
+public class TileCache
+{
+    private final TiledGrid m_grid;
+    private final LinkedHashMap<Integer, TiledGrid.Tile> m_tiles;
+    private TiledGrid.Tile m_last;
+    private int m_lastIndex;
+
+    public TileCache (TiledGrid tiles, final int maxTiles) {
+        m_grid = tiles;
+        m_tiles = new LinkedHashMap<Integer, TiledGrid.Tile>(maxTiles * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<Integer, TiledGrid.Tile> eldest) {
+                return size() > maxTiles;
+            }
+        };
+        m_last = null;
+        m_lastIndex = -1;
+    }
+
+    //
+    // Value of a cell in raster coordinates; NaN for NoData or for a cell
+    // outside the raster
+    //
+    public double get (int column, int row) throws IOException {
+        int tileIndex = m_grid.getTileIndex(column, row);
+        if (tileIndex < 0) {
+            return Double.NaN;
+        }
+        if (tileIndex != m_lastIndex) {
+            Integer key = Integer.valueOf(tileIndex);
+            TiledGrid.Tile tile = m_tiles.get(key);
+            if (tile == null) {
+                tile = m_grid.readTile(tileIndex);
+                m_tiles.put(key, tile);
+            }
+            m_last = tile;
+            m_lastIndex = tileIndex;
+        }
+        return m_last.get(column, row);
+    }
+}
@@ -0,0 +1,183 @@
+package org.ngs.fieldscope;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+//
+// A grid of values with a map georeference, read in square tiles. This is
+// everything the grid kernels (flow tracing, point sampling, upstream
+// traversal, threshold masking) need to know about a raster, so they can
+// run on a TiledRaster inside ArcGIS Server or on an in-memory ArrayGrid
+// anywhere else. Map coordinates are converted to pixel space
+// arithmetically; only reading a tile may be expensive.
+//
+public abstract class TiledGrid
+{
+    public static final int DEFAULT_TILE_SIZE = 256;
+    private static final int FINGERPRINT_TILES = 16;
+
+    private final int m_width;
+    private final int m_height;
+    private final int m_tileSize;
+    private final int m_tilesAcross;
+    private final double m_left;
+    private final double m_top;
+    private final double m_cellWidth;
+    private final double m_cellHeight;
+
+    protected TiledGrid (int width, int height, int tileSize, double left, double top, double cellWidth, double cellHeight) {
+        m_width = width;
+        m_height = height;
+        m_tileSize = tileSize;
+        m_tilesAcross = (width + tileSize - 1) / tileSize;
+        m_left = left;
+        m_top = top;
+        m_cellWidth = cellWidth;
+        m_cellHeight = cellHeight;
+    }
+
+    public int getWidth () {
+        return m_width;
+    }
+
+    public int getHeight () {
+        return m_height;
+    }
+
+    public int getTileSize () {
+        return m_tileSize;
+    }
+
+    public int getTileCount () {
+        return m_tilesAcross * ((m_height + m_tileSize - 1) / m_tileSize);
+    }
+
+    public double getLeft () {
+        return m_left;
+    }
+
+    public double getTop () {
+        return m_top;
+    }
+
+    public double getCellWidth () {
+        return m_cellWidth;
+    }
+
+    public double getCellHeight () {
+        return m_cellHeight;
+    }
+
+    public int getColumn (double x) {
+        return (int)Math.floor(getColumnCoordinate(x));
+    }
+
+    public int getRow (double y) {
+        return (int)Math.floor(getRowCoordinate(y));
+    }
+
+    //
+    // Position of a map coordinate in pixel space, in cells from the left
+    // (or top) edge of the grid, without rounding
+    //
+    public double getColumnCoordinate (double x) {
+        return (x - m_left) / m_cellWidth;
+    }
+
+    public double getRowCoordinate (double y) {
+        return (m_top - y) / m_cellHeight;
+    }
+
+    public boolean contains (int column, int row) {
+        return (column >= 0) && (column < m_width) && (row >= 0) && (row < m_height);
+    }
+
+    //
+    // Index of the tile holding the given cell, or -1 if the cell lies
+    // outside the grid
+    //
+    public int getTileIndex (int column, int row) {
+        if (!contains(column, row)) {
+            return -1;
+        }
+        return (row / m_tileSize) * m_tilesAcross + (column / m_tileSize);
+    }
+
+    public int getTileOriginColumn (int tileIndex) {
+        return (tileIndex % m_tilesAcross) * m_tileSize;
+    }
+
+    public int getTileOriginRow (int tileIndex) {
+        return (tileIndex / m_tilesAcross) * m_tileSize;
+    }
+
+    public abstract Tile readTile (int tileIndex) throws IOException;
+
+    //
+    // Whether tiles may be read from any thread. Grids read through
+    // ArcObjects may only be used on the thread that opened them.
+    //
+    public boolean isThreadSafe () {
+        return false;
+    }
+
+    //
+    // Checksum of the grid's georeference and of the values in a handful of
+    // tiles spread across it, so a file derived from the grid isn't reused
+    // for a different grid that happens to have the same size
+    //
+    public long getFingerprint () throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(8 * m_tileSize * m_tileSize);
+        buffer.putInt(m_width).putInt(m_height).putInt(m_tileSize);
+        buffer.putDouble(m_left).putDouble(m_top).putDouble(m_cellWidth).putDouble(m_cellHeight);
+        crc.update(buffer.array(), 0, buffer.position());
+        int tileCount = getTileCount();
+        int sampled = Math.min(tileCount, FINGERPRINT_TILES);
+        for (int i = 0; i < sampled; i += 1) {
+            int tileIndex = (sampled > 1) ? (int)((long)i * (tileCount - 1) / (sampled - 1)) : 0;
+            Tile tile = readTile(tileIndex);
+            buffer.clear();
+            for (int row = tile.originRow; row < tile.originRow + tile.height; row += 1) {
+                for (int column = tile.originColumn; column < tile.originColumn + tile.width; column += 1) {
+                    buffer.putDouble(tile.get(column, row));
+                }
+            }
+            crc.update(buffer.array(), 0, buffer.position());
+        }
+        return crc.getValue();
+    }
+
+    //
+    // A cell value as the object callers should see; NaN is null. Grids
+    // with a native pixel type box to that type.
+    //
+    public Object box (double value) {
+        return Double.isNaN(value) ? null : Double.valueOf(value);
+    }
+
+    public static final class Tile
+    {
+        public final int originColumn;
+        public final int originRow;
+        public final int width;
+        public final int height;
+        private final double[] m_values;
+
+        public Tile (int originColumn, int originRow, int width, int height, double[] values) {
+            this.originColumn = originColumn;
+            this.originRow = originRow;
+            this.width = width;
+            this.height = height;
+            m_values = values;
+        }
+
+        //
+        // Value of a cell given in grid (not tile) coordinates; NaN for NoData
+        //
+        public double get (int column, int row) {
+            return m_values[(row - originRow) * width + (column - originColumn)];
+        }
+    }
+}
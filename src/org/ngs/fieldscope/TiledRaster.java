@@ -0,0 +1,203 @@
+package org.ngs.fieldscope;
+
+import com.esri.arcgis.datasourcesraster.IPixelBlock3;
+import com.esri.arcgis.datasourcesraster.IRasterBand;
+import com.esri.arcgis.datasourcesraster.IRasterBandCollection;
+import com.esri.arcgis.datasourcesraster.IRasterProps;
+import com.esri.arcgis.datasourcesraster.IRasterPropsProxy;
+import com.esri.arcgis.datasourcesraster.IRawPixels;
+import com.esri.arcgis.datasourcesraster.IRawPixelsProxy;
+import com.esri.arcgis.geodatabase.IPixelBlock;
+import com.esri.arcgis.geodatabase.IPnt;
+import com.esri.arcgis.geodatabase.IRaster;
+import com.esri.arcgis.geodatabase.Pnt;
+import com.esri.arcgis.geodatabase.rstPixelType;
+import java.io.IOException;
+import java.lang.reflect.Array;
+
+//
+// One band of a raster, read in square tiles. Map coordinates are converted
+// to pixel space arithmetically from the raster extent and cell size, so
+// locating a cell costs no COM calls; only reading a tile does.
+//
+public class TiledRaster extends TiledGrid
+{
+    private final IRaster m_raster;
+    private final IRawPixels m_pixels;
+    private final int m_pixelType;
+    private final double m_noData;
+    private final boolean m_hasNoData;
+
+    public TiledRaster (IRaster raster, int band) throws IOException {
+        this(raster, band, DEFAULT_TILE_SIZE);
+    }
+
+    public TiledRaster (IRaster raster, int band, int tileSize) throws IOException {
+        this(raster, band, ((IRasterBandCollection)raster).item(band), tileSize);
+    }
+
+    private TiledRaster (IRaster raster, int band, IRasterBand rasterBand, int tileSize) throws IOException {
+        this(raster, band, rasterBand, new IRasterPropsProxy(rasterBand), tileSize);
+    }
+
+    private TiledRaster (IRaster raster, int band, IRasterBand rasterBand, IRasterProps props, int tileSize) throws IOException {
+        super(props.getWidth(), props.getHeight(), tileSize, props.getExtent().getXMin(), props.getExtent().getYMax(),
+              props.meanCellSize().getX(), props.meanCellSize().getY());
+        m_raster = raster;
+        m_pixels = new IRawPixelsProxy(rasterBand);
+        m_pixelType = props.getPixelType();
+        Object noData = props.getNoDataValue();
+        if ((noData != null) && noData.getClass().isArray()) {
+            noData = (Array.getLength(noData) > band) ? Array.get(noData, band) : null;
+        }
+        m_hasNoData = noData instanceof Number;
+        m_noData = m_hasNoData ? ((Number)noData).doubleValue() : Double.NaN;
+    }
+
+    public int getPixelType () {
+        return m_pixelType;
+    }
+
+    //
+    // The raster's NoData value for this band, or NaN if it has none
+    //
+    public double getNoDataValue () {
+        return m_noData;
+    }
+
+    //
+    // The MappedGrid cell type that holds this band's values exactly
+    //
+    public int getStorageType () {
+        switch (m_pixelType) {
+            case rstPixelType.PT_U1:
+            case rstPixelType.PT_U2:
+            case rstPixelType.PT_U4:
+            case rstPixelType.PT_UCHAR:
+                return MappedGrid.TYPE_UINT8;
+            case rstPixelType.PT_CHAR:
+                return MappedGrid.TYPE_INT8;
+            case rstPixelType.PT_USHORT:
+                return MappedGrid.TYPE_UINT16;
+            case rstPixelType.PT_SHORT:
+                return MappedGrid.TYPE_INT16;
+            case rstPixelType.PT_ULONG:
+                return MappedGrid.TYPE_UINT32;
+            case rstPixelType.PT_LONG:
+                return MappedGrid.TYPE_INT32;
+            case rstPixelType.PT_DOUBLE:
+                return MappedGrid.TYPE_FLOAT64;
+            default:
+                return MappedGrid.TYPE_FLOAT32;
+        }
+    }
+
+    public Tile readTile (int tileIndex) throws IOException {
+        int originColumn = getTileOriginColumn(tileIndex);
+        int originRow = getTileOriginRow(tileIndex);
+        int width = Math.min(getTileSize(), getWidth() - originColumn);
+        int height = Math.min(getTileSize(), getHeight() - originRow);
+        IPnt blockSize = new Pnt();
+        blockSize.setCoords(width, height);
+        IPixelBlock pixelBlock = m_raster.createPixelBlock(blockSize);
+        IPnt origin = new Pnt();
+        origin.setCoords(originColumn, originRow);
+        m_pixels.read(origin, pixelBlock);
+        Metrics.addPixelBlockRead((long)width * height * getBytesPerPixel(m_pixelType));
+        Object data = ((IPixelBlock3)pixelBlock).getPixelDataByRef(0);
+        return new Tile(originColumn, originRow, width, height, decode(data, width, height));
+    }
+
+    public static int getBytesPerPixel (int pixelType) {
+        switch (pixelType) {
+            case rstPixelType.PT_U1:
+            case rstPixelType.PT_U2:
+            case rstPixelType.PT_U4:
+            case rstPixelType.PT_UCHAR:
+            case rstPixelType.PT_CHAR:
+                return 1;
+            case rstPixelType.PT_USHORT:
+            case rstPixelType.PT_SHORT:
+                return 2;
+            case rstPixelType.PT_DOUBLE:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+    //
+    // Box a cell value the way IRaster2.getPixelValue would, so callers see
+    // the same number types whichever way the value was read.
+    //
+    @Override
+    public Object box (double value) {
+        if (Double.isNaN(value)) {
+            return null;
+        }
+        switch (m_pixelType) {
+            case rstPixelType.PT_FLOAT:
+                return Float.valueOf((float)value);
+            case rstPixelType.PT_DOUBLE:
+                return Double.valueOf(value);
+            case rstPixelType.PT_ULONG:
+                return Long.valueOf((long)value);
+            default:
+                return Integer.valueOf((int)value);
+        }
+    }
+
+    //
+    // Copy a pixel block, which arrives as a [column][row] Java array of
+    // whatever primitive type the raster uses, into a row-major double array
+    // with NaN marking NoData.
+    //
+    private double[] decode (Object data, int width, int height) {
+        double[] result = new double[width * height];
+        boolean unsigned = (m_pixelType == rstPixelType.PT_UCHAR) ||
+                           (m_pixelType == rstPixelType.PT_USHORT) ||
+                           (m_pixelType == rstPixelType.PT_ULONG);
+        for (int x = 0; x < width; x += 1) {
+            Object column = Array.get(data, x);
+            if (column instanceof byte[]) {
+                byte[] values = (byte[])column;
+                for (int y = 0; y < height; y += 1) {
+                    result[y * width + x] = unsigned ? (values[y] & 0xFF) : values[y];
+                }
+            } else if (column instanceof short[]) {
+                short[] values = (short[])column;
+                for (int y = 0; y < height; y += 1) {
+                    result[y * width + x] = unsigned ? (values[y] & 0xFFFF) : values[y];
+                }
+            } else if (column instanceof int[]) {
+                int[] values = (int[])column;
+                for (int y = 0; y < height; y += 1) {
+                    result[y * width + x] = unsigned ? (values[y] & 0xFFFFFFFFL) : values[y];
+                }
+            } else if (column instanceof float[]) {
+                float[] values = (float[])column;
+                for (int y = 0; y < height; y += 1) {
+                    result[y * width + x] = values[y];
+                }
+            } else if (column instanceof double[]) {
+                double[] values = (double[])column;
+                for (int y = 0; y < height; y += 1) {
+                    result[y * width + x] = values[y];
+                }
+            } else {
+                for (int y = 0; y < height; y += 1) {
+                    Object value = Array.get(column, y);
+                    result[y * width + x] = (value instanceof Number) ? ((Number)value).doubleValue() : Double.NaN;
+                }
+            }
+        }
+        if (m_hasNoData) {
+            for (int i = 0; i < result.length; i += 1) {
+                if (result[i] == m_noData) {
+                    result[i] = Double.NaN;
+                }
+            }
+        }
+        return result;
+    }
+}
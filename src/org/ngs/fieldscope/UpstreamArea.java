@@ -1,22 +1,16 @@
 package org.ngs.fieldscope;
 
-import com.esri.arcgis.datasourcesraster.IPixelBlock3;
 import com.esri.arcgis.datasourcesraster.IRaster2;
-import com.esri.arcgis.datasourcesraster.IRasterBand;
 import com.esri.arcgis.datasourcesraster.IRasterBandCollection;
 import com.esri.arcgis.datasourcesraster.IRasterProps;
 import com.esri.arcgis.datasourcesraster.IRasterPropsProxy;
-import com.esri.arcgis.datasourcesraster.IRawPixels;
-import com.esri.arcgis.datasourcesraster.IRawPixelsProxy;
 import com.esri.arcgis.datasourcesraster.Raster;
 import com.esri.arcgis.geodatabase.FeatureClass;
 import com.esri.arcgis.geodatabase.IFeatureClass;
-import com.esri.arcgis.geodatabase.IPixelBlock;
-import com.esri.arcgis.geodatabase.IPnt;
 import com.esri.arcgis.geodatabase.IRaster;
-import com.esri.arcgis.geodatabase.Pnt;
 import com.esri.arcgis.geometry.IArea;
 import com.esri.arcgis.geometry.IPoint;
+import com.esri.arcgis.geometry.IPointCollection;
 import com.esri.arcgis.geometry.IPolygon;
 import com.esri.arcgis.geometry.IPolyline;
 import com.esri.arcgis.geometry.ISpatialReference;
@@ -31,17 +25,14 @@ import com.esri.arcgis.server.json.JSONObject;
 import com.esri.arcgis.system.IPropertySet;
 import com.esri.arcgis.system.ServerUtilities;
 import java.io.IOException;
-import java.lang.reflect.Array;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
 
 @ArcGISExtension
 @ServerObjectExtProperties(displayName = "UpstreamArea", 
                            description = "Compute upstream area from watershed outlet", 
-                           properties = { "HighResolutionThreshold=20" })
+                           properties = { "HighResolutionThreshold=20", "CatalogCacheMaxRasters=16", "CatalogCacheMaxMegabytes=1024",
+                                          "CatalogTileCacheMaxMegabytes=0", "HighResolutionIndexMaxMegabytes=64", "TileCacheDirectory=",
+                                          "TileCacheCompression=false" })
 public class UpstreamArea extends FieldScopeSOE 
 {
     private static final long serialVersionUID = 134786121336177856L;
@@ -55,13 +46,24 @@ public class UpstreamArea extends FieldScopeSOE
     final int FLOW_ACCUM_BAND = 0;
     final int FLOW_DIR_BAND = 1;
 
+    //
+    // Tiles of a flow raster kept while tracing one upstream area
+    //
+    private static final int UPSTREAM_CACHED_TILES = 256;
+
     private IRaster m_lowResFlow = null;
+    private TiledGrid m_lowResFlowDirection = null;
     private IFeatureClass m_highResIndex = null;
     private IFeatureClass m_highResCatalog = null;
     private IRaster m_flowArea = null;
     private IFeatureClass m_flowLine = null;
     private double m_tolerance = 0.0;
     private int m_highResFlowAccumThreshold = 20;
+    private int m_catalogCacheMaxRasters = 16;
+    private long m_catalogCacheMaxBytes = 1024L << 20;
+    private long m_catalogTileCacheMaxBytes = 0;
+    private long m_highResolutionIndexMaxBytes = 64L << 20;
+    private PolygonValueIndex m_highResValues = null;
     
 	@Override
 	@SuppressWarnings("deprecation")
@@ -70,14 +72,35 @@ public class UpstreamArea extends FieldScopeSOE
 	    if (propertySet.getProperty("HighResolutionThreshold") != null) {
 	        m_highResFlowAccumThreshold = Integer.parseInt(propertySet.getProperty("HighResolutionThreshold").toString());
         }
+        if (propertySet.getProperty("CatalogCacheMaxRasters") != null) {
+            m_catalogCacheMaxRasters = Integer.parseInt(propertySet.getProperty("CatalogCacheMaxRasters").toString());
+        }
+        if (propertySet.getProperty("CatalogCacheMaxMegabytes") != null) {
+            m_catalogCacheMaxBytes = Long.parseLong(propertySet.getProperty("CatalogCacheMaxMegabytes").toString()) << 20;
+        }
+        if (propertySet.getProperty("CatalogTileCacheMaxMegabytes") != null) {
+            m_catalogTileCacheMaxBytes = Long.parseLong(propertySet.getProperty("CatalogTileCacheMaxMegabytes").toString()) << 20;
+        }
+        if (propertySet.getProperty("HighResolutionIndexMaxMegabytes") != null) {
+            m_highResolutionIndexMaxBytes = Long.parseLong(propertySet.getProperty("HighResolutionIndexMaxMegabytes").toString()) << 20;
+        }
+        CatalogRasters.configure(m_catalogCacheMaxRasters, m_catalogCacheMaxBytes, m_catalogTileCacheMaxBytes);
 	    // Raster(Object) is deprecated, but no alternative currently exists
 	    m_lowResFlow = new Raster(getDataSourceByID(0));
         if (m_lowResFlow == null) {
             logError("missing or invalid data layer: low resolution flow");
+        } else {
+            m_lowResFlowDirection = openTiles(m_lowResFlow, FLOW_DIR_BAND);
         }
         m_highResIndex = new FeatureClass(getDataSourceByID(1));
         if (m_highResIndex == null) {
             logError("missing or invalid data layer: high resolution flow index");
+        } else if (m_lowResFlow != null) {
+            m_highResValues = PolygonValueIndex.load(m_highResIndex, "VALUE", new IRasterPropsProxy(m_lowResFlow).getSpatialReference(),
+                                                     m_highResolutionIndexMaxBytes);
+            if (m_highResValues == null) {
+                logWarning("high resolution flow index is too large to hold in memory");
+            }
         }
         m_highResCatalog = new FeatureClass(getDataSourceByID(2));
         if (m_highResCatalog == null) {
@@ -97,7 +120,9 @@ public class UpstreamArea extends FieldScopeSOE
     public void shutdown() throws IOException, AutomationException {
         super.shutdown();
         m_lowResFlow = null;
+        m_lowResFlowDirection = null;
         m_highResIndex = null;
+        m_highResValues = null;
         m_highResCatalog = null;
         m_flowArea = null;
         m_flowLine = null;
@@ -108,6 +133,9 @@ public class UpstreamArea extends FieldScopeSOE
         JSONArray operations = new JSONArray();
         operations.put(ServerUtilities.createOperation("upstreamArea", "outlet, tolerance, outSR", "json", false));
         result.put("operations", operations);
+        JSONArray resources = new JSONArray();
+        resources.put(createStatsResource());
+        result.put("resources", resources);
         return result.toString();
     }
 	
@@ -133,7 +161,7 @@ public class UpstreamArea extends FieldScopeSOE
             m_tolerance = operationInput.optDouble("tolerance", 0.0);
             
             ISpatialReference outSR = getSpatialReferenceParam(operationInput, "outSR");
-            ISpatialReference workSR = new IRasterPropsProxy(m_lowResFlow).getSpatialReference();
+            ISpatialReference workSR = getRasterSpatialReference(0, m_lowResFlow);
             if ((point.getSpatialReference() != null) && (point.getSpatialReference().getFactoryCode() != workSR.getFactoryCode())) {
                 point.project(workSR);
             }
@@ -141,15 +169,16 @@ public class UpstreamArea extends FieldScopeSOE
             IRaster flowRaster = null;
 
             // First, open the high resolution dataset, if we can find one
-            Object hiResDS = Util.findValue(m_highResIndex, "VALUE", point);
+            Object hiResDS = (m_highResValues != null) ? m_highResValues.find(point.getX(), point.getY())
+                                                       : Util.findValue(m_highResIndex, "VALUE", point);
             if (hiResDS != null) {
-                flowRaster = Util.findRaster(m_highResCatalog, hiResDS.toString());
+                flowRaster = CatalogRasters.get(m_highResCatalog, hiResDS.toString());
             }
 
             // Next snap the pour point either to a flow line (if we're in a blue
             // area on the map), or to the cell with the highest flow accumulation
             // (if a high resolution dataset is available).
-            snapPourPoint(point, flowRaster);
+            snapPourPoint(point, flowRaster, (hiResDS != null) ? hiResDS.toString() : null);
 
             // Next, check the pour point for its low-resolution flow accumulation, to
             // see if we need to use the low-resolution flow direction dataset instead
@@ -160,12 +189,17 @@ public class UpstreamArea extends FieldScopeSOE
             }
 
             // Finally, compute the upstream area
-            boolean[][] data = computeUpstreamArea(point, flowRaster);
-            BoundingCurve bc = new BoundingCurve(data);
-            IPolygon resultGeom = bc.getBoundaryAsPolygon(new IRasterPropsProxy(flowRaster));
-            resultGeom.setSpatialReferenceByRef(workSR);
+            TiledGrid flowDirection = (flowRaster == m_lowResFlow) ? m_lowResFlowDirection : CatalogRasters.getTiles(m_highResCatalog, hiResDS.toString(), FLOW_DIR_BAND);
+            UpstreamTracer.Mask upstream = UpstreamTracer.trace(flowDirection, flowDirection.getColumn(point.getX()),
+                                                                flowDirection.getRow(point.getY()), UPSTREAM_CACHED_TILES);
+            getMetrics().add("cellsVisited", upstream.cellCount);
+            BoundingCurve bc = new BoundingCurve(upstream.cells);
+            CoordinateTransform transform = getTransform(workSR, outSR);
+            IPolygon resultGeom = getBoundaryAsPolygon(bc, flowDirection, upstream.originColumn, upstream.originRow, transform, null);
+            resultGeom.setSpatialReferenceByRef((transform != null) ? outSR : workSR);
+            getMetrics().add("boundaryVertices", ((IPointCollection)resultGeom).getPointCount());
 
-            if ((outSR != null) && (outSR.getFactoryCode() != resultGeom.getSpatialReference().getFactoryCode())) {
+            if ((transform == null) && (outSR != null) && (outSR.getFactoryCode() != resultGeom.getSpatialReference().getFactoryCode())) {
                 resultGeom.project(outSR);
             }
 
@@ -183,12 +217,12 @@ public class UpstreamArea extends FieldScopeSOE
 		return operationOutput;
 	}
 	
-    private void snapPourPoint (IPoint point, IRaster flowRaster) throws IOException {
+    private void snapPourPoint (IPoint point, IRaster flowRaster, String flowRasterName) throws IOException {
         // If the start point lies in a flow area, snap it to the nearest flow line
         if (isStartPointInFlowArea(point)) {
             snapToFlowLines(point);
         } else if (flowRaster != null) {
-            snapToMaxFlowAccum(point, flowRaster);
+            snapToMaxFlowAccum(point, flowRaster, flowRasterName);
         }
     }
     
@@ -215,29 +249,26 @@ public class UpstreamArea extends FieldScopeSOE
         point.setY(outPoint.getY());
     }
 
-    private void snapToMaxFlowAccum (IPoint point, IRaster flowRaster) throws IOException {
+    //
+    // Move the point to the cell with the highest flow accumulation within
+    // m_tolerance of it, reading only the tiles under that window through
+    // the catalog's tile pool
+    //
+    private void snapToMaxFlowAccum (IPoint point, IRaster flowRaster, String flowRasterName) throws IOException {
         IRaster2 flowRaster2 = (IRaster2)flowRaster;
         IntPoint minCell = findPixel(flowRaster2, point.getX() - m_tolerance, point.getY() + m_tolerance);
         IntPoint maxCell = findPixel(flowRaster2, point.getX() + m_tolerance, point.getY() - m_tolerance);
         if ((minCell.x != maxCell.x) || (minCell.y != maxCell.y)) {
-            IRasterBand flowAccumBand = ((IRasterBandCollection)flowRaster).item(FLOW_ACCUM_BAND);
-            IRawPixels flowAccumPixels = new IRawPixelsProxy(flowAccumBand);
-            IRasterProps flowAccumProperties = new IRasterPropsProxy(flowAccumBand);
-            IPnt blockSize = new Pnt();
-            blockSize.setCoords(flowAccumProperties.getWidth(), flowAccumProperties.getHeight());
-            IPixelBlock pixelBlock = flowRaster.createPixelBlock(blockSize);
-            IPnt pixelOrigin = new Pnt();
-            pixelOrigin.setCoords(0, 0);
-            flowAccumPixels.read(pixelOrigin, pixelBlock);
-            Object flowAccum = (Object)((IPixelBlock3)pixelBlock).getPixelDataByRef(0);
+            TiledRaster flowAccumTiles = CatalogRasters.getTiles(m_highResCatalog, flowRasterName, FLOW_ACCUM_BAND);
+            TileCache flowAccum = new TileCache(flowAccumTiles, UPSTREAM_CACHED_TILES);
             int maxAccum = 0;
             int maxCol = 0;
             int maxRow = 0;
             for (int col = minCell.x; col <= maxCell.x; col += 1) {
                 for (int row = minCell.y; row <= maxCell.y; row += 1) {
-                    Number value = (Number)Array.get(Array.get(flowAccum, col), row);
-                    if ((value != null) && (value.intValue() > maxAccum)) {
-                        maxAccum = value.intValue();
+                    double value = flowAccum.get(col, row);
+                    if (!Double.isNaN(value) && ((int)value > maxAccum)) {
+                        maxAccum = (int)value;
                         maxCol = col;
                         maxRow = row;
                     }
@@ -249,79 +280,4 @@ public class UpstreamArea extends FieldScopeSOE
             point.setY(maxY[0]);
         }
     }
-
-    private boolean[][] computeUpstreamArea (IPoint point, IRaster flowRaster) throws IOException {
-        IRasterBand flowDirectionBand = ((IRasterBandCollection)flowRaster).item(FLOW_DIR_BAND);
-        IRawPixels flowDirectionPixels = new IRawPixelsProxy(flowDirectionBand);
-        IRasterProps flowDirProperties = new IRasterPropsProxy(flowDirectionBand);
-
-        IPnt flowDirBlockSize = new Pnt();
-        flowDirBlockSize.setCoords(flowDirProperties.getWidth(), flowDirProperties.getHeight());
-        IPixelBlock pixelBlock = flowRaster.createPixelBlock(flowDirBlockSize);
-        IPnt pixelOrigin = new Pnt();
-        pixelOrigin.setCoords(0, 0);
-        flowDirectionPixels.read(pixelOrigin, pixelBlock);
-        Object flowDir = ((IPixelBlock3)pixelBlock).getPixelDataByRef(0);
-
-        boolean[][] outData = new boolean[flowDirProperties.getWidth()][flowDirProperties.getHeight()];
-        PointQueue queue = new PointQueue();
-        queue.visit(findPixel((IRaster2)flowRaster, point.getX(), point.getY()));
-
-        // Compute upstream area
-        while (!queue.isEmpty()) {
-            IntPoint pt = queue.dequeue();
-            outData[pt.x][pt.x] = true;
-            // right
-            testPoint(flowDir, new IntPoint(pt.x + 1, pt.y), 16, queue);
-            // lower right
-            testPoint(flowDir, new IntPoint(pt.x + 1, pt.y + 1), 32, queue);
-            // down
-            testPoint(flowDir, new IntPoint(pt.x, pt.y + 1), 64, queue);
-            // lower left
-            testPoint(flowDir, new IntPoint(pt.x - 1, pt.y + 1), 128, queue);
-            // left
-            testPoint(flowDir, new IntPoint(pt.x - 1, pt.y), 1, queue);
-            // upper left
-            testPoint(flowDir, new IntPoint(pt.x - 1, pt.y - 1), 2, queue);
-            // up
-            testPoint(flowDir, new IntPoint(pt.x, pt.y - 1), 4, queue);
-            // upper right
-            testPoint(flowDir, new IntPoint(pt.x + 1, pt.y - 1), 8, queue);
-        }
-        return outData;
-    }
-
-    private void testPoint (Object flowDir, IntPoint pt, int inflowDirection, PointQueue queue) {
-        if ((!queue.visited(pt)) &&
-            (pt.x >= 0) && (pt.x < Array.getLength(flowDir)) &&
-            (pt.y >= 0) && (pt.y < Array.getLength(Array.get(flowDir, pt.x)))) {
-            Number value = (Number)Array.get(Array.get(flowDir, pt.x), pt.y);
-            if ((value != null) && (value.intValue() == inflowDirection)) {
-                queue.visit(pt);
-            }
-        }
-    }
-    
-    static class PointQueue
-    {
-        private Queue<IntPoint> m_Queue = new LinkedList<IntPoint>();
-        private Set<IntPoint> m_Visited = new HashSet<IntPoint>();
-
-        public boolean isEmpty () {
-            return m_Queue.size() == 0;
-        }
-
-        public IntPoint dequeue () {
-            return m_Queue.remove();
-        }
-
-        public void visit (IntPoint pt) {
-            m_Queue.offer(pt);
-            m_Visited.add(pt);
-        }
-
-        public boolean visited (IntPoint pt) {
-            return m_Visited.contains(pt);
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+package org.ngs.fieldscope;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+//
+// The cells draining to an outlet through a D8 flow-direction grid, found
+// breadth first from the outlet: a neighbour is upstream if its direction
+// points back at the cell being visited. Cells are kept as indices in one
+// growable array that is both the queue and the result, and tiles are read
+// only as the search reaches them, so the work and memory follow the size
+// of the watershed rather than of the grid.
+//
+public class UpstreamTracer
+{
+    private static final int[] CODES = { 1, 2, 4, 8, 16, 32, 64, 128 };
+
+    private UpstreamTracer () {
+    }
+
+    //
+    // The upstream cells as a [column][row] mask over their bounding box,
+    // whose top left cell is (originColumn, originRow) in the grid
+    //
+    public static final class Mask
+    {
+        public final int originColumn;
+        public final int originRow;
+        public final boolean[][] cells;
+        public final int cellCount;
+
+        private Mask (int originColumn, int originRow, boolean[][] cells, int cellCount) {
+            this.originColumn = originColumn;
+            this.originRow = originRow;
+            this.cells = cells;
+            this.cellCount = cellCount;
+        }
+    }
+
+    //
+    // Find every cell that drains to (column, row), which is included
+    // whatever its own direction
+    //
+    public static Mask trace (TiledGrid directions, int column, int row, int maxCachedTiles) throws IOException {
+        if (!directions.contains(column, row)) {
+            throw new IllegalArgumentException("outlet is outside the flow direction grid");
+        }
+        int width = directions.getWidth();
+        if ((long)width * directions.getHeight() >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("grid is too large to trace upstream");
+        }
+        TileCache cache = new TileCache(directions, maxCachedTiles);
+        BitSet visited = new BitSet();
+        int[] cells = new int[1024];
+        int count = 0;
+        int start = row * width + column;
+        cells[count++] = start;
+        visited.set(start);
+        int minColumn = column;
+        int maxColumn = column;
+        int minRow = row;
+        int maxRow = row;
+        for (int head = 0; head < count; head += 1) {
+            int cell = cells[head];
+            int c = cell % width;
+            int r = cell / width;
+            minColumn = Math.min(minColumn, c);
+            maxColumn = Math.max(maxColumn, c);
+            minRow = Math.min(minRow, r);
+            maxRow = Math.max(maxRow, r);
+            for (int code : CODES) {
+                // The neighbour that would flow into this cell by going code
+                int nc = c - FlowTracer.getColumnOffset(code);
+                int nr = r - FlowTracer.getRowOffset(code);
+                if (!directions.contains(nc, nr)) {
+                    continue;
+                }
+                int neighbour = nr * width + nc;
+                if (!visited.get(neighbour) && (FlowTracer.toDirection(cache.get(nc, nr)) == code)) {
+                    visited.set(neighbour);
+                    if (count == cells.length) {
+                        cells = Arrays.copyOf(cells, count * 2);
+                    }
+                    cells[count++] = neighbour;
+                }
+            }
+        }
+        boolean[][] mask = new boolean[maxColumn - minColumn + 1][maxRow - minRow + 1];
+        for (int i = 0; i < count; i += 1) {
+            mask[cells[i] % width - minColumn][cells[i] / width - minRow] = true;
+        }
+        return new Mask(minColumn, minRow, mask, count);
+    }
+}
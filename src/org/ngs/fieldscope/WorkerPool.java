@@ -0,0 +1,97 @@
+package org.ngs.fieldscope;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//
+// Worker threads for services that split large requests into tasks.
+// ArcObjects handles belong to the thread that opened them, so workers are
+// only ever handed plain Java data: coordinates, decoded tiles, in-memory
+// indexes and grids whose isThreadSafe is true. Anything read through COM
+// stays on the request thread. Parallelism is opt-in: with a parallelism of
+// one or less there is no pool, and tasks run in turn on the caller's thread.
+//
+public final class WorkerPool
+{
+    private WorkerPool () {
+    }
+
+    //
+    // A pool of parallelism daemon threads named after the service, or null
+    // if parallelism is one or less
+    //
+    public static ExecutorService create (final String name, int parallelism) {
+        if (parallelism <= 1) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger m_count = new AtomicInteger();
+            public Thread newThread (Runnable r) {
+                Thread result = new Thread(r, name + "-worker-" + m_count.incrementAndGet());
+                result.setDaemon(true);
+                return result;
+            }
+        });
+    }
+
+    //
+    // Number of tasks the workers run at once: one if there are none
+    //
+    public static int getParallelism (ExecutorService workers) {
+        if (workers == null) {
+            return 1;
+        } else if (workers instanceof ThreadPoolExecutor) {
+            return Math.max(1, ((ThreadPoolExecutor)workers).getMaximumPoolSize());
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    //
+    // Run the tasks on the workers, or one after another on this thread if
+    // there are none, and return their results in task order. A task's
+    // IOException or RuntimeException is rethrown as it is; anything else
+    // as an IOException.
+    //
+    public static <T> List<T> invokeAll (ExecutorService workers, List<Callable<T>> tasks) throws IOException {
+        List<T> result = new ArrayList<T>(tasks.size());
+        if ((workers == null) || (tasks.size() < 2)) {
+            for (Callable<T> task : tasks) {
+                try {
+                    result.add(task.call());
+                } catch (IOException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e.toString());
+                }
+            }
+            return result;
+        }
+        try {
+            for (Future<T> partial : workers.invokeAll(tasks)) {
+                result.add(partial.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for workers");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IOException(e.getCause().toString());
+        }
+        return result;
+    }
+}
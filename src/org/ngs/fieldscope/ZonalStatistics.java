@@ -0,0 +1,438 @@
+package org.ngs.fieldscope;
+
+import com.esri.arcgis.geodatabase.rstPixelType;
+import com.esri.arcgis.server.json.JSONArray;
+import com.esri.arcgis.server.json.JSONObject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//
+// Statistics of one raster band inside a polygon. The polygon is scan
+// converted into row spans of the cells whose centres it contains (even-odd
+// rule across all its rings), so memory grows with the polygon's outline
+// rather than with the number of cells it covers. The spans are cut at tile
+// boundaries and grouped by tile, and each tile is read once and summed,
+// on workers if the grid may be read from any thread.
+//
+public class ZonalStatistics
+{
+    public static final int MAX_HISTOGRAM_VALUES = 65536;
+
+    private final TiledGrid m_tiles;
+    private final int m_pixelType;
+    private int[] m_spans;
+    private int m_spanCount;
+    private long m_cellCount;
+
+    //
+    // Statistics of a grid whose cells are of the given rstPixelType
+    //
+    public ZonalStatistics (TiledGrid tiles, int pixelType) {
+        m_tiles = tiles;
+        m_pixelType = pixelType;
+        m_spans = new int[3 * 64];
+        m_spanCount = 0;
+        m_cellCount = 0;
+    }
+
+    //
+    // Rings of an Esri JSON polygon, each as interleaved x,y coordinates
+    //
+    public static List<double[]> readRings (JSONObject polygon) {
+        JSONArray ringsJson = polygon.getJSONArray("rings");
+        List<double[]> result = new ArrayList<double[]>(ringsJson.length());
+        for (int i = 0; i < ringsJson.length(); i += 1) {
+            JSONArray ringJson = ringsJson.getJSONArray(i);
+            double[] ring = new double[ringJson.length() * 2];
+            for (int j = 0; j < ringJson.length(); j += 1) {
+                JSONArray vertex = ringJson.getJSONArray(j);
+                ring[j * 2] = vertex.getDouble(0);
+                ring[j * 2 + 1] = vertex.getDouble(1);
+            }
+            result.add(ring);
+        }
+        return result;
+    }
+
+    //
+    // Number of cells, NoData or not, whose centres fall in the polygon
+    //
+    public long getCellCount () {
+        return m_cellCount;
+    }
+
+    //
+    // Scan convert the polygon, given as rings of map coordinates, keeping
+    // an active edge list sorted by the first row each edge crosses
+    //
+    public void setPolygon (List<double[]> rings) {
+        int edgeCount = 0;
+        for (double[] ring : rings) {
+            edgeCount += ring.length / 2;
+        }
+        double[] edgeX = new double[edgeCount];
+        double[] edgeY = new double[edgeCount];
+        double[] edgeSlope = new double[edgeCount];
+        int[] edgeEndRow = new int[edgeCount];
+        long[] order = new long[edgeCount];
+        int edges = 0;
+        for (double[] ring : rings) {
+            int vertices = ring.length / 2;
+            for (int v = 0; v < vertices; v += 1) {
+                int w = (v + 1) % vertices;
+                double x0 = m_tiles.getColumnCoordinate(ring[v * 2]);
+                double y0 = m_tiles.getRowCoordinate(ring[v * 2 + 1]);
+                double x1 = m_tiles.getColumnCoordinate(ring[w * 2]);
+                double y1 = m_tiles.getRowCoordinate(ring[w * 2 + 1]);
+                if (y0 == y1) {
+                    continue;
+                }
+                if (y0 > y1) {
+                    double t = x0; x0 = x1; x1 = t;
+                    t = y0; y0 = y1; y1 = t;
+                }
+                // Rows whose centre line (row + 0.5) lies in [y0, y1)
+                int firstRow = Math.max(0, (int)Math.ceil(y0 - 0.5));
+                int endRow = Math.min(m_tiles.getHeight(), (int)Math.ceil(y1 - 0.5));
+                if (firstRow >= endRow) {
+                    continue;
+                }
+                edgeX[edges] = x0;
+                edgeY[edges] = y0;
+                edgeSlope[edges] = (x1 - x0) / (y1 - y0);
+                edgeEndRow[edges] = endRow;
+                order[edges] = ((long)firstRow << 32) | edges;
+                edges += 1;
+            }
+        }
+        Arrays.sort(order, 0, edges);
+        int[] active = new int[edges];
+        int activeCount = 0;
+        double[] crossings = new double[edges];
+        int next = 0;
+        int row = (edges > 0) ? (int)(order[0] >>> 32) : 0;
+        while ((next < edges) || (activeCount > 0)) {
+            if (activeCount == 0) {
+                row = Math.max(row, (int)(order[next] >>> 32));
+            }
+            while ((next < edges) && ((int)(order[next] >>> 32) <= row)) {
+                active[activeCount++] = (int)order[next];
+                next += 1;
+            }
+            int kept = 0;
+            for (int i = 0; i < activeCount; i += 1) {
+                if (edgeEndRow[active[i]] > row) {
+                    active[kept++] = active[i];
+                }
+            }
+            activeCount = kept;
+            double centre = row + 0.5;
+            for (int i = 0; i < activeCount; i += 1) {
+                int e = active[i];
+                crossings[i] = edgeX[e] + (centre - edgeY[e]) * edgeSlope[e];
+            }
+            Arrays.sort(crossings, 0, activeCount);
+            for (int i = 0; i + 1 < activeCount; i += 2) {
+                // Cells whose centre (column + 0.5) lies in [left, right)
+                int first = Math.max(0, (int)Math.ceil(crossings[i] - 0.5));
+                int end = Math.min(m_tiles.getWidth(), (int)Math.ceil(crossings[i + 1] - 0.5));
+                if (first < end) {
+                    addSpan(row, first, end);
+                }
+            }
+            row += 1;
+        }
+    }
+
+    //
+    // Accumulate the cells of every span, reading each tile once. There is
+    // one task per worker, each taking the next unread tile until none are
+    // left and summing into its own accumulator, so that no more than one
+    // histogram per worker is ever allocated. The tasks run on the workers,
+    // if there are any, only when the grid is thread safe; a grid read
+    // through ArcObjects is read here on the request thread.
+    //
+    public Accumulator compute (ExecutorService workers, final boolean histogram) throws IOException {
+        int tileSize = m_tiles.getTileSize();
+        List<int[]> pieces = new ArrayList<int[]>(m_spanCount);
+        for (int s = 0; s < m_spanCount; s += 1) {
+            int row = m_spans[s * 3];
+            int end = m_spans[s * 3 + 2];
+            for (int column = m_spans[s * 3 + 1]; column < end; ) {
+                int pieceEnd = Math.min(end, (column / tileSize + 1) * tileSize);
+                pieces.add(new int[] { m_tiles.getTileIndex(column, row), row, column, pieceEnd });
+                column = pieceEnd;
+            }
+        }
+        long[] order = new long[pieces.size()];
+        for (int i = 0; i < order.length; i += 1) {
+            order[i] = ((long)pieces.get(i)[0] << 32) | i;
+        }
+        Arrays.sort(order);
+        final List<int[][]> tilePieces = new ArrayList<int[][]>();
+        for (int from = 0; from < order.length; ) {
+            int to = from + 1;
+            while ((to < order.length) && ((order[to] >>> 32) == (order[from] >>> 32))) {
+                to += 1;
+            }
+            int[][] group = new int[to - from][];
+            for (int i = from; i < to; i += 1) {
+                group[i - from] = pieces.get((int)order[i]);
+            }
+            tilePieces.add(group);
+            from = to;
+        }
+        if (!m_tiles.isThreadSafe()) {
+            workers = null;
+        }
+        final int pixelType = m_pixelType;
+        final AtomicInteger next = new AtomicInteger();
+        int taskCount = Math.max(1, Math.min(WorkerPool.getParallelism(workers), tilePieces.size()));
+        List<Callable<Accumulator>> tasks = new ArrayList<Callable<Accumulator>>(taskCount);
+        for (int t = 0; t < taskCount; t += 1) {
+            tasks.add(new Callable<Accumulator>() {
+                public Accumulator call () throws IOException {
+                    Accumulator result = new Accumulator(pixelType, histogram);
+                    for (int g = next.getAndIncrement(); g < tilePieces.size(); g = next.getAndIncrement()) {
+                        int[][] group = tilePieces.get(g);
+                        TiledGrid.Tile tile = m_tiles.readTile(group[0][0]);
+                        for (int[] piece : group) {
+                            for (int column = piece[2]; column < piece[3]; column += 1) {
+                                result.add(tile.get(column, piece[1]));
+                            }
+                        }
+                    }
+                    return result;
+                }
+            });
+        }
+        Accumulator result = null;
+        for (Accumulator partial : WorkerPool.invokeAll(workers, tasks)) {
+            if (result == null) {
+                result = partial;
+            } else {
+                result.merge(partial);
+            }
+        }
+        return result;
+    }
+
+    private void addSpan (int row, int first, int end) {
+        if (m_spanCount * 3 == m_spans.length) {
+            m_spans = Arrays.copyOf(m_spans, m_spans.length * 2);
+        }
+        m_spans[m_spanCount * 3] = row;
+        m_spans[m_spanCount * 3 + 1] = first;
+        m_spans[m_spanCount * 3 + 2] = end;
+        m_spanCount += 1;
+        m_cellCount += end - first;
+    }
+
+    //
+    // Running count, sum, extremes and variance of cell values, and
+    // optionally a histogram of them. The sum is compensated (Kahan) and the
+    // variance kept with Welford's update, merged with Chan's formula, so
+    // results stay accurate over hundreds of millions of cells. Histograms
+    // of 8 and 16 bit rasters are counted in a flat array indexed by value;
+    // wider integer types in a map limited to MAX_HISTOGRAM_VALUES values.
+    //
+    public static class Accumulator
+    {
+        private long m_count;
+        private long m_noDataCount;
+        private double m_sum;
+        private double m_compensation;
+        private double m_mean;
+        private double m_m2;
+        private double m_min;
+        private double m_max;
+        private final boolean m_histogram;
+        private final int m_offset;
+        private long[] m_dense;
+        private Map<Long, long[]> m_sparse;
+
+        public Accumulator (int pixelType, boolean histogram) {
+            m_count = 0;
+            m_noDataCount = 0;
+            m_sum = 0;
+            m_compensation = 0;
+            m_mean = 0;
+            m_m2 = 0;
+            m_min = Double.POSITIVE_INFINITY;
+            m_max = Double.NEGATIVE_INFINITY;
+            m_histogram = histogram;
+            m_dense = null;
+            m_sparse = null;
+            int offset = 0;
+            if (histogram) {
+                switch (pixelType) {
+                    case rstPixelType.PT_U1:
+                    case rstPixelType.PT_U2:
+                    case rstPixelType.PT_U4:
+                    case rstPixelType.PT_UCHAR:
+                        m_dense = new long[256];
+                        break;
+                    case rstPixelType.PT_CHAR:
+                        m_dense = new long[256];
+                        offset = 128;
+                        break;
+                    case rstPixelType.PT_USHORT:
+                        m_dense = new long[65536];
+                        break;
+                    case rstPixelType.PT_SHORT:
+                        m_dense = new long[65536];
+                        offset = 32768;
+                        break;
+                    case rstPixelType.PT_FLOAT:
+                    case rstPixelType.PT_DOUBLE:
+                        throw new IllegalArgumentException("histogram is only available for integer rasters");
+                    default:
+                        m_sparse = new TreeMap<Long, long[]>();
+                        break;
+                }
+            }
+            m_offset = offset;
+        }
+
+        public void add (double value) {
+            if (Double.isNaN(value)) {
+                m_noDataCount += 1;
+                return;
+            }
+            m_count += 1;
+            double y = value - m_compensation;
+            double t = m_sum + y;
+            m_compensation = (t - m_sum) - y;
+            m_sum = t;
+            double delta = value - m_mean;
+            m_mean += delta / m_count;
+            m_m2 += delta * (value - m_mean);
+            if (value < m_min) {
+                m_min = value;
+            }
+            if (value > m_max) {
+                m_max = value;
+            }
+            if (m_dense != null) {
+                m_dense[(int)value + m_offset] += 1;
+            } else if (m_sparse != null) {
+                Long key = Long.valueOf((long)value);
+                long[] bin = m_sparse.get(key);
+                if (bin == null) {
+                    if (m_sparse.size() == MAX_HISTOGRAM_VALUES) {
+                        throw new IllegalArgumentException("histogram has more than " + MAX_HISTOGRAM_VALUES + " distinct values");
+                    }
+                    bin = new long[1];
+                    m_sparse.put(key, bin);
+                }
+                bin[0] += 1;
+            }
+        }
+
+        public void merge (Accumulator other) {
+            m_noDataCount += other.m_noDataCount;
+            if (other.m_count == 0) {
+                return;
+            }
+            long count = m_count + other.m_count;
+            double delta = other.m_mean - m_mean;
+            m_m2 += other.m_m2 + delta * delta * ((double)m_count * other.m_count / count);
+            m_mean += delta * other.m_count / count;
+            m_count = count;
+            double y = (other.m_sum - other.m_compensation) - m_compensation;
+            double t = m_sum + y;
+            m_compensation = (t - m_sum) - y;
+            m_sum = t;
+            m_min = Math.min(m_min, other.m_min);
+            m_max = Math.max(m_max, other.m_max);
+            if (m_dense != null) {
+                for (int i = 0; i < m_dense.length; i += 1) {
+                    m_dense[i] += other.m_dense[i];
+                }
+            } else if (m_sparse != null) {
+                for (Map.Entry<Long, long[]> entry : other.m_sparse.entrySet()) {
+                    long[] bin = m_sparse.get(entry.getKey());
+                    if (bin == null) {
+                        if (m_sparse.size() == MAX_HISTOGRAM_VALUES) {
+                            throw new IllegalArgumentException("histogram has more than " + MAX_HISTOGRAM_VALUES + " distinct values");
+                        }
+                        m_sparse.put(entry.getKey(), new long[] { entry.getValue()[0] });
+                    } else {
+                        bin[0] += entry.getValue()[0];
+                    }
+                }
+            }
+        }
+
+        public long getCount () {
+            return m_count;
+        }
+
+        public long getNoDataCount () {
+            return m_noDataCount;
+        }
+
+        public double getSum () {
+            return m_sum;
+        }
+
+        public double getMean () {
+            return (m_count > 0) ? m_sum / m_count : Double.NaN;
+        }
+
+        public double getMin () {
+            return (m_count > 0) ? m_min : Double.NaN;
+        }
+
+        public double getMax () {
+            return (m_count > 0) ? m_max : Double.NaN;
+        }
+
+        public double getStandardDeviation () {
+            return (m_count > 0) ? Math.sqrt(m_m2 / m_count) : Double.NaN;
+        }
+
+        public JSONObject toJsonObject (double cellArea) {
+            JSONObject result = new JSONObject();
+            result.put("count", m_count);
+            result.put("noDataCount", m_noDataCount);
+            result.put("area", m_count * cellArea);
+            result.put("sum", m_sum);
+            if (m_count > 0) {
+                result.put("mean", getMean());
+                result.put("min", getMin());
+                result.put("max", getMax());
+                result.put("std", getStandardDeviation());
+            }
+            if (m_histogram) {
+                JSONArray values = new JSONArray();
+                JSONArray counts = new JSONArray();
+                if (m_dense != null) {
+                    for (int i = 0; i < m_dense.length; i += 1) {
+                        if (m_dense[i] > 0) {
+                            values.put(i - m_offset);
+                            counts.put(m_dense[i]);
+                        }
+                    }
+                } else {
+                    for (Map.Entry<Long, long[]> entry : m_sparse.entrySet()) {
+                        values.put(entry.getKey().longValue());
+                        counts.put(entry.getValue()[0]);
+                    }
+                }
+                JSONObject histogram = new JSONObject();
+                histogram.put("values", values);
+                histogram.put("counts", counts);
+                result.put("histogram", histogram);
+            }
+            return result;
+        }
+    }
+}